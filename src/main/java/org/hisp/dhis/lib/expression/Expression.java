@@ -1,33 +1,51 @@
 package org.hisp.dhis.lib.expression;
 
+import lombok.Value;
+import org.hisp.dhis.lib.expression.ast.FlatTree;
 import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeInterner;
 import org.hisp.dhis.lib.expression.ast.VariableType;
+import org.hisp.dhis.lib.expression.eval.Arithmetic;
+import org.hisp.dhis.lib.expression.eval.BatchEvaluator;
 import org.hisp.dhis.lib.expression.eval.Evaluate;
+import org.hisp.dhis.lib.expression.eval.Evaluator;
 import org.hisp.dhis.lib.expression.eval.NodeValidator;
 import org.hisp.dhis.lib.expression.eval.ValueTypeVariableValue;
+import org.hisp.dhis.lib.expression.spi.ColumnarData;
 import org.hisp.dhis.lib.expression.spi.DataItem;
 import org.hisp.dhis.lib.expression.spi.DataItemType;
 import org.hisp.dhis.lib.expression.spi.ExpressionData;
 import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
 import org.hisp.dhis.lib.expression.spi.ID;
 import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.spi.IndicatorResolver;
+import org.hisp.dhis.lib.expression.spi.Issue;
+import org.hisp.dhis.lib.expression.spi.Issues;
 import org.hisp.dhis.lib.expression.spi.ParseException;
 import org.hisp.dhis.lib.expression.spi.ValueType;
 import org.hisp.dhis.lib.expression.spi.Variable;
 import org.hisp.dhis.lib.expression.spi.VariableValue;
+import org.hisp.dhis.lib.expression.syntax.CompiledGrammar;
 import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
 import org.hisp.dhis.lib.expression.syntax.Fragment;
 import org.hisp.dhis.lib.expression.syntax.Parser;
 
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
 
 /**
  * Facade API for working with DHIS2 expressions.
  *
+ * An expression can be evaluated by multiple threads concurrently.
+ *
  * @author Jan Bernitt
  */
 public final class Expression {
@@ -56,7 +74,7 @@ public final class Expression {
         RULE_ENGINE_ACTION(ExpressionGrammar.RuleEngineMode, NodeValidator.RuleEngineMode, ValueType.BOOLEAN, ValueType.STRING, ValueType.NUMBER, ValueType.DATE);
 
         final EnumSet<ValueType> resultTypes;
-        final List<Fragment> fragments;
+        final CompiledGrammar grammar;
         final List<NodeValidator> validators;
 
         Mode(List<Fragment> fragments, ValueType... resultTypes) {
@@ -64,14 +82,133 @@ public final class Expression {
         }
         Mode(List<Fragment> fragments, List<NodeValidator> validators, ValueType... resultTypes) {
             this.resultTypes = EnumSet.of(resultTypes[0], resultTypes);
-            this.fragments = fragments;
+            this.grammar = CompiledGrammar.of(fragments);
             this.validators = validators;
         }
     }
 
+    /**
+     * An expression to compile in bulk using {@link #compileAll(Stream, Mode)}.
+     */
+    @Value
+    public static class Source {
+
+        public static Source of(String expression) {
+            return new Source(expression, Map.of());
+        }
+
+        String expression;
+        /**
+         * The value types of program rule variables used in the expression (used for validation)
+         */
+        Map<String, ValueType> variableTypes;
+    }
+
+    /**
+     * The outcome of compiling a single {@link Source} in bulk.
+     *
+     * If the expression did not parse {@link #getCompiled()} is null and the {@link #getErrors()} contain the parse
+     * error. If it parsed but failed validation both the compiled expression and the issues found are available.
+     */
+    @Value
+    public static class Result {
+        Source source;
+        Expression compiled;
+        List<Issue> errors;
+        List<Issue> warnings;
+
+        public boolean isValid() {
+            return compiled != null && errors.isEmpty() && warnings.isEmpty();
+        }
+    }
+
+    /**
+     * The cache used by {@link #compile(String, Mode)}.
+     */
+    private static final ExpressionCache CACHE = new ExpressionCache(10_000, 10_000_000L);
+
+    /**
+     * Returns the shared compiled form of the given expression.
+     *
+     * Unlike the constructor this only parses an expression the first time it is compiled in a mode.
+     * The returned instance is shared with other callers and must be treated as immutable.
+     *
+     * @param expression the expression text
+     * @param mode the mode to parse the expression in
+     * @return the compiled expression
+     * @throws ParseException when the expression is not valid in the given mode
+     */
+    public static Expression compile(String expression, Mode mode) throws ParseException {
+        return CACHE.compile(expression, mode);
+    }
+
+    /**
+     * Parses and validates all sources in parallel using the common {@link ForkJoinPool}.
+     *
+     * @see #compileAll(Stream, Mode, ForkJoinPool)
+     */
+    public static List<Result> compileAll(Stream<Source> sources, Mode mode) {
+        return compileAll(sources, mode, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses and validates all sources in parallel.
+     *
+     * All expressions share the grammar of the mode. The {@link #compile(String, Mode)} cache is not used as bulk
+     * compilation of a whole corpus would only evict the entries of interactive use.
+     *
+     * @param sources the expressions to compile
+     * @param mode the mode to parse and validate all expressions in
+     * @param pool the pool to run the compilation in
+     * @return one result for each source in the order of the sources, this never throws for invalid expressions,
+     *     all syntax errors of a source are reported, not just the first one
+     */
+    public static List<Result> compileAll(Stream<Source> sources, Mode mode, ForkJoinPool pool) {
+        List<Source> all = sources.collect(toList());
+        return pool.submit(() -> all.parallelStream().map(source -> compile(source, mode)).collect(toList())).join();
+    }
+
+    private static Result compile(Source source, Mode mode) {
+        Expression compiled = null;
+        try {
+            Issues issues = new Issues();
+            Node<?> root = Parser.withGrammar(mode.grammar).parse(source.getExpression(), issues);
+            if (root == null) {
+                return new Result(source, null, issues.getErrors(), List.of());
+            }
+            compiled = new Expression(source.getExpression(), mode, root);
+            compiled.validate(source.getVariableTypes());
+            return new Result(source, compiled, List.of(), List.of());
+        } catch (IllegalExpressionException ex) {
+            return new Result(source, compiled, ex.getErrors(), ex.getWarnings());
+        } catch (RuntimeException ex) {
+            return new Result(source, compiled, List.of(new Issue(() -> "", ex.getMessage())), List.of());
+        }
+    }
+
+    /**
+     * @return counters of the cache used by {@link #compile(String, Mode)}
+     */
+    public static ExpressionCache.Stats cacheStats() {
+        return CACHE.stats();
+    }
+
     private final Mode mode;
     private final String expression;
     private final Node<?> root;
+    /**
+     * The compiled form of the {@link #root}, created on first evaluation
+     */
+    private volatile Evaluator evaluator;
+    /**
+     * The compiled form of the {@link #root} using {@link Arithmetic#DOUBLE}, created on first such evaluation
+     */
+    private volatile Evaluator doubleEvaluator;
+    /**
+     * The column-at-a-time compiled form of the {@link #root}, created on first batch evaluation
+     */
+    private volatile BatchEvaluator batchEvaluator;
+    private volatile BatchEvaluator doubleBatchEvaluator;
 
     public Expression(String expression) throws ParseException {
         this(expression, Mode.PREDICTOR_GENERATOR_EXPRESSION);
@@ -80,17 +217,53 @@ public final class Expression {
     public Expression(String expression, Mode mode) throws ParseException {
         this.mode = mode;
         this.expression = expression;
-        this.root = Parser.parse(expression, mode.fragments);
+        this.root = Parser.parse(expression, mode.grammar);
+    }
+
+    /**
+     * @param interner the table to share identical subtrees of the expression's tree with other expressions
+     */
+    Expression(String expression, Mode mode, NodeInterner interner) throws ParseException {
+        this(expression, mode, Parser.withGrammar(mode.grammar).withInterner(interner).parse(expression));
+    }
+
+    Expression(String expression, Mode mode, Node<?> root) {
+        this.mode = mode;
+        this.expression = expression;
+        this.root = root;
+    }
+
+    Node<?> getRoot() {
+        return root;
     }
 
     public Set<DataItem> collectDataItems() {
         return Evaluate.collectDataItems(root);
     }
 
+    /**
+     * Data item values can be given by slot with {@link ExpressionData#getDataItemSlotValues()} instead of by
+     * {@link DataItem}. This avoids hashing data items during evaluation when the same expression is evaluated for
+     * many different values.
+     *
+     * @return the distinct data items of this expression, the index of each item is its slot
+     */
+    public List<DataItem> getDataItemSlots() {
+        return Evaluate.collectDataItemSlots(root);
+    }
+
     public Set<String> collectProgramRuleVariableNames() {
         return Evaluate.collectVariableNames(root, VariableType.PROGRAM_RULE);
     }
 
+    /**
+     * @return the names of the program rule variables this expression reads, including those read by name by
+     * functions, null when a name is only known when the expression is evaluated
+     */
+    Set<String> collectProgramRuleVariableReads() {
+        return Evaluate.collectProgramRuleVariableReads(root);
+    }
+
     public Set<String> collectProgramVariablesNames() {
         return Evaluate.collectVariableNames(root, VariableType.PROGRAM);
     }
@@ -105,7 +278,89 @@ public final class Expression {
     }
 
     public Object evaluate(ExpressionFunctions functions, ExpressionData data) throws IllegalExpressionException {
-        return Evaluate.evaluate(root, functions, data);
+        return evaluate(functions, data, Arithmetic.DECIMAL64);
+    }
+
+    /**
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items and variables
+     * @param arithmetic the arithmetic to use for arithmetic operators, see {@link Arithmetic#DOUBLE} for the cases
+     *                   where the result differs from the default {@link Arithmetic#DECIMAL64}
+     * @return the result value of the expression
+     * @throws IllegalExpressionException when the expression cannot be evaluated with the given data
+     */
+    public Object evaluate(ExpressionFunctions functions, ExpressionData data, Arithmetic arithmetic)
+            throws IllegalExpressionException {
+        if (arithmetic == Arithmetic.DOUBLE) {
+            Evaluator e = doubleEvaluator;
+            if (e == null) {
+                e = Evaluate.compile(root, arithmetic);
+                doubleEvaluator = e;
+            }
+            return e.evaluate(functions, data);
+        }
+        Evaluator e = evaluator;
+        if (e == null) {
+            e = Evaluate.compile(root);
+            evaluator = e;
+        }
+        return e.evaluate(functions, data);
+    }
+
+    /**
+     * Evaluates this number expression for all rows of the data using the default functions.
+     *
+     * @see #evaluateBatch(ExpressionFunctions, ColumnarData, double[], BitSet, Arithmetic)
+     */
+    public void evaluateBatch(ColumnarData data, double[] out) throws IllegalExpressionException {
+        evaluateBatch(name -> {
+            throw new UnsupportedOperationException("Function not supported: " + name);
+        }, data, out, null, Arithmetic.DECIMAL64);
+    }
+
+    /**
+     * Evaluates this number expression for all rows of the data.
+     *
+     * The arithmetic on data items is computed column-at-a-time. This is meant for evaluating the same expression for
+     * many cells, like each organisation unit and period, without creating {@link ExpressionData} for each cell.
+     *
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items per row
+     * @param out the result values, rows with a null result are {@link Double#NaN}
+     * @param nulls when not null, the bits of the rows with a null result are set, all others are cleared
+     * @param arithmetic the arithmetic to use for arithmetic operators
+     * @throws IllegalExpressionException when the expression cannot be evaluated for the values of a row
+     */
+    public void evaluateBatch(ExpressionFunctions functions, ColumnarData data, double[] out, BitSet nulls,
+            Arithmetic arithmetic) throws IllegalExpressionException {
+        BatchEvaluator e = arithmetic == Arithmetic.DOUBLE ? doubleBatchEvaluator : batchEvaluator;
+        if (e == null) {
+            e = Evaluate.compileBatch(root, arithmetic);
+            if (arithmetic == Arithmetic.DOUBLE) {
+                doubleBatchEvaluator = e;
+            } else {
+                batchEvaluator = e;
+            }
+        }
+        e.evaluate(functions, data, out, nulls);
+    }
+
+    /**
+     * Creates a copy of this expression that is compiled to a JVM class which is used for all its evaluations.
+     *
+     * This is meant for the few expressions that are evaluated very often, compiling costs significantly more than
+     * the first evaluation does. The class can be unloaded when the copy is no longer used. Runtimes before Java 15
+     * cannot unload it, there the copy is compiled to closures as by default.
+     *
+     * This expression is not changed so that an instance shared by the {@link #compile(String, Mode)} cache keeps
+     * evaluating the same way for all of its other users.
+     *
+     * @return a copy of this expression that evaluates using bytecode
+     */
+    public Expression compileToBytecode() {
+        Expression compiled = new Expression(expression, mode, root);
+        compiled.evaluator = Evaluate.compileToBytecode(root);
+        return compiled;
     }
 
     public Set<Variable> collectProgramVariables() {
@@ -131,6 +386,10 @@ public final class Expression {
         return Evaluate.describe(root, displayNames);
     }
 
+    /**
+     * Validation does not change the expression, a shared (cached) instance can be validated with different variable
+     * types concurrently.
+     */
     public void validate(Map<String, ValueType> displayNamesKeys) {
         Map<String, VariableValue> programRuleVariableValues = new HashMap<>();
         displayNamesKeys.forEach((key, value) -> programRuleVariableValues.put(key, new ValueTypeVariableValue(value)));
@@ -166,6 +425,64 @@ public final class Expression {
         return Evaluate.normalise(root);
     }
 
+    /**
+     * Creates a copy of this expression where indicators referenced by {@code N{uid}} are replaced by their
+     * expressions so that a chain of indicators is evaluated as one flat expression. The data items of the copy are
+     * those of all inlined expressions.
+     *
+     * The copy is still described and normalised as this expression. It is meant to be evaluated and should not be
+     * {@link #compact()}ed or encoded using {@link #toBinary()}, those should use this expression instead.
+     *
+     * @param resolver provides the expressions of referenced indicators
+     * @return an expression with inlined indicator references, or this expression if there was nothing to inline
+     * @throws ParseException when the expression of a referenced indicator cannot be parsed
+     * @throws IllegalExpressionException when indicators reference each other in a cycle
+     */
+    public Expression inline(IndicatorResolver resolver) {
+        Node<?> inlined = Evaluate.inline(root, id -> {
+            String referenced = resolver.resolve(id);
+            return referenced == null ? null : Parser.parse(referenced, mode.grammar);
+        });
+        return inlined == root ? this : new Expression(expression, mode, inlined);
+    }
+
+    /**
+     * Creates a memory compact copy of this expression that is meant to be kept in large caches.
+     *
+     * The copy uses an immutable {@link FlatTree} that resolves the data items and variables once, a data item that
+     * cannot be resolved fails with the same exception whenever it is used. Validation and evaluation of the copy
+     * give the same results as for this expression.
+     *
+     * @return a compact copy of this expression
+     */
+    public Expression compact() {
+        return new Expression(expression, mode, FlatTree.of(root));
+    }
+
+    /**
+     * Encodes this expression in a compact binary form that can be stored and later be decoded without parsing.
+     *
+     * Value types are not included, a decoded expression is validated with the types given just like a parsed one.
+     * Expressions that were {@link #compact()}ed cannot be encoded, they should be encoded before they are compacted.
+     *
+     * @return the binary form of this expression
+     * @see #fromBinary(byte[])
+     */
+    public byte[] toBinary() {
+        return ExpressionCodec.encode(expression, mode, root);
+    }
+
+    /**
+     * Decodes an expression encoded with {@link #toBinary()}.
+     *
+     * @param encoded the binary form of an expression
+     * @return the decoded expression
+     * @throws IllegalArgumentException when the input is not a (supported version of an) encoded expression
+     */
+    public static Expression fromBinary(byte[] encoded) {
+        return ExpressionCodec.decode(encoded);
+    }
+
     /**
      * @return the expression in its original (user input) form
      */
@@ -0,0 +1,159 @@
+package org.hisp.dhis.lib.expression;
+
+import lombok.Value;
+import org.hisp.dhis.lib.expression.ast.NodeInterner;
+import org.hisp.dhis.lib.expression.spi.ParseException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache of compiled {@link Expression}s keyed by the expression text and {@link Expression.Mode}.
+ *
+ * The cache is bounded both by the number of entries and by their total weight.
+ * The weight of an entry is the length of its expression text which is a good approximation of the size of its AST.
+ * When either bound is exceeded the least recently used entries are evicted.
+ *
+ * Parsing happens outside the cache lock so that a slow parse never blocks lookups of other threads.
+ * When two threads compile the same expression concurrently the first one to finish wins and both use that instance.
+ * Expressions that fail to parse are not cached.
+ *
+ * Optionally the cache can hold the {@link Expression#compact()} form of expressions to reduce its memory footprint.
+ * Compact expressions behave the same as the parsed ones, validation uses the value types given with each call.
+ * Alternatively, or in addition, the cached expressions can share identical subtrees using a {@link NodeInterner}.
+ *
+ * @author Jan Bernitt
+ */
+public final class ExpressionCache {
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    @Value
+    public static class Stats {
+        long hits;
+        long misses;
+        long evictions;
+        int size;
+        long weight;
+    }
+
+    @Value
+    private static class Key {
+        String expression;
+        Expression.Mode mode;
+    }
+
+    private final int maxSize;
+    private final long maxWeight;
+    private final boolean compact;
+    private final NodeInterner interner;
+
+    private final LinkedHashMap<Key, Expression> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize maximum number of cached expressions
+     * @param maxWeight maximum sum of the expression text lengths of all cached expressions
+     */
+    public ExpressionCache(int maxSize, long maxWeight) {
+        this(maxSize, maxWeight, false);
+    }
+
+    /**
+     * @param maxSize maximum number of cached expressions
+     * @param maxWeight maximum sum of the expression text lengths of all cached expressions
+     * @param compact true to cache the {@link Expression#compact()} form of expressions
+     */
+    public ExpressionCache(int maxSize, long maxWeight, boolean compact) {
+        this(maxSize, maxWeight, compact, null);
+    }
+
+    /**
+     * @param maxSize maximum number of cached expressions
+     * @param maxWeight maximum sum of the expression text lengths of all cached expressions
+     * @param compact true to cache the {@link Expression#compact()} form of expressions
+     * @param interner the table to share identical subtrees between cached expressions, null to not share subtrees
+     */
+    public ExpressionCache(int maxSize, long maxWeight, boolean compact, NodeInterner interner) {
+        if (maxSize < 1 || maxWeight < 1)
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+        this.compact = compact;
+        this.interner = interner;
+    }
+
+    /**
+     * Returns the shared compiled form of the given expression, parsing it only if it is not already cached.
+     *
+     * @param expression the expression text
+     * @param mode the mode to parse the expression in
+     * @return the compiled expression, shared between all callers asking for the same text and mode
+     * @throws ParseException when the expression is not valid in the given mode
+     */
+    public Expression compile(String expression, Expression.Mode mode) throws ParseException {
+        Key key = new Key(expression, mode);
+        synchronized (entries) {
+            Expression cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        Expression compiled = interner == null
+                ? new Expression(expression, mode)
+                : new Expression(expression, mode, interner);
+        if (compact) {
+            compiled = compiled.compact();
+        }
+        long entryWeight = weight(expression);
+        if (entryWeight > maxWeight) {
+            return compiled; // would evict everything else
+        }
+        synchronized (entries) {
+            Expression raced = entries.putIfAbsent(key, compiled);
+            if (raced != null) {
+                return raced;
+            }
+            weight += entryWeight;
+            evict();
+        }
+        return compiled;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Expression>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxSize || weight > maxWeight) && eldest.hasNext()) {
+            Map.Entry<Key, Expression> e = eldest.next();
+            weight -= weight(e.getKey().getExpression());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long weight(String expression) {
+        return Math.max(1, expression.length());
+    }
+
+    public Stats stats() {
+        synchronized (entries) {
+            return new Stats(hits, misses, evictions, entries.size(), weight);
+        }
+    }
+
+    /**
+     * Removes all entries, counters are kept.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.ast.Nodes;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The binary encoding of a compiled {@link Expression}.
+ *
+ * The encoding captures the post-transformation tree so that decoding does not parse the expression text.
+ * It has the following layout, all numbers other than the magic are variable length encoded (7 bits per byte):
+ * <pre>
+ * magic 'EXPR' | version | mode | expression | #strings | strings... | root node
+ * </pre>
+ * Strings are given as their UTF-8 byte length followed by the bytes. The raw values of nodes are stored once in the
+ * string table and referenced by index plus one (zero is null). Nodes are written in pre-order as
+ * <pre>
+ * kind | type | raw value | #children | #modifiers | children... | modifiers...
+ * </pre>
+ * where the kind identifies the {@link Node} implementation. A node that occurs more than once in the tree, like a
+ * modifier propagated to multiple data items, is written once; further occurrences are a back reference
+ * {@code 0 | index} to the node's pre-order index. Value types are not part of the format as they are given when an
+ * expression is validated, not by its tree.
+ *
+ * {@link org.hisp.dhis.lib.expression.spi.DataItem}s are derived from the decoded nodes when they are first needed
+ * just like for a parsed tree.
+ *
+ * @author Jan Bernitt
+ */
+final class ExpressionCodec {
+
+    private static final int MAGIC = 'E' << 24 | 'X' << 16 | 'P' << 8 | 'R';
+    private static final int VERSION = 2;
+
+    private static final NodeType[] NODE_TYPES = NodeType.values();
+
+    /**
+     * The known {@link Node} implementations by kind, kind zero is the back reference.
+     * Kinds are part of the format, new kinds can only be appended.
+     */
+    private static final List<Class<?>> KINDS = Arrays.asList(null,
+            Nodes.ParenthesesNode.class,
+            Nodes.ArgumentNode.class,
+            Nodes.FunctionNode.class,
+            Nodes.ModifierNode.class,
+            Nodes.DataItemNode.class,
+            Nodes.VariableNode.class,
+            Nodes.UnaryOperatorNode.class,
+            Nodes.BinaryOperatorNode.class,
+            Nodes.TextNode.class,
+            Nodes.Utf8StringNode.class,
+            Nodes.BooleanNode.class,
+            Nodes.NumberNode.class,
+            Nodes.IntegerNode.class,
+            Nodes.DateNode.class,
+            Nodes.ConstantNode.class,
+            Nodes.ReportingRateTypeNode.class,
+            Nodes.ProgramVariableNode.class,
+            Nodes.NamedValueNode.class,
+            Nodes.TagNode.class,
+            Nodes.AggregationTypeNode.class);
+
+    private static final Node.Factory[] FACTORIES = {null,
+            Nodes.ParenthesesNode::new,
+            Nodes.ArgumentNode::new,
+            Nodes.FunctionNode::new,
+            Nodes.ModifierNode::new,
+            Nodes.DataItemNode::new,
+            Nodes.VariableNode::new,
+            Nodes.UnaryOperatorNode::new,
+            Nodes.BinaryOperatorNode::new,
+            Nodes.TextNode::new,
+            Nodes.Utf8StringNode::new,
+            Nodes.BooleanNode::new,
+            Nodes.NumberNode::new,
+            Nodes.IntegerNode::new,
+            Nodes.DateNode::new,
+            Nodes.ConstantNode::new,
+            Nodes.ReportingRateTypeNode::new,
+            Nodes.ProgramVariableNode::new,
+            Nodes.NamedValueNode::new,
+            Nodes.TagNode::new,
+            Nodes.AggregationTypeNode::new};
+
+    private ExpressionCodec() {
+        throw new UnsupportedOperationException("util");
+    }
+
+    static byte[] encode(String expression, Expression.Mode mode, Node<?> root) {
+        Encoder nodes = new Encoder();
+        nodes.writeNode(root);
+        Encoder out = new Encoder();
+        out.writeInt(MAGIC);
+        out.writeVarInt(VERSION);
+        out.writeString(mode.name());
+        out.writeString(expression);
+        out.writeVarInt(nodes.strings.size());
+        nodes.strings.forEach(out::writeString);
+        out.write(nodes.bytes, nodes.size);
+        return Arrays.copyOf(out.bytes, out.size);
+    }
+
+    static Expression decode(byte[] encoded) {
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        try {
+            if (in.remaining() < 4 || in.getInt() != MAGIC)
+                throw new IllegalArgumentException("Not an encoded expression");
+            int version = readVarInt(in);
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unsupported encoding version: " + version);
+            Expression.Mode mode = Expression.Mode.valueOf(readString(in));
+            String expression = readString(in);
+            String[] strings = new String[readVarInt(in)];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = readString(in);
+            Node<?> root = new Decoder(in, strings).readNode();
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("Unexpected bytes after the encoded expression");
+            return new Expression(expression, mode, root);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated or corrupt encoded expression", ex);
+        }
+    }
+
+    private static final class Encoder {
+
+        byte[] bytes = new byte[64];
+        int size;
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> stringIndex = new HashMap<>();
+        final Map<Node<?>, Integer> nodeIndex = new IdentityHashMap<>();
+
+        void writeNode(Node<?> node) {
+            Integer index = nodeIndex.get(node);
+            if (index != null) {
+                writeVarInt(0);
+                writeVarInt(index);
+                return;
+            }
+            int kind = KINDS.indexOf(node.getClass());
+            if (kind <= 0)
+                throw new IllegalArgumentException("Cannot encode node of type " + node.getClass().getName());
+            nodeIndex.put(node, nodeIndex.size());
+            writeVarInt(kind);
+            writeVarInt(node.getType().ordinal());
+            String raw = node.getRawValue();
+            writeVarInt(raw == null ? 0 : stringIndex.computeIfAbsent(raw, this::addString) + 1);
+            List<Node<?>> modifiers = new ArrayList<>();
+            node.modifiers().forEach(modifiers::add);
+            writeVarInt(node.size());
+            writeVarInt(modifiers.size());
+            for (int i = 0; i < node.size(); i++)
+                writeNode(node.child(i));
+            modifiers.forEach(this::writeNode);
+        }
+
+        private int addString(String str) {
+            strings.add(str);
+            return strings.size() - 1;
+        }
+
+        void writeString(String str) {
+            byte[] utf8 = str.getBytes(UTF_8);
+            writeVarInt(utf8.length);
+            write(utf8, utf8.length);
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void write(byte[] src, int length) {
+            ensure(length);
+            System.arraycopy(src, 0, bytes, size, length);
+            size += length;
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+    }
+
+    private static final class Decoder {
+
+        final ByteBuffer in;
+        final String[] strings;
+        final List<Node<?>> nodes = new ArrayList<>();
+
+        Decoder(ByteBuffer in, String[] strings) {
+            this.in = in;
+            this.strings = strings;
+        }
+
+        Node<?> readNode() {
+            int kind = readVarInt(in);
+            if (kind == 0)
+                return nodes.get(readVarInt(in));
+            if (kind >= FACTORIES.length)
+                throw new IllegalArgumentException("Unknown node kind: " + kind);
+            NodeType type = NODE_TYPES[readVarInt(in)];
+            int raw = readVarInt(in);
+            Node<?> node = FACTORIES[kind].create(type, raw == 0 ? null : strings[raw - 1]);
+            nodes.add(node);
+            int children = readVarInt(in);
+            int modifiers = readVarInt(in);
+            for (int i = 0; i < children; i++)
+                node.addChild(readNode());
+            for (int i = 0; i < modifiers; i++)
+                node.addModifier(readNode());
+            return node;
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarInt(in);
+        String str = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+        in.position(in.position() + length);
+        return str;
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed variable length number");
+    }
+}
@@ -0,0 +1,84 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.spi.ParseException;
+import org.hisp.dhis.lib.expression.syntax.IncrementalParser;
+
+/**
+ * Keeps an {@link Expression} up to date while its text is edited.
+ *
+ * Edits are parsed incrementally, groups and function arguments that are not affected by an edit are not parsed
+ * again (see {@link IncrementalParser}).
+ *
+ * Only parsing is incremental. Validation is not, {@link Expression#validate} type checks the entire tree after each
+ * edit as types of unchanged parts can depend on the edited parts.
+ *
+ * An editor is not thread-safe, it is meant to be used by the single session editing the expression.
+ *
+ * @author Jan Bernitt
+ */
+public final class ExpressionEditor {
+
+    private final Expression.Mode mode;
+    private final IncrementalParser parser;
+    private Expression expression;
+
+    /**
+     * @param mode the mode to parse the expression in
+     */
+    public ExpressionEditor(Expression.Mode mode) {
+        this.mode = mode;
+        this.parser = new IncrementalParser(mode.grammar);
+    }
+
+    /**
+     * @return the expression as of the most recent edit that did parse, or null if none did. It is validated as a
+     * whole, validation does not reuse results of earlier edits.
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the text of the expression including all edits, also those that did not parse
+     */
+    public String getText() {
+        return parser.getExpression();
+    }
+
+    /**
+     * @return number of groups and function arguments reused by the most recent edit
+     */
+    public int getReused() {
+        return parser.getReused();
+    }
+
+    /**
+     * Replaces the entire expression text.
+     *
+     * @param text the new expression
+     * @return the parsed expression
+     * @throws ParseException when the text is not a valid expression
+     */
+    public Expression setText(String text) throws ParseException {
+        return update(parser.parse(text));
+    }
+
+    /**
+     * Replaces a range of the expression text.
+     *
+     * @param start start position (inclusive) of the replaced range
+     * @param end end position (exclusive) of the replaced range
+     * @param replacement the new text for the range
+     * @return the parsed expression
+     * @throws ParseException when the edited text is not a valid expression
+     */
+    public Expression edit(int start, int end, String replacement) throws ParseException {
+        return update(parser.edit(start, end, replacement));
+    }
+
+    private Expression update(Node<?> root) {
+        expression = new Expression(parser.getExpression(), mode, root);
+        return expression;
+    }
+}
@@ -0,0 +1,123 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.eval.Arithmetic;
+import org.hisp.dhis.lib.expression.eval.Evaluate;
+import org.hisp.dhis.lib.expression.eval.SetEvaluator;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.spi.PartitionedData;
+import org.hisp.dhis.lib.expression.spi.ResultSink;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Many number expressions that are evaluated together for the same data, for example all validation rules or
+ * indicators of a data set for one organisation unit and period.
+ *
+ * The expressions are compiled as one unit. Data items and subtrees that occur in more than one expression are looked
+ * up and computed only once per evaluation. The data item values of all expressions can be given by slot in the order
+ * of {@link #getDataItemSlots()}.
+ *
+ * An expression set can be evaluated by multiple threads concurrently. A single expression that is evaluated for
+ * many partitions in parallel using {@link #evaluateAll(ExpressionFunctions, PartitionedData, ResultSink)} is a set
+ * of one.
+ *
+ * @author Jan Bernitt
+ */
+public final class ExpressionSet {
+
+    private final List<Expression> expressions;
+    private final List<DataItem> dataItemSlots;
+    private final SetEvaluator evaluator;
+
+    public ExpressionSet(List<Expression> expressions) {
+        this(expressions, Arithmetic.DECIMAL64);
+    }
+
+    /**
+     * @param expressions the expressions to evaluate together, the index of each expression is the index of its result
+     * @param arithmetic the arithmetic to use for arithmetic operators
+     */
+    public ExpressionSet(List<Expression> expressions, Arithmetic arithmetic) {
+        this.expressions = List.copyOf(expressions);
+        List<Node<?>> roots = this.expressions.stream().map(Expression::getRoot).collect(toList());
+        this.dataItemSlots = Evaluate.collectDataItemSlots(roots);
+        this.evaluator = Evaluate.compileSet(roots, arithmetic);
+    }
+
+    public int size() {
+        return expressions.size();
+    }
+
+    public List<Expression> getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * @return the distinct data items of all expressions, the index of each item is its slot
+     */
+    public List<DataItem> getDataItemSlots() {
+        return dataItemSlots;
+    }
+
+    /**
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items and variables
+     * @return the result value of each expression by index, null results are {@link Double#NaN}
+     * @throws IllegalExpressionException when any of the expressions cannot be evaluated with the given data
+     */
+    public double[] evaluate(ExpressionFunctions functions, ExpressionData data) throws IllegalExpressionException {
+        double[] out = new double[expressions.size()];
+        evaluator.evaluate(functions, data, out, null);
+        return out;
+    }
+
+    /**
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items and variables
+     * @param out the result value of each expression by index, null results are {@link Double#NaN}
+     * @param nulls when not null, the bits of the expressions with a null result are set, all others are cleared
+     * @throws IllegalExpressionException when any of the expressions cannot be evaluated with the given data
+     */
+    public void evaluate(ExpressionFunctions functions, ExpressionData data, double[] out, BitSet nulls)
+            throws IllegalExpressionException {
+        evaluator.evaluate(functions, data, out, nulls);
+    }
+
+    /**
+     * Evaluates all partitions in parallel using the common {@link ForkJoinPool}.
+     *
+     * @see #evaluateAll(ExpressionFunctions, PartitionedData, ResultSink, ForkJoinPool)
+     */
+    public void evaluateAll(ExpressionFunctions functions, PartitionedData data, ResultSink sink)
+            throws IllegalExpressionException {
+        evaluateAll(functions, data, sink, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates all expressions for each partition of the data in parallel.
+     *
+     * The work is split so that idle workers steal partitions from busy ones. The results are delivered to the sink in
+     * the order of the partitions independent of the order they were computed in by the calling thread which blocks
+     * until all partitions are delivered. The degree of parallelism is the one of the pool.
+     *
+     * @param functions implementation of the named functions, modifiers and data loading, is called by multiple threads
+     *                  concurrently
+     * @param data the values of the data items and variables per partition
+     * @param sink receives the results of each partition, is called by the calling thread only
+     * @param pool the pool to run the evaluation in
+     * @throws IllegalExpressionException when any of the expressions cannot be evaluated for a partition, the results
+     * of some partitions might have been delivered already
+     */
+    public void evaluateAll(ExpressionFunctions functions, PartitionedData data, ResultSink sink, ForkJoinPool pool)
+            throws IllegalExpressionException {
+        ParallelEvaluation.evaluate(this, functions, data, sink, pool);
+    }
+}
@@ -0,0 +1,211 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.PartitionedData;
+import org.hisp.dhis.lib.expression.spi.ResultSink;
+
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates an {@link ExpressionSet} for each partition of {@link PartitionedData} in a {@link ForkJoinPool}.
+ *
+ * The partitions are grouped into chunks of consecutive partitions. Chunks are split recursively into tasks so that
+ * idle workers steal the remaining halves of busy ones. The thread that started the evaluation delivers the completed
+ * chunks to the {@link ResultSink} in the order of the partitions, so the sink is never called by a worker of the
+ * pool. While it waits for the next chunk it is a managed blocker so that the pool can compensate when the caller
+ * is one of its workers.
+ *
+ * @author Jan Bernitt
+ */
+final class ParallelEvaluation {
+
+    /**
+     * Chunks per worker, more chunks balance uneven partitions better, fewer chunks have less overhead
+     */
+    private static final int CHUNKS_PER_WORKER = 8;
+
+    private final ExpressionSet set;
+    private final ExpressionFunctions functions;
+    private final PartitionedData data;
+    private final ResultSink sink;
+    private final int partitions;
+    private final int chunkSize;
+    /**
+     * The chunks completed but not yet delivered, guarded by {@code this}
+     */
+    private final Chunk[] completed;
+    /**
+     * True once a chunk failed or the delivery ended early, guarded by {@code this}
+     */
+    private boolean failed;
+
+    private ParallelEvaluation(ExpressionSet set, ExpressionFunctions functions, PartitionedData data,
+            ResultSink sink, int parallelism) {
+        this.set = set;
+        this.functions = functions;
+        this.data = data;
+        this.sink = sink;
+        this.partitions = data.partitions();
+        this.chunkSize = Math.max(1, partitions / (parallelism * CHUNKS_PER_WORKER));
+        this.completed = new Chunk[(partitions + chunkSize - 1) / chunkSize];
+    }
+
+    static void evaluate(ExpressionSet set, ExpressionFunctions functions, PartitionedData data, ResultSink sink,
+            ForkJoinPool pool) {
+        ParallelEvaluation evaluation = new ParallelEvaluation(set, functions, data, sink, pool.getParallelism());
+        if (evaluation.completed.length == 0)
+            return;
+        Task all = evaluation.new Task(0, evaluation.completed.length);
+        pool.execute(all);
+        try {
+            evaluation.deliverAll();
+        } catch (RuntimeException ex) {
+            evaluation.fail();
+            throw ex;
+        }
+        all.join(); // reports the failure of a chunk
+    }
+
+    /**
+     * The results of consecutive partitions.
+     */
+    private static final class Chunk {
+
+        final int from;
+        final double[] results;
+        final BitSet nulls;
+
+        Chunk(int from, double[] results, BitSet nulls) {
+            this.from = from;
+            this.results = results;
+            this.nulls = nulls;
+        }
+    }
+
+    /**
+     * Evaluates the chunks from (inclusive) to (exclusive).
+     */
+    private final class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Task(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Task(from, mid), new Task(mid, to));
+                return;
+            }
+            if (isFailed())
+                return;
+            try {
+                done(from, evaluateChunk(from));
+            } catch (RuntimeException ex) {
+                fail();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Waits for a chunk to complete.
+     */
+    private final class Await implements ForkJoinPool.ManagedBlocker {
+
+        private final int chunk;
+
+        Await(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            synchronized (ParallelEvaluation.this) {
+                return failed || completed[chunk] != null;
+            }
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            synchronized (ParallelEvaluation.this) {
+                while (!failed && completed[chunk] == null)
+                    ParallelEvaluation.this.wait();
+            }
+            return true;
+        }
+    }
+
+    private Chunk evaluateChunk(int chunk) {
+        int width = set.size();
+        int from = chunk * chunkSize;
+        int to = Math.min(partitions, from + chunkSize);
+        double[] results = new double[(to - from) * width];
+        BitSet nulls = new BitSet();
+        double[] out = new double[width];
+        BitSet outNulls = new BitSet(width);
+        for (int p = from; p < to; p++) {
+            set.evaluate(functions, data.partition(p), out, outNulls);
+            int offset = (p - from) * width;
+            System.arraycopy(out, 0, results, offset, width);
+            for (int i = outNulls.nextSetBit(0); i >= 0; i = outNulls.nextSetBit(i + 1))
+                nulls.set(offset + i);
+        }
+        return new Chunk(from, results, nulls);
+    }
+
+    private synchronized void done(int chunk, Chunk results) {
+        completed[chunk] = results;
+        notifyAll();
+    }
+
+    private synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    private synchronized boolean isFailed() {
+        return failed;
+    }
+
+    private synchronized Chunk take(int chunk) {
+        Chunk c = completed[chunk];
+        completed[chunk] = null;
+        return c;
+    }
+
+    /**
+     * Delivers the chunks in order as they complete, called by the thread that started the evaluation.
+     */
+    private void deliverAll() {
+        int width = set.size();
+        double[] out = new double[width];
+        for (int chunk = 0; chunk < completed.length; chunk++) {
+            try {
+                ForkJoinPool.managedBlock(new Await(chunk));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for results");
+            }
+            Chunk c = take(chunk);
+            if (c == null)
+                return; // failed
+            int n = Math.min(partitions, c.from + chunkSize) - c.from;
+            for (int i = 0; i < n; i++) {
+                int offset = i * width;
+                System.arraycopy(c.results, offset, out, 0, width);
+                sink.accept(c.from + i, out, c.nulls.get(offset, offset + width));
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps the results of the rule engine expressions of a program during data entry so that a change of some program
+ * rule variables only re-evaluates the expressions that use them.
+ *
+ * Only program rule variables are tracked as inputs, both those used as variables and those read by name by functions
+ * like {@code d2:lastEventDate} or {@code d2:inOrgUnitGroup}. An expression that reads a variable by a name that is
+ * only known when it is evaluated is evaluated again on every change. Expressions that depend on anything else that
+ * changed, like program variables or the functions, have to be re-evaluated using
+ * {@link #evaluate(ExpressionFunctions, ExpressionData)}.
+ *
+ * A session belongs to a single data entry form, it is not meant to be used by multiple threads concurrently.
+ *
+ * @author Jan Bernitt
+ */
+public final class RuleSession {
+
+    private static final int[] NONE = new int[0];
+
+    private final List<Expression> expressions;
+    /**
+     * The indices of the expressions that use a program rule variable by variable name
+     */
+    private final Map<String, int[]> dependentsByVariable;
+    /**
+     * The expressions that read variables by a name only known when they are evaluated so they depend on any variable
+     */
+    private final BitSet dependsOnAny = new BitSet();
+    private final Object[] results;
+    /**
+     * The expressions that have no current result, either because they were not evaluated yet or because their
+     * evaluation failed
+     */
+    private final BitSet stale = new BitSet();
+    /**
+     * The expressions with a result that changed by an evaluation that failed later on, they are reported as changed
+     * by the next evaluation that succeeds
+     */
+    private final BitSet unreported = new BitSet();
+
+    /**
+     * @param expressions the conditions and actions of a program, the index of each expression is its index in the
+     *                    {@link BitSet}s returned and in {@link #getResults()}
+     */
+    public RuleSession(List<Expression> expressions) {
+        this.expressions = List.copyOf(expressions);
+        this.results = new Object[this.expressions.size()];
+        Map<String, List<Integer>> dependents = new HashMap<>();
+        for (int i = 0; i < this.expressions.size(); i++) {
+            Set<String> names = this.expressions.get(i).collectProgramRuleVariableReads();
+            if (names == null) {
+                dependsOnAny.set(i);
+            } else {
+                for (String name : names)
+                    dependents.computeIfAbsent(name, key -> new ArrayList<>()).add(i);
+            }
+        }
+        this.dependentsByVariable = new HashMap<>(dependents.size() * 2);
+        dependents.forEach((name, indices) ->
+                dependentsByVariable.put(name, indices.stream().mapToInt(Integer::intValue).toArray()));
+        stale.set(0, results.length);
+    }
+
+    public int size() {
+        return expressions.size();
+    }
+
+    public List<Expression> getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * @param variableName name of a program rule variable
+     * @return the indices of the expressions that use the variable, this does not include expressions that read
+     * variables by a name only known when they are evaluated
+     */
+    public int[] getDependents(String variableName) {
+        return dependentsByVariable.getOrDefault(variableName, NONE).clone();
+    }
+
+    /**
+     * @param index of the expression
+     * @return the result of the expression's last evaluation, null if it was not evaluated yet
+     */
+    public Object getResult(int index) {
+        return results[index];
+    }
+
+    /**
+     * @return the result of each expression's last evaluation by index
+     */
+    public List<Object> getResults() {
+        return Collections.unmodifiableList(Arrays.asList(results.clone()));
+    }
+
+    /**
+     * Evaluates all expressions.
+     *
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the variables
+     * @return the indices of the expressions with a result that differs from their previous result, this includes
+     * results that changed during an earlier evaluation that failed
+     * @throws IllegalExpressionException when an expression cannot be evaluated with the given data, the expressions
+     * that were not evaluated successfully are evaluated again by the next evaluation
+     */
+    public BitSet evaluate(ExpressionFunctions functions, ExpressionData data) throws IllegalExpressionException {
+        stale.set(0, results.length);
+        return evaluateStale(functions, data);
+    }
+
+    /**
+     * Evaluates only the expressions that use any of the changed variables (and those not evaluated successfully
+     * before or that read variables by a name only known when they are evaluated).
+     *
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the variables, this must contain the changed and the unchanged values
+     * @param changedVariables names of the program rule variables that changed since the previous evaluation
+     * @return the indices of the expressions with a result that differs from their previous result, this includes
+     * results that changed during an earlier evaluation that failed
+     * @throws IllegalExpressionException when an expression cannot be evaluated with the given data, the expressions
+     * that were not evaluated successfully are evaluated again by the next evaluation
+     */
+    public BitSet evaluate(ExpressionFunctions functions, ExpressionData data, Set<String> changedVariables)
+            throws IllegalExpressionException {
+        if (!changedVariables.isEmpty())
+            stale.or(dependsOnAny);
+        for (String name : changedVariables) {
+            int[] dependents = dependentsByVariable.get(name);
+            if (dependents != null)
+                for (int i : dependents)
+                    stale.set(i);
+        }
+        return evaluateStale(functions, data);
+    }
+
+    private BitSet evaluateStale(ExpressionFunctions functions, ExpressionData data) {
+        for (int i = stale.nextSetBit(0); i >= 0; i = stale.nextSetBit(i + 1)) {
+            Object result = expressions.get(i).evaluate(functions, data);
+            if (!Objects.equals(result, results[i]))
+                unreported.set(i);
+            results[i] = result;
+            stale.clear(i);
+        }
+        BitSet changed = (BitSet) unreported.clone();
+        unreported.clear();
+        return changed;
+    }
+}
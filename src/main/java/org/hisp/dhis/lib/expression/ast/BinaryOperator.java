@@ -5,6 +5,8 @@ import org.hisp.dhis.lib.expression.spi.ValueType;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import static java.lang.Double.isInfinite;
 import static java.lang.Double.isNaN;
@@ -81,7 +83,7 @@ public enum BinaryOperator implements Typed
      * @return True for any operator that has two number operands and a number result
      */
     public boolean isArithmetic() {
-        return !isLogic();
+        return returnType == ValueType.NUMBER;
     }
 
     /**
@@ -121,38 +123,56 @@ public enum BinaryOperator implements Typed
     public static Number add(Number left, Number right) {
         return isSpecialDouble(left) || isSpecialDouble(right)
                 ? left.doubleValue() + right.doubleValue()
-                : asBigDecimal(left).add(asBigDecimal(right)).doubleValue();
+                : decimal(left, right, ScaledDecimal::add, BigDecimal::add);
     }
 
     public static Number subtract(Number left, Number right) {
         return isSpecialDouble(left) || isSpecialDouble(right)
                 ? left.doubleValue() - right.doubleValue()
-                : asBigDecimal(left).subtract(asBigDecimal(right)).doubleValue();
+                : decimal(left, right, ScaledDecimal::subtract, BigDecimal::subtract);
     }
 
     public static Number multiply(Number left, Number right) {
         return isSpecialDouble(left) || isSpecialDouble(right)
                 ? left.doubleValue() * right.doubleValue()
-                : asBigDecimal(left).multiply(asBigDecimal(right)).doubleValue();
+                : decimal(left, right, ScaledDecimal::multiply, BigDecimal::multiply);
     }
 
     public static Number divide(Number left, Number right)
     {
         return isSpecialDouble(left) || isSpecialDouble(right) || right.doubleValue() == 0d
                 ? left.doubleValue() / right.doubleValue()
-                : asBigDecimal(left).divide(asBigDecimal(right), MathContext.DECIMAL64).doubleValue();
+                : decimal(left, right, ScaledDecimal::divide, (l, r) -> l.divide(r, MathContext.DECIMAL64));
     }
 
     public static Number modulo(Number left, Number right) {
         return isSpecialDouble(left) || isSpecialDouble(right) || right.doubleValue() == 0d
                         ? left.doubleValue() % right.doubleValue()
-                        : asBigDecimal(left).remainder(asBigDecimal(right)).doubleValue();
+                        : decimal(left, right, ScaledDecimal::remainder, BigDecimal::remainder);
     }
 
     public static Number exp(Number base, Number exponent) {
-        return isSpecialDouble(base) || isSpecialDouble(exponent)
-                ? Math.pow(base.doubleValue(), exponent.doubleValue())
-                : asBigDecimal(base).pow(exponent.intValue(), MathContext.DECIMAL64).doubleValue();
+        if (isSpecialDouble(base) || isSpecialDouble(exponent))
+            return Math.pow(base.doubleValue(), exponent.doubleValue());
+        int n = exponent.intValue();
+        ScaledDecimal b = ScaledDecimal.valueOf(base);
+        ScaledDecimal power = b == null ? null : b.pow(n);
+        return power != null
+                ? power.doubleValue()
+                : asBigDecimal(base).pow(n, MathContext.DECIMAL64).doubleValue();
+    }
+
+    /**
+     * Computes an operation in decimal arithmetic, using {@link ScaledDecimal}s when possible and {@link BigDecimal}s
+     * otherwise.
+     */
+    private static double decimal(Number left, Number right,
+            BiFunction<ScaledDecimal, ScaledDecimal, ScaledDecimal> fast,
+            BiFunction<BigDecimal, BigDecimal, BigDecimal> exact) {
+        ScaledDecimal l = ScaledDecimal.valueOf(left);
+        ScaledDecimal r = l == null ? null : ScaledDecimal.valueOf(right);
+        ScaledDecimal res = r == null ? null : fast.apply(l, r);
+        return res != null ? res.doubleValue() : exact.apply(asBigDecimal(left), asBigDecimal(right)).doubleValue();
     }
 
     private static BigDecimal asBigDecimal(Number n) {
@@ -186,10 +206,34 @@ public enum BinaryOperator implements Typed
         return left || right;
     }
 
+    /**
+     * Same as {@link #or(Boolean, Boolean)} but the right-hand side is only computed when the left-hand side is not
+     * true.
+     *
+     * @param left left-hand side of the operator, maybe null
+     * @param right supplies the right-hand side of the operator, maybe null
+     * @return arguments combined with OR, maybe null
+     */
+    public static Boolean or(Boolean left, Supplier<Boolean> right) {
+        return Boolean.TRUE.equals(left) ? Boolean.TRUE : or(left, right.get());
+    }
+
     public static Boolean and(Boolean left, Boolean right) {
         return left == null || right == null ? null :  left && right;
     }
 
+    /**
+     * Same as {@link #and(Boolean, Boolean)} but the right-hand side is only computed when the left-hand side is not
+     * null. A false left-hand side still needs the right-hand side as false with null is null.
+     *
+     * @param left left-hand side of the operator, maybe null
+     * @param right supplies the right-hand side of the operator, maybe null
+     * @return arguments combined with AND, maybe null
+     */
+    public static Boolean and(Boolean left, Supplier<Boolean> right) {
+        return left == null ? null : and(left, right.get());
+    }
+
     /*
     Comparison Operations
      */
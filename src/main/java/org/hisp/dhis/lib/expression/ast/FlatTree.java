@@ -0,0 +1,259 @@
+package org.hisp.dhis.lib.expression.ast;
+
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.hisp.dhis.lib.expression.spi.Variable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * An immutable, compact form of a post-transformation {@link Node} tree.
+ *
+ * All nodes of the tree are stored in a few parallel arrays (struct of arrays).
+ * Children and modifiers are given as ranges in link arrays (compressed sparse rows) so that subtrees shared between
+ * nodes of the original tree, like the modifiers propagated to multiple data items, are stored once.
+ * Raw values and values are stored once per tree in pools and referenced by index.
+ *
+ * The {@link Node} API is provided by light flyweight views which are created on access and hold nothing but the
+ * tree and the node index. All information the original tree computes on demand is computed once when the flat tree
+ * is created: the value type of each node, the {@link DataItem}s and {@link Variable}s, and the failures of nodes that
+ * cannot be resolved as such, which are thrown again each time the node is resolved.
+ *
+ * @author Jan Bernitt
+ */
+public final class FlatTree {
+
+    private static final NodeType[] NODE_TYPES = NodeType.values();
+    private static final ValueType[] VALUE_TYPES = ValueType.values();
+
+    /**
+     * Creates the flat form of a tree.
+     *
+     * @param root root of the tree to flatten
+     * @return the root of the flat tree
+     */
+    public static Node<?> of(Node<?> root) {
+        return new Builder().build(root).node(0);
+    }
+
+    private final byte[] types;
+    private final byte[] valueTypes;
+    private final int[] raws;
+    private final int[] values;
+    private final int[] childOffsets;
+    private final int[] childLinks;
+    private final int[] modifierOffsets;
+    private final int[] modifierLinks;
+    private final String[] rawPool;
+    private final Object[] valuePool;
+    /**
+     * Sorted indices of the nodes that are a {@link DataItem} or {@link Variable} (or failed to resolve as one)
+     */
+    private final int[] resolvedNodes;
+    private final Object[] resolved;
+
+    private FlatTree(Builder b) {
+        int n = b.nodes.size();
+        types = new byte[n];
+        valueTypes = new byte[n];
+        raws = new int[n];
+        values = new int[n];
+        childOffsets = new int[n + 1];
+        modifierOffsets = new int[n + 1];
+        List<Integer> childLinkList = new ArrayList<>();
+        List<Integer> modifierLinkList = new ArrayList<>();
+        List<Integer> resolvedNodeList = new ArrayList<>();
+        List<Object> resolvedList = new ArrayList<>();
+        Map<String, Integer> rawIndex = new HashMap<>();
+        Map<Object, Integer> valueIndex = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            Node<?> node = b.nodes.get(i);
+            types[i] = (byte) node.getType().ordinal();
+            valueTypes[i] = (byte) node.getValueType().ordinal();
+            raws[i] = node.getRawValue() == null ? -1 : rawIndex.computeIfAbsent(node.getRawValue(), k -> rawIndex.size());
+            Object value = node.getValue();
+            values[i] = value == null ? -1 : valueIndex.computeIfAbsent(value, k -> valueIndex.size());
+            childOffsets[i] = childLinkList.size();
+            node.children().forEach(child -> childLinkList.add(b.indexByNode.get(child)));
+            modifierOffsets[i] = modifierLinkList.size();
+            node.modifiers().forEach(modifier -> modifierLinkList.add(b.indexByNode.get(modifier)));
+            Object item;
+            try {
+                item = node.getType() == NodeType.DATA_ITEM ? node.toDataItem() : node.toVariable();
+            } catch (RuntimeException ex) {
+                item = ex; // thrown again when the flat node is resolved, as the original would
+            }
+            if (item != null) {
+                resolvedNodeList.add(i);
+                resolvedList.add(item);
+            }
+        }
+        childOffsets[n] = childLinkList.size();
+        modifierOffsets[n] = modifierLinkList.size();
+        childLinks = childLinkList.stream().mapToInt(Integer::intValue).toArray();
+        modifierLinks = modifierLinkList.stream().mapToInt(Integer::intValue).toArray();
+        rawPool = new String[rawIndex.size()];
+        rawIndex.forEach((raw, index) -> rawPool[index] = raw);
+        valuePool = new Object[valueIndex.size()];
+        valueIndex.forEach((value, index) -> valuePool[index] = value);
+        resolvedNodes = resolvedNodeList.stream().mapToInt(Integer::intValue).toArray();
+        resolved = resolvedList.toArray();
+    }
+
+    private Node<?> node(int index) {
+        return new FlatNode(this, index);
+    }
+
+    /**
+     * Assigns each node of the original tree an index in pre-order, nodes referenced multiple times only get an index
+     * once.
+     */
+    private static final class Builder {
+
+        final List<Node<?>> nodes = new ArrayList<>();
+        final Map<Node<?>, Integer> indexByNode = new IdentityHashMap<>();
+
+        FlatTree build(Node<?> root) {
+            add(root);
+            return new FlatTree(this);
+        }
+
+        private void add(Node<?> node) {
+            if (indexByNode.containsKey(node)) return;
+            indexByNode.put(node, nodes.size());
+            nodes.add(node);
+            node.children().forEach(this::add);
+            node.modifiers().forEach(this::add);
+        }
+    }
+
+    /**
+     * The flyweight view of a single node in a {@link FlatTree}.
+     */
+    private static final class FlatNode implements Node<Object> {
+
+        private final FlatTree tree;
+        private final int index;
+
+        FlatNode(FlatTree tree, int index) {
+            this.tree = tree;
+            this.index = index;
+        }
+
+        @Override
+        public NodeType getType() {
+            return NODE_TYPES[tree.types[index]];
+        }
+
+        @Override
+        public ValueType getValueType() {
+            return VALUE_TYPES[tree.valueTypes[index]];
+        }
+
+        @Override
+        public String getRawValue() {
+            int raw = tree.raws[index];
+            return raw < 0 ? null : tree.rawPool[raw];
+        }
+
+        @Override
+        public Object getValue() {
+            int value = tree.values[index];
+            return value < 0 ? null : tree.valuePool[value];
+        }
+
+        @Override
+        public void visit(Consumer<Node<?>> visitor, Predicate<Node<?>> filter) {
+            if (filter.test(this)) {
+                visitor.accept(this);
+            }
+            for (int i = tree.childOffsets[index]; i < tree.childOffsets[index + 1]; i++)
+                tree.node(tree.childLinks[i]).visit(visitor, filter);
+        }
+
+        @Override
+        public int size() {
+            return tree.childOffsets[index + 1] - tree.childOffsets[index];
+        }
+
+        @Override
+        public Node<?> child(int index) throws IndexOutOfBoundsException {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException(index);
+            return tree.node(tree.childLinks[tree.childOffsets[this.index] + index]);
+        }
+
+        @Override
+        public Stream<Node<?>> children() {
+            return IntStream.range(0, size()).mapToObj(this::child);
+        }
+
+        @Override
+        public Iterable<Node<?>> modifiers() {
+            return IntStream.range(tree.modifierOffsets[index], tree.modifierOffsets[index + 1])
+                    .mapToObj(i -> tree.node(tree.modifierLinks[i]))
+                    .collect(toList());
+        }
+
+        @Override
+        public DataItem toDataItem() {
+            Object item = resolved();
+            if (item instanceof RuntimeException) throw (RuntimeException) item;
+            return item instanceof DataItem ? (DataItem) item : null;
+        }
+
+        @Override
+        public Variable toVariable() {
+            Object item = resolved();
+            if (item instanceof RuntimeException) throw (RuntimeException) item;
+            return item instanceof Variable ? (Variable) item : null;
+        }
+
+        private Object resolved() {
+            int i = Arrays.binarySearch(tree.resolvedNodes, index);
+            return i < 0 ? null : tree.resolved[i];
+        }
+
+        @Override
+        public Node<Object> addChild(Node<?> child) {
+            throw new UnsupportedOperationException("Flat tree nodes are immutable.");
+        }
+
+        @Override
+        public Node<Object> addModifier(Node<?> modifier) {
+            throw new UnsupportedOperationException("Flat tree nodes are immutable.");
+        }
+
+        @Override
+        public void transform(BiFunction<Node<?>, List<Node<?>>, List<Node<?>>> transformer) {
+            throw new UnsupportedOperationException("Flat tree nodes are immutable.");
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof FlatNode && ((FlatNode) obj).tree == tree && ((FlatNode) obj).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(tree) * 31 + index;
+        }
+
+        @Override
+        public String toString() {
+            return getType() + " " + getRawValue();
+        }
+    }
+}
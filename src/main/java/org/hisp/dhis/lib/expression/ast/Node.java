@@ -44,6 +44,18 @@ public interface Node<T> extends Typed {
     interface Factory {
 
         Node<?> create(NodeType type, String rawValue);
+
+        /**
+         * Creates a node whose raw value is a range of the parsed input. As the input is immutable a node can keep it
+         * and only extract its raw value when it is needed.
+         *
+         * @param input the entire input parsed
+         * @param start index of the first character of the raw value in the input
+         * @param end index after the last character of the raw value in the input
+         */
+        default Node<?> create(NodeType type, String input, int start, int end) {
+            return create(type, input.substring(start, end));
+        }
     }
 
     /**
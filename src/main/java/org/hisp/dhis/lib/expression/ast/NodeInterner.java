@@ -0,0 +1,94 @@
+package org.hisp.dhis.lib.expression.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of canonical subtrees shared between all trees interned with the same table (hash-consing).
+ *
+ * Interning works bottom-up: once all children and modifiers of a node have been replaced by their canonical
+ * instances a node is structurally identical to another node if it is of the same class, type and raw value and has
+ * the very same children and modifiers. As a consequence the {@link org.hisp.dhis.lib.expression.spi.DataItem}s
+ * resolved by shared data item nodes are shared as well.
+ *
+ * Only trees that are no longer transformed may be interned. Subtrees containing {@link NodeType#VARIABLE} nodes are
+ * never shared as validation annotates them with the variable's actual type.
+ *
+ * The table is bounded, once it is full further subtrees are no longer added but existing ones are still shared.
+ * It is thread-safe.
+ *
+ * @author Jan Bernitt
+ */
+public final class NodeInterner {
+
+    private final int capacity;
+    private final Map<List<Object>, Node<?>> canonicalNodes = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity maximum number of distinct subtrees in the table
+     */
+    public NodeInterner(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return number of distinct subtrees in the table
+     */
+    public int size() {
+        return canonicalNodes.size();
+    }
+
+    /**
+     * Replaces all subtrees of the given tree with their canonical instance.
+     *
+     * @param root root of the tree to intern
+     * @return the canonical root, this is either the given root or an identical tree interned earlier
+     */
+    public Node<?> intern(Node<?> root) {
+        Node<?> canonical = canonical(root);
+        return canonical == null ? root : canonical;
+    }
+
+    /**
+     * @return the canonical node or null if the subtree cannot be shared
+     */
+    private Node<?> canonical(Node<?> node) {
+        if (!(node instanceof Nodes.AbstractNode))
+            return null;
+        boolean shareable = node.getType() != NodeType.VARIABLE;
+        boolean changed = false;
+        List<Node<?>> children = new ArrayList<>(node.size());
+        for (int i = 0; i < node.size(); i++) {
+            Node<?> child = node.child(i);
+            Node<?> canonical = canonical(child);
+            shareable &= canonical != null;
+            children.add(canonical == null ? child : canonical);
+            changed |= canonical != null && canonical != child;
+        }
+        List<Node<?>> modifiers = new ArrayList<>();
+        for (Node<?> modifier : node.modifiers()) {
+            Node<?> canonical = canonical(modifier);
+            shareable &= canonical != null;
+            modifiers.add(canonical == null ? modifier : canonical);
+            changed |= canonical != null && canonical != modifier;
+        }
+        if (changed) {
+            ((Nodes.ComplexNode<?>) node).replaceChildren(children);
+            if (!modifiers.isEmpty())
+                ((Nodes.ModifiedNode<?>) node).replaceModifiers(modifiers);
+        }
+        if (!shareable)
+            return null;
+        List<Object> key = Arrays.asList(node.getClass(), node.getType(), node.getRawValue(), children, modifiers);
+        Node<?> canonical = canonicalNodes.get(key);
+        if (canonical != null)
+            return canonical;
+        if (canonicalNodes.size() >= capacity)
+            return node;
+        canonical = canonicalNodes.putIfAbsent(key, node);
+        return canonical == null ? node : canonical;
+    }
+}
@@ -111,12 +111,12 @@ public interface Nodes {
         }
 
         @Override
-        public final String getRawValue() {
+        public String getRawValue() {
             return rawValue;
         }
 
         @Override
-        public final T getValue()
+        public T getValue()
         {
             return value;
         }
@@ -180,6 +180,10 @@ public interface Nodes {
             children.forEach(c -> c.transform(transformer));
         }
 
+        final void replaceChildren(List<Node<?>> children) {
+            this.children = children;
+        }
+
         @Override
         public final void visit(Consumer<Node<?>> visitor, Predicate<Node<?>> filter) {
             super.visit(visitor, filter);
@@ -269,6 +273,11 @@ public interface Nodes {
             return modifiers;
         }
 
+        final void replaceModifiers(List<Node<?>> modifiers) {
+            this.modifiers.clear();
+            this.modifiers.addAll(modifiers);
+        }
+
         final QueryModifiers getQueryModifiers() {
             QueryModifiers.QueryModifiersBuilder mods = QueryModifiers.builder();
             java.util.function.BinaryOperator<Integer> sum = (a, b) -> a == null ? b : a + b;
@@ -292,9 +301,9 @@ public interface Nodes {
     final class DataItemNode extends ModifiedNode<DataItemType> {
 
         /**
-         * Just to cache the result
+         * Just to cache the result, as {@link DataItem} is immutable a concurrent computation of it is harmless
          */
-        private DataItem value;
+        private volatile DataItem value;
 
         public DataItemNode(NodeType type, String rawValue) {
             super(type, rawValue, DataItemType::fromSymbol, rethrowAs(DataItemType.class, DataItemType::getSymbol));
@@ -307,7 +316,8 @@ public interface Nodes {
 
         @Override
         public DataItem toDataItem() {
-            if (value != null) return value;
+            DataItem cached = value;
+            if (cached != null) return cached;
             List<List<ID>> idGroups = new ArrayList<>(List.of(List.of(), List.of(), List.of()));
             DataItemType itemType = getValue();
             for (int i = 0; i < size(); i++) {
@@ -325,8 +335,9 @@ public interface Nodes {
                 }
                 idGroups.set(i, ids);
             }
-            value = new DataItem(itemType, idGroups.get(0).get(0), idGroups.get(1), idGroups.get(2), getQueryModifiers());
-            return value;
+            cached = new DataItem(itemType, idGroups.get(0).get(0), idGroups.get(1), idGroups.get(2), getQueryModifiers());
+            value = cached;
+            return cached;
         }
     }
 
@@ -348,10 +359,60 @@ public interface Nodes {
 
     class TextNode extends SimpleNode<String> {
 
+        /**
+         * Creates text nodes that extract their raw value from the parsed input only when it is first needed.
+         */
+        public static final Node.Factory FACTORY = new Node.Factory() {
+            @Override
+            public Node<?> create(NodeType type, String rawValue) {
+                return new TextNode(type, rawValue);
+            }
+
+            @Override
+            public Node<?> create(NodeType type, String input, int start, int end) {
+                return new TextNode(type, input, start, end);
+            }
+        };
+
+        private final String input;
+        private final int start;
+        private final int end;
+        /**
+         * The raw value once extracted from the input, as {@link String} is immutable a concurrent extraction is
+         * harmless
+         */
+        private String extracted;
+
         public TextNode(NodeType type, String rawValue) {
             super(type, rawValue, Function.identity());
+            this.input = null;
+            this.start = 0;
+            this.end = 0;
+        }
+
+        private TextNode(NodeType type, String input, int start, int end) {
+            super(type, null, Function.identity());
+            this.input = input;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public final String getRawValue() {
+            if (input == null)
+                return super.getRawValue();
+            String raw = extracted;
+            if (raw == null) {
+                raw = input.substring(start, end);
+                extracted = raw;
+            }
+            return raw;
         }
 
+        @Override
+        public final String getValue() {
+            return getRawValue();
+        }
     }
 
     final class VariableNode extends ModifiedNode<VariableType> {
@@ -0,0 +1,227 @@
+package org.hisp.dhis.lib.expression.ast;
+
+import java.math.BigDecimal;
+
+/**
+ * A decimal number given as a {@code long} unscaled value and a non-negative scale, the value being
+ * {@code unscaled * 10^-scale}.
+ *
+ * This is the fast path of the exact decimal arithmetic of {@link BinaryOperator}s for the common case of integers and
+ * numbers with few decimals. Each operation either has the very same result as the equivalent {@link BigDecimal}
+ * operation in {@link java.math.MathContext#DECIMAL64} or returns null in which case the caller has to fall back to
+ * {@link BigDecimal}.
+ *
+ * @author Jan Bernitt
+ */
+public final class ScaledDecimal {
+
+    /**
+     * Largest scale a double is probed for when it is converted
+     */
+    private static final int MAX_SCALE = 9;
+
+    /**
+     * Numbers up to this magnitude have at most 16 significant digits and are therefore not rounded by
+     * {@link java.math.MathContext#DECIMAL64}. Also, a double below this magnitude is the only double a decimal with
+     * the same scale can round to.
+     */
+    private static final long MAX_UNSCALED = 1L << 52;
+
+    /**
+     * Exact powers of ten, in double up to 10^22 and in long up to 10^18
+     */
+    private static final double[] DOUBLE_POW10 = new double[23];
+    private static final long[] LONG_POW10 = new long[19];
+
+    static {
+        DOUBLE_POW10[0] = 1d;
+        LONG_POW10[0] = 1L;
+        for (int i = 1; i < DOUBLE_POW10.length; i++)
+            DOUBLE_POW10[i] = DOUBLE_POW10[i - 1] * 10d;
+        for (int i = 1; i < LONG_POW10.length; i++)
+            LONG_POW10[i] = LONG_POW10[i - 1] * 10L;
+    }
+
+    private static final ScaledDecimal ONE = new ScaledDecimal(1L, 0);
+
+    private final long unscaled;
+    private final int scale;
+
+    private ScaledDecimal(long unscaled, int scale) {
+        this.unscaled = unscaled;
+        this.scale = scale;
+    }
+
+    /**
+     * Converts a number to its decimal value as given by its {@link Object#toString()} (which is what
+     * {@link BigDecimal} would do).
+     *
+     * @param n a number, not null
+     * @return the decimal or null if the number is not an integer type or a double with a short decimal form
+     */
+    public static ScaledDecimal valueOf(Number n) {
+        if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte) {
+            long value = n.longValue();
+            return Math.abs(value) < MAX_UNSCALED ? new ScaledDecimal(value, 0) : null;
+        }
+        return n instanceof Double ? valueOf(n.doubleValue()) : null;
+    }
+
+    /**
+     * Finds the decimal with the smallest scale that rounds to the given double. As long as the unscaled value is
+     * below {@link #MAX_UNSCALED} this decimal is unique and equal to the one given by {@link Double#toString(double)}.
+     *
+     * @param d any double
+     * @return the decimal or null if the double has no decimal form with up to {@link #MAX_SCALE} decimals
+     */
+    public static ScaledDecimal valueOf(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d))
+            return null;
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            double unscaled = Math.rint(d * DOUBLE_POW10[scale]);
+            if (Math.abs(unscaled) >= MAX_UNSCALED)
+                return null;
+            if (unscaled / DOUBLE_POW10[scale] == d)
+                return new ScaledDecimal((long) unscaled, scale);
+        }
+        return null;
+    }
+
+    public ScaledDecimal add(ScaledDecimal other) {
+        try {
+            int s = Math.max(scale, other.scale);
+            return new ScaledDecimal(Math.addExact(rescale(s), other.rescale(s)), s);
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    public ScaledDecimal subtract(ScaledDecimal other) {
+        try {
+            int s = Math.max(scale, other.scale);
+            return new ScaledDecimal(Math.subtractExact(rescale(s), other.rescale(s)), s);
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    public ScaledDecimal multiply(ScaledDecimal other) {
+        try {
+            return new ScaledDecimal(Math.multiplyExact(unscaled, other.unscaled), scale + other.scale);
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link BigDecimal#divide(BigDecimal, java.math.MathContext)} with
+     * {@link java.math.MathContext#DECIMAL64} but only for quotients that are exact within 16 digits.
+     *
+     * @param other divisor, not zero
+     * @return the quotient or null if it is not a short exact decimal
+     */
+    public ScaledDecimal divide(ScaledDecimal other) {
+        try {
+            for (int k = 0; k <= MAX_SCALE; k++) {
+                long dividend = Math.multiplyExact(unscaled, LONG_POW10[k]);
+                if (dividend % other.unscaled == 0) {
+                    long quotient = dividend / other.unscaled;
+                    int s = scale - other.scale + k;
+                    if (s < 0) {
+                        if (-s >= LONG_POW10.length) return null;
+                        quotient = Math.multiplyExact(quotient, LONG_POW10[-s]);
+                        s = 0;
+                    }
+                    return Math.abs(quotient) < MAX_UNSCALED ? new ScaledDecimal(quotient, s) : null;
+                }
+            }
+            return null;
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link BigDecimal#remainder(BigDecimal)}, the result has the sign of this dividend.
+     *
+     * @param other divisor, not zero
+     * @return the remainder
+     */
+    public ScaledDecimal remainder(ScaledDecimal other) {
+        try {
+            int s = Math.max(scale, other.scale);
+            return new ScaledDecimal(rescale(s) % other.rescale(s), s);
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link BigDecimal#pow(int, java.math.MathContext)} with {@link java.math.MathContext#DECIMAL64} but only
+     * for powers that are exact within 16 digits.
+     *
+     * @param n the exponent
+     * @return the power or null if the exponent is negative or the power is not a short exact decimal
+     */
+    public ScaledDecimal pow(int n) {
+        if (n < 0 || n > 64)
+            return null;
+        ScaledDecimal power = ONE;
+        for (int i = 0; i < n; i++) {
+            power = power.multiply(this);
+            if (power == null || Math.abs(power.unscaled) >= MAX_UNSCALED)
+                return null;
+        }
+        return power;
+    }
+
+    /**
+     * Same as {@link BigDecimal#setScale(int, java.math.RoundingMode)} with {@link java.math.RoundingMode#HALF_UP}
+     * except that a value that needs no rounding keeps its scale.
+     *
+     * @param newScale number of decimals to keep
+     * @return the rounded value or null if the new scale is negative
+     */
+    public ScaledDecimal roundHalfUp(int newScale) {
+        if (newScale < 0)
+            return null;
+        if (newScale >= scale)
+            return this;
+        int drop = scale - newScale;
+        if (drop >= LONG_POW10.length)
+            return new ScaledDecimal(0L, newScale);
+        long divisor = LONG_POW10[drop];
+        long rounded = unscaled / divisor;
+        long rest = Math.abs(unscaled % divisor);
+        if (rest >= divisor - rest)
+            rounded += Long.signum(unscaled);
+        return new ScaledDecimal(rounded, newScale);
+    }
+
+    /**
+     * @return same as {@link BigDecimal#intValue()}, the integral part truncated to the lowest 32 bits
+     */
+    public int intValue() {
+        return (int) (scale < LONG_POW10.length ? unscaled / LONG_POW10[scale] : 0L);
+    }
+
+    /**
+     * @return same as {@link BigDecimal#doubleValue()}, the closest double
+     */
+    public double doubleValue() {
+        if (Math.abs(unscaled) < MAX_UNSCALED && scale < DOUBLE_POW10.length)
+            return unscaled / DOUBLE_POW10[scale];
+        return BigDecimal.valueOf(unscaled, scale).doubleValue();
+    }
+
+    private long rescale(int newScale) {
+        int by = newScale - scale;
+        if (by >= LONG_POW10.length) throw new ArithmeticException("overflow");
+        return Math.multiplyExact(unscaled, LONG_POW10[by]);
+    }
+
+    @Override
+    public String toString() {
+        return BigDecimal.valueOf(unscaled, scale).toPlainString();
+    }
+}
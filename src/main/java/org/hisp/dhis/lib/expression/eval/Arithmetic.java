@@ -0,0 +1,34 @@
+package org.hisp.dhis.lib.expression.eval;
+
+/**
+ * The arithmetic used to evaluate the arithmetic operators ({@code + - * / % ^}).
+ *
+ * @author Jan Bernitt
+ */
+public enum Arithmetic {
+
+    /**
+     * Operands are converted to {@link java.math.BigDecimal}s with {@link java.math.MathContext#DECIMAL64} precision
+     * so that results are rounded like a user would expect them to be in decimal.
+     * Results are converted back to double. This is the default.
+     */
+    DECIMAL64,
+
+    /**
+     * Plain IEEE 754 double arithmetic. Nested arithmetic operations are computed without boxing or any intermediate
+     * conversions. This is considerably faster but the results may differ from {@link #DECIMAL64}:
+     * <ul>
+     *     <li>decimal fractions that have no exact binary representation are not rounded to the expected result,
+     *     for example {@code 0.1 + 0.2} is {@code 0.30000000000000004} instead of {@code 0.3}</li>
+     *     <li>division is rounded to the nearest double instead of 16 decimal digits</li>
+     *     <li>modulo of decimal fractions is inexact, for example {@code 0.3 % 0.1} is {@code 0.09999999999999998}
+     *     instead of {@code 0}</li>
+     *     <li>exponents are not truncated to integers, for example {@code 4 ^ 0.5} is {@code 2} instead of
+     *     {@code 1}</li>
+     *     <li>numbers with more than 16 significant digits are not rounded to 16 digits before the operation</li>
+     *     <li>a null operand of a nested arithmetic operation fails with an error naming the null operand instead of
+     *     the arithmetic operation containing it</li>
+     * </ul>
+     */
+    DOUBLE
+}
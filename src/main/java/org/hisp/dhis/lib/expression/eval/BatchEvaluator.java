@@ -0,0 +1,30 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.spi.ColumnarData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+
+import java.util.BitSet;
+
+/**
+ * The compiled form of a number expression that calculates its result for many rows of data at once.
+ *
+ * A {@link BatchEvaluator} does not have state of its own. It can be used by multiple threads concurrently.
+ *
+ * @author Jan Bernitt
+ */
+@FunctionalInterface
+public interface BatchEvaluator {
+
+    /**
+     * Computes the same result for each row as {@link Evaluator#evaluate} would for the values of that row.
+     *
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items per row
+     * @param out the result values, rows with a null result are {@link Double#NaN}
+     * @param nulls when not null, the bits of the rows with a null result are set, all others are cleared
+     * @throws IllegalExpressionException when the expression cannot be evaluated for the values of a row
+     */
+    void evaluate(ExpressionFunctions functions, ColumnarData data, double[] out, BitSet nulls)
+            throws IllegalExpressionException;
+}
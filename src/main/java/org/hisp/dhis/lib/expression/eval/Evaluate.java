@@ -1,8 +1,8 @@
 package org.hisp.dhis.lib.expression.eval;
 
+import org.hisp.dhis.lib.expression.ast.NamedFunction;
 import org.hisp.dhis.lib.expression.ast.Node;
 import org.hisp.dhis.lib.expression.ast.NodeType;
-import org.hisp.dhis.lib.expression.ast.Nodes;
 import org.hisp.dhis.lib.expression.ast.VariableType;
 import org.hisp.dhis.lib.expression.spi.DataItem;
 import org.hisp.dhis.lib.expression.spi.DataItemType;
@@ -13,13 +13,16 @@ import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
 import org.hisp.dhis.lib.expression.spi.Issues;
 import org.hisp.dhis.lib.expression.spi.ValueType;
 import org.hisp.dhis.lib.expression.spi.Variable;
-import org.hisp.dhis.lib.expression.spi.VariableValue;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
@@ -40,9 +43,86 @@ public final class Evaluate {
     Main functions to compute a result
      */
 
+    /**
+     * Compiles and evaluates the tree once. Trees that are evaluated repeatedly should be compiled once using
+     * {@link #compile(Node)} and the {@link Evaluator} should be kept.
+     */
     public static Object evaluate(Node<?> root, ExpressionFunctions functions, ExpressionData data) throws IllegalExpressionException {
-        Object value = root.eval(new EvaluateFunction(functions, data));
-        return value instanceof VariableValue ? ((VariableValue) value).valueOrDefault() : value;
+        return compile(root).evaluate(functions, data);
+    }
+
+    /**
+     * Compiles the tree once so that it can be evaluated repeatedly without interpreting the tree again.
+     * Before the tree is compiled it is simplified, for example operations on literals are computed once.
+     *
+     * @param root the tree to compile
+     * @return the compiled form of the tree
+     */
+    public static Evaluator compile(Node<?> root) {
+        return compile(root, Arithmetic.DECIMAL64);
+    }
+
+    /**
+     * @param root the tree to compile
+     * @param arithmetic the arithmetic to use for arithmetic operators
+     * @return the compiled form of the tree
+     */
+    public static Evaluator compile(Node<?> root, Arithmetic arithmetic) {
+        return EvaluateCompiler.compile(EvaluateOptimizer.optimize(root, arithmetic), arithmetic,
+                dataItemSlots(root));
+    }
+
+    /**
+     * Compiles the tree to a JVM class. This takes longer than {@link #compile(Node)} and should be used for
+     * expressions that are evaluated very often. Runtimes before Java 15 cannot unload such classes, there this
+     * compiles the tree the same way {@link #compile(Node)} does.
+     *
+     * @param root the tree to compile
+     * @return the compiled form of the tree
+     */
+    public static Evaluator compileToBytecode(Node<?> root) {
+        return EvaluateBytecode.compile(EvaluateOptimizer.optimize(root, Arithmetic.DECIMAL64), dataItemSlots(root));
+    }
+
+    /**
+     * Compiles the tree to compute its number result for many rows of data at once.
+     *
+     * @param root the tree to compile
+     * @param arithmetic the arithmetic to use for arithmetic operators
+     * @return the compiled form of the tree
+     */
+    public static BatchEvaluator compileBatch(Node<?> root, Arithmetic arithmetic) {
+        return EvaluateBatch.compile(EvaluateOptimizer.optimize(root, arithmetic), arithmetic);
+    }
+
+    /**
+     * Compiles many trees to compute all their number results for the same data at once. Subtrees that occur in more
+     * than one of the trees are only computed once per evaluation.
+     *
+     * Data item values can be given by slot in the order of {@link #collectDataItemSlots(List)} for the same trees.
+     *
+     * @param roots the trees to compile, the index of each tree is the index of its result
+     * @param arithmetic the arithmetic to use for arithmetic operators
+     * @return the compiled form of the trees
+     */
+    public static SetEvaluator compileSet(List<? extends Node<?>> roots, Arithmetic arithmetic) {
+        List<Node<?>> optimized = roots.stream()
+                .map(root -> EvaluateOptimizer.optimize(root, arithmetic))
+                .collect(Collectors.toList());
+        return EvaluateCompiler.compileSet(optimized, arithmetic, dataItemSlots(collectDataItemSlots(roots)));
+    }
+
+    /**
+     * Inlines the trees of referenced indicators for {@code N{uid}} data items. The inlined tree evaluates the
+     * referenced expressions directly but is still described as the original tree.
+     *
+     * @param root the tree to inline references in, it is not changed
+     * @param resolver provides the tree of a referenced indicator, null when the indicator is not known
+     * @return the tree with inlined references
+     * @throws IllegalExpressionException when indicators reference each other in a cycle
+     */
+    public static Node<?> inline(Node<?> root, Function<ID, Node<?>> resolver) {
+        return EvaluateInliner.inline(root, resolver);
     }
 
     public static String normalise(Node<?> root) {
@@ -59,19 +139,12 @@ public final class Evaluate {
 
     public static void validate(Node<?> root, ExpressionData data, List<NodeValidator> validators, Set<ValueType> resultTypes) {
         Issues issues = new Issues();
-        // enhance AST with variable type information
-        root.visit(NodeType.VARIABLE, variable -> {
-            VariableValue value = data.getProgramRuleVariableValues().get(variable.child(0).getRawValue());
-            if (value != null) {
-                ((Nodes.VariableNode) variable).setActualValueType(value.valueType());
-            }
-        });
-
-        // type check
-        root.visit(new TypeCheckingConsumer(issues));
+        // type check, variable types are looked up in the data
+        TypeCheckingConsumer typeChecking = new TypeCheckingConsumer(issues, data);
+        root.visit(typeChecking);
 
         // check result type
-        ValueType actualResultType = root.getValueType();
+        ValueType actualResultType = typeChecking.typeOf(root);
         if (actualResultType != ValueType.MIXED && actualResultType != ValueType.SAME && !resultTypes.contains(actualResultType)) {
             issues.addError(root, format("Expression must result in one of the types %s but was: %s",
                     resultTypes.stream().map(ValueType::name).collect(Collectors.joining(", ")), actualResultType));
@@ -91,6 +164,49 @@ public final class Evaluate {
         return root.aggregate(new HashSet<>(), Node::toDataItem, Set::add, node -> node.getType() == NodeType.DATA_ITEM);
     }
 
+    /**
+     * Lists the data items in the order of their slots. Values can be given by slot using
+     * {@link ExpressionData#getDataItemSlotValues()} when evaluating an {@link Evaluator} compiled from the same tree.
+     *
+     * @param root the tree to evaluate
+     * @return the distinct data items of the tree, the index of each item is its slot
+     */
+    public static List<DataItem> collectDataItemSlots(Node<?> root) {
+        return collectDataItemSlots(List.of(root));
+    }
+
+    /**
+     * Lists the data items of all trees in the order of their slots for a {@link SetEvaluator} compiled from the same
+     * trees.
+     *
+     * @param roots the trees to evaluate together
+     * @return the distinct data items of all trees, the index of each item is its slot
+     */
+    public static List<DataItem> collectDataItemSlots(List<? extends Node<?>> roots) {
+        Set<DataItem> items = new LinkedHashSet<>();
+        for (Node<?> root : roots)
+            root.aggregate(items, node -> {
+                try {
+                    return node.toDataItem();
+                } catch (RuntimeException ex) {
+                    // such an item fails when it is evaluated
+                    return null;
+                }
+            }, Set::add, node -> node.getType() == NodeType.DATA_ITEM);
+        return new ArrayList<>(items);
+    }
+
+    private static Map<DataItem, Integer> dataItemSlots(Node<?> root) {
+        return dataItemSlots(collectDataItemSlots(root));
+    }
+
+    private static Map<DataItem, Integer> dataItemSlots(List<DataItem> items) {
+        Map<DataItem, Integer> slots = new HashMap<>(items.size() * 2);
+        for (int i = 0; i < items.size(); i++)
+            slots.put(items.get(i), i);
+        return slots;
+    }
+
     public static Set<DataItem> collectDataItems(Node<?> root, DataItemType... ofTypes) {
         //TODO need to add subExpression modifier SQL in case that is present
         EnumSet<DataItemType> filter = EnumSet.of(ofTypes[0], ofTypes);
@@ -103,6 +219,36 @@ public final class Evaluate {
                 node -> node.getType() == NodeType.VARIABLE && node.getValue() == type);
     }
 
+    /**
+     * Lists the program rule variables the tree reads. These are the variables used as such as well as those that
+     * functions read by name, like {@code d2:lastEventDate('var')} does for {@code var} and {@code d2:inOrgUnitGroup}
+     * does for {@code org_unit}.
+     *
+     * @param root the tree to evaluate
+     * @return the names of the program rule variables read, null when a variable is read by a name that is only
+     * known when the tree is evaluated
+     */
+    public static Set<String> collectProgramRuleVariableReads(Node<?> root) {
+        Set<String> names = collectVariableNames(root, VariableType.PROGRAM_RULE);
+        List<Node<?>> fns = root.aggregate(new ArrayList<>(), Function.identity(), List::add,
+                node -> node.getType() == NodeType.FUNCTION
+                        && (node.getValue() == NamedFunction.d2_inOrgUnitGroup
+                        || node.getValue() == NamedFunction.d2_lastEventDate));
+        for (Node<?> fn : fns) {
+            if (fn.getValue() == NamedFunction.d2_inOrgUnitGroup) {
+                names.add("org_unit");
+            } else {
+                Node<?> name = fn.child(0);
+                while (name.getType() == NodeType.ARGUMENT || name.getType() == NodeType.PAR)
+                    name = name.child(0);
+                if (name.getType() != NodeType.STRING)
+                    return null;
+                names.add((String) name.getValue());
+            }
+        }
+        return names;
+    }
+
     public static Set<Variable> collectVariables(Node<?> root, VariableType type) {
         return root.aggregate(new HashSet<>(), Node::toVariable, Set::add,
                 node -> node.getType() == NodeType.VARIABLE && node.getValue() == type);
@@ -0,0 +1,320 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.Typed;
+import org.hisp.dhis.lib.expression.ast.UnaryOperator;
+import org.hisp.dhis.lib.expression.spi.ColumnarData;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+
+import java.util.AbstractMap;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+
+import static java.lang.String.format;
+
+/**
+ * Compiles a {@link Node} tree into a {@link BatchEvaluator} that computes the arithmetic of the expression
+ * column-at-a-time.
+ *
+ * Number literals, data items that have a {@link ColumnarData.Column} and the arithmetic operators on them are
+ * computed for all rows at once on arrays of primitive doubles. Any other subtree, like a function call, is evaluated
+ * row by row with the closures of the {@link EvaluateCompiler} reading the values of the row directly from the columns.
+ *
+ * Rows for which the column computation cannot give the same result as the {@link Evaluator}, most notably rows where
+ * an operand of an arithmetic operator is null which is an error, are computed by evaluating the whole tree for that
+ * row so that they have the very same result or error.
+ *
+ * @author Jan Bernitt
+ */
+final class EvaluateBatch implements BatchEvaluator {
+
+    private final Arithmetic arithmetic;
+    private final Node<?> root;
+    private final Evaluator rowwise;
+    private final Op op;
+
+    private EvaluateBatch(Node<?> root, Arithmetic arithmetic) {
+        this.arithmetic = arithmetic;
+        this.root = root;
+        this.rowwise = EvaluateCompiler.compile(root, arithmetic);
+        this.op = compileOp(root);
+    }
+
+    static BatchEvaluator compile(Node<?> root, Arithmetic arithmetic) {
+        return new EvaluateBatch(root, arithmetic);
+    }
+
+    /**
+     * The compiled form of a node computing a column of numbers.
+     */
+    @FunctionalInterface
+    private interface Op {
+
+        Vector eval(Batch batch);
+    }
+
+    /**
+     * A column of numbers computed for all rows or a constant that is the same for all rows.
+     */
+    private static final class Vector {
+
+        private static final BitSet NONE = new BitSet(0);
+
+        final boolean constant;
+        final double[] values;
+        final BitSet nulls;
+
+        Vector(double constant) {
+            this.constant = true;
+            this.values = new double[] { constant };
+            this.nulls = NONE;
+        }
+
+        Vector(double[] values, BitSet nulls) {
+            this.constant = false;
+            this.values = values;
+            this.nulls = nulls == null ? NONE : nulls;
+        }
+
+        double valueAt(int row) {
+            return values[constant ? 0 : row];
+        }
+    }
+
+    /**
+     * The state of a single batch evaluation.
+     */
+    private static final class Batch {
+
+        final ExpressionFunctions functions;
+        final Map<DataItem, ColumnarData.Column> columns;
+        final boolean hasColumns;
+        final int rows;
+        final RowValues row;
+        final ExpressionData rowData;
+        /**
+         * The rows that are computed by evaluating the whole tree for the row
+         */
+        final BitSet rowwise = new BitSet();
+
+        Batch(ExpressionFunctions functions, ColumnarData data) {
+            ExpressionData common = data.getCommon();
+            this.functions = functions;
+            this.columns = data.getColumns();
+            // program rule variables take precedence over data items
+            this.hasColumns = common.getProgramRuleVariableValues().isEmpty();
+            this.rows = data.getRows();
+            this.row = new RowValues(columns, common.getDataItemValues());
+            this.rowData = common.toBuilder().dataItemValues(row).dataItemSlotValues(null).build();
+        }
+    }
+
+    /**
+     * The data item values of the current row of a batch.
+     */
+    private static final class RowValues extends AbstractMap<DataItem, Object> {
+
+        private final Map<DataItem, ColumnarData.Column> columns;
+        private final Map<DataItem, Object> common;
+        int index;
+
+        RowValues(Map<DataItem, ColumnarData.Column> columns, Map<DataItem, Object> common) {
+            this.columns = columns;
+            this.common = common;
+        }
+
+        @Override
+        public Object get(Object key) {
+            ColumnarData.Column column = columns.get(key);
+            if (column == null)
+                return common.get(key);
+            return column.getNulls() != null && column.isNull(index) ? null : column.getValues()[index];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return columns.containsKey(key) || common.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<DataItem, Object>> entrySet() {
+            Map<DataItem, Object> values = new HashMap<>(common);
+            columns.keySet().forEach(key -> values.put(key, get(key)));
+            return values.entrySet();
+        }
+    }
+
+    @Override
+    public void evaluate(ExpressionFunctions functions, ColumnarData data, double[] out, BitSet nulls) {
+        int rows = data.getRows();
+        if (out.length < rows)
+            throw new IllegalArgumentException(format("Output has %d values but %d rows are evaluated", out.length, rows));
+        if (nulls != null)
+            nulls.clear();
+        Batch batch = new Batch(functions, data);
+        Vector result = op.eval(batch);
+        for (int i = 0; i < rows; i++) {
+            Double value = batch.rowwise.get(i)
+                    ? evaluateRow(batch, i)
+                    : result.nulls.get(i) ? null : result.valueAt(i);
+            if (value == null) {
+                out[i] = Double.NaN;
+                if (nulls != null)
+                    nulls.set(i);
+            } else {
+                out[i] = value;
+            }
+        }
+    }
+
+    private Double evaluateRow(Batch batch, int row) {
+        batch.row.index = row;
+        Object value = rowwise.evaluate(batch.functions, batch.rowData);
+        try {
+            return Typed.toNumberTypeCoercion(value);
+        } catch (RuntimeException ex) {
+            throw EvaluateCompiler.coercionFailed(ex, value, root, Double.class);
+        }
+    }
+
+    private Op compileOp(Node<?> node) {
+        switch (node.getType()) {
+            case PAR:
+            case ARGUMENT: return compileOp(node.child(0));
+            case NUMBER:
+            case INTEGER: {
+                Vector value = new Vector(((Number) node.getValue()).doubleValue());
+                return batch -> value;
+            }
+            case DATA_ITEM: return compileColumn(node);
+            case UNARY_OPERATOR: return compileUnaryOperator(node);
+            case BINARY_OPERATOR: return compileBinaryOperator(node);
+            default: return compileRowwise(node);
+        }
+    }
+
+    private Op compileColumn(Node<?> item) {
+        Op rowwise = compileRowwise(item);
+        DataItem dataItem;
+        try {
+            dataItem = item.toDataItem();
+        } catch (RuntimeException ex) {
+            return rowwise;
+        }
+        return batch -> {
+            ColumnarData.Column column = batch.hasColumns ? batch.columns.get(dataItem) : null;
+            return column == null ? rowwise.eval(batch) : new Vector(column.getValues(), column.getNulls());
+        };
+    }
+
+    private Op compileUnaryOperator(Node<?> operator) {
+        UnaryOperator op = (UnaryOperator) operator.getValue();
+        if (op == UnaryOperator.PLUS)
+            return compileOp(operator.child(0));
+        if (op != UnaryOperator.MINUS)
+            return compileRowwise(operator);
+        Op operand = compileOp(operator.child(0));
+        return batch -> {
+            Vector value = operand.eval(batch);
+            if (value.constant)
+                return new Vector(-value.valueAt(0));
+            double[] values = new double[batch.rows];
+            for (int i = 0; i < values.length; i++)
+                values[i] = -value.values[i];
+            // negation of null is null
+            return new Vector(values, value.nulls);
+        };
+    }
+
+    private Op compileBinaryOperator(Node<?> operator) {
+        BinaryOperator op = (BinaryOperator) operator.getValue();
+        if (!op.isArithmetic())
+            return compileRowwise(operator);
+        Op left = compileOp(operator.child(0));
+        Op right = compileOp(operator.child(1));
+        if (arithmetic == Arithmetic.DOUBLE) {
+            DoubleBinaryOperator f = EvaluateCompiler.toDoubleOperator(op);
+            return batch -> applyDouble(batch, left.eval(batch), right.eval(batch), f);
+        }
+        BiFunction<Number, Number, Number> f = EvaluateCompiler.toDecimalOperator(op);
+        return batch -> applyDecimal(batch, left.eval(batch), right.eval(batch), f);
+    }
+
+    private static Vector applyDouble(Batch batch, Vector left, Vector right, DoubleBinaryOperator f) {
+        if (left.constant && right.constant)
+            return new Vector(f.applyAsDouble(left.valueAt(0), right.valueAt(0)));
+        BitSet nulls = nullOperands(batch, left, right);
+        double[] values = new double[batch.rows];
+        // rows with null operands are computed as well, they are evaluated row by row anyway
+        for (int i = 0; i < values.length; i++)
+            values[i] = f.applyAsDouble(left.valueAt(i), right.valueAt(i));
+        return new Vector(values, nulls);
+    }
+
+    private static Vector applyDecimal(Batch batch, Vector left, Vector right, BiFunction<Number, Number, Number> f) {
+        BitSet nulls = nullOperands(batch, left, right);
+        boolean constant = left.constant && right.constant;
+        double[] values = new double[constant ? 1 : batch.rows];
+        for (int i = 0; i < values.length; i++) {
+            if (!nulls.get(i)) {
+                try {
+                    values[i] = f.apply(left.valueAt(i), right.valueAt(i)).doubleValue();
+                } catch (RuntimeException ex) {
+                    if (constant) {
+                        batch.rowwise.set(0, batch.rows);
+                    } else {
+                        batch.rowwise.set(i);
+                    }
+                }
+            }
+        }
+        return constant ? new Vector(values[0]) : new Vector(values, nulls);
+    }
+
+    /**
+     * A null operand of an arithmetic operator is an error, such rows are evaluated row by row to get the same error.
+     */
+    private static BitSet nullOperands(Batch batch, Vector left, Vector right) {
+        BitSet nulls = (BitSet) left.nulls.clone();
+        nulls.or(right.nulls);
+        batch.rowwise.or(nulls);
+        return nulls;
+    }
+
+    /**
+     * Evaluates a subtree row by row.
+     *
+     * Rows for which the subtree fails or has a value that is not a number are evaluated as a whole to get the same
+     * error as when evaluating the row on its own.
+     */
+    private Op compileRowwise(Node<?> node) {
+        Evaluator eval = EvaluateCompiler.compile(node, arithmetic);
+        return batch -> {
+            double[] values = new double[batch.rows];
+            BitSet nulls = new BitSet();
+            for (int i = 0; i < values.length; i++) {
+                if (!batch.rowwise.get(i)) {
+                    batch.row.index = i;
+                    try {
+                        Double value = Typed.toNumberTypeCoercion(eval.evaluate(batch.functions, batch.rowData));
+                        if (value == null) {
+                            nulls.set(i);
+                        } else {
+                            values[i] = value;
+                        }
+                    } catch (RuntimeException ex) {
+                        batch.rowwise.set(i);
+                    }
+                }
+            }
+            return new Vector(values, nulls);
+        };
+    }
+}
@@ -0,0 +1,636 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.Typed;
+import org.hisp.dhis.lib.expression.ast.UnaryOperator;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a {@link Node} tree into a JVM class so that the JIT can inline the evaluation of the expression.
+ *
+ * Operators, literals, data items and named values are translated to straight-line bytecode. This calls the same
+ * static operator and type coercion methods that {@link EvaluateCompiler} uses, so the results and errors are
+ * identical. All other nodes, like functions and variables, fall back to the closures of {@link EvaluateCompiler}.
+ *
+ * The class is defined as a hidden class so that it can be unloaded once it is no longer used. Runtimes without hidden
+ * classes (before Java 15) could only define the class in the class loader of this library where it is never unloaded.
+ * Each compiled expression would leak a class, so there the closures are used for the whole tree instead. The same
+ * applies if defining the class fails for any other reason.
+ *
+ * @author Jan Bernitt
+ */
+final class EvaluateBytecode {
+
+    private EvaluateBytecode() {
+        throw new UnsupportedOperationException("util");
+    }
+
+    private static final String PACKAGE = "org/hisp/dhis/lib/expression/eval/";
+    private static final String SELF = PACKAGE + "EvaluateBytecode";
+    private static final String EVAL = PACKAGE + "EvaluateCompiler$Eval";
+    private static final String CONTEXT = "L" + PACKAGE + "EvaluateCompiler$Context;";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String CONSTANTS = "[Ljava/lang/Object;";
+    private static final String BINARY_OPERATOR = "org/hisp/dhis/lib/expression/ast/BinaryOperator";
+    private static final String NUMBER = "Ljava/lang/Number;";
+    private static final String BOOLEAN = "Ljava/lang/Boolean;";
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    /**
+     * {@code MethodHandles.Lookup#defineHiddenClass} if the runtime has it, otherwise null
+     */
+    private static final Method DEFINE_HIDDEN = Arrays.stream(MethodHandles.Lookup.class.getMethods())
+            .filter(m -> m.getName().equals("defineHiddenClass"))
+            .findFirst().orElse(null);
+
+    /**
+     * @return true, if trees are compiled to classes, false if the runtime cannot unload them and closures are used
+     */
+    static boolean isSupported() {
+        return DEFINE_HIDDEN != null;
+    }
+
+    /**
+     * @param dataItemSlots the index of each data item in {@link ExpressionData#getDataItemSlotValues()}
+     */
+    static Evaluator compile(Node<?> root, Map<DataItem, Integer> dataItemSlots) {
+        EvaluateCompiler compiler = EvaluateCompiler.unshared(dataItemSlots);
+        if (!isSupported())
+            return EvaluateCompiler.evaluator(compiler.compileNode(root));
+        EvaluateCompiler.Eval<?> eval;
+        try {
+            eval = new Assembler(compiler).assemble(root);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+            eval = compiler.compileNode(root);
+        }
+        return EvaluateCompiler.evaluator(eval);
+    }
+
+    /**
+     * @return an instance of the class generated for the tree
+     * @throws ReflectiveOperationException when the generated class cannot be instantiated
+     */
+    static EvaluateCompiler.Eval<?> assemble(Node<?> root) throws ReflectiveOperationException {
+        return new Assembler(EvaluateCompiler.DECIMAL64).assemble(root);
+    }
+
+    /*
+    Runtime support called by the generated code
+     */
+
+    static Object dataItem(EvaluateCompiler.Context ctx, DataItem item, String key, int slot) {
+        ExpressionData data = ctx.data;
+        if (!data.getProgramRuleVariableValues().isEmpty()) {
+            return data.getProgramRuleVariableValues().get(key);
+        }
+        Object value = EvaluateCompiler.dataItemValue(data, item, slot);
+        if (value instanceof double[])
+            return ((double[]) value)[ctx.dataItemIndex];
+        return value != null && value.getClass().isArray()
+                ? Array.get(value, ctx.dataItemIndex)
+                : value;
+    }
+
+    static Object namedValue(EvaluateCompiler.Context ctx, String name) {
+        return ctx.data.getNamedValues().get(name);
+    }
+
+    static String toStringValue(Object value) {
+        return Typed.toStringTypeCoercion(value);
+    }
+
+    static Boolean toBooleanValue(Object value) {
+        return Typed.toBooleanTypeCoercion(value);
+    }
+
+    static Double toNumberValue(Object value) {
+        return Typed.toNumberTypeCoercion(value);
+    }
+
+    static LocalDate toDateValue(Object value) {
+        return Typed.toDateTypeCoercion(value);
+    }
+
+    static Object toMixedValue(Object value) {
+        return Typed.toMixedTypeTypeCoercion(value);
+    }
+
+    static boolean isTrue(Boolean value) {
+        return Boolean.TRUE.equals(value);
+    }
+
+    static RuntimeException coercionFailed(RuntimeException ex, Object value, Node<?> node, Class<?> target) {
+        return EvaluateCompiler.coercionFailed(ex, value, node, target);
+    }
+
+    /**
+     * The coercions used by the generated code.
+     */
+    private enum Coercion {
+        STRING("toStringValue", "Ljava/lang/String;", String.class),
+        BOOLEAN("toBooleanValue", EvaluateBytecode.BOOLEAN, Boolean.class),
+        NUMBER("toNumberValue", "Ljava/lang/Double;", Double.class),
+        DATE("toDateValue", "Ljava/time/LocalDate;", LocalDate.class),
+        MIXED("toMixedValue", OBJECT, Object.class);
+
+        final String method;
+        final String descriptor;
+        final Class<?> target;
+
+        Coercion(String method, String returnType, Class<?> target) {
+            this.method = method;
+            this.descriptor = "(" + OBJECT + ")" + returnType;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Writes the class file of a class implementing {@link EvaluateCompiler.Eval} for a tree.
+     *
+     * The class file version predates stack map frames so that the code does not need them.
+     */
+    private static final class Assembler {
+
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_PRIVATE = 0x0002;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+
+        private final String name = PACKAGE + "EvaluateBytecode$Compiled" + COUNT.incrementAndGet();
+
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolSize = 1;
+
+        private final List<Object> constants = new ArrayList<>();
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<int[]> exceptionTable = new ArrayList<>();
+        private int stack;
+        private int maxStack;
+        private int maxLocals = 2;
+
+        /**
+         * Used for the nodes that fall back to closures
+         */
+        private final EvaluateCompiler compiler;
+
+        Assembler(EvaluateCompiler compiler) {
+            this.compiler = compiler;
+        }
+
+        EvaluateCompiler.Eval<?> assemble(Node<?> root) throws ReflectiveOperationException {
+            emit(root);
+            op(0xB0, -1); // areturn
+            byte[] bytes = classFile();
+            Class<?> type = define(bytes);
+            return (EvaluateCompiler.Eval<?>) type.getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) constants.toArray());
+        }
+
+        /*
+        Code
+         */
+
+        private void emit(Node<?> node) {
+            switch (node.getType()) {
+                case PAR: emitPar(node); break;
+                case ARGUMENT: emit(node.child(0)); break;
+                case MODIFIER:
+                case NULL: op(0x01, 1); break; // aconst_null
+                case BOOLEAN:
+                case UID:
+                case DATE:
+                case NUMBER:
+                case STRING:
+                case INTEGER:
+                case IDENTIFIER: loadConstant(node.getValue()); break;
+                case NAMED_VALUE:
+                    loadContext();
+                    loadConstant(node.getRawValue(), "java/lang/String");
+                    invokeStatic(SELF, "namedValue", "(" + CONTEXT + "Ljava/lang/String;)" + OBJECT, -1);
+                    break;
+                case DATA_ITEM: emitDataItem(node); break;
+                case BINARY_OPERATOR: emitBinaryOperator(node); break;
+                case UNARY_OPERATOR: emitUnaryOperator(node); break;
+                default: emitFallback(node);
+            }
+        }
+
+        private void emitPar(Node<?> par) {
+            ValueType coercedTo = par instanceof Substitute
+                    ? ((Substitute) par).coercedTo
+                    : null;
+            if (coercedTo == null) {
+                emit(par.child(0));
+                return;
+            }
+            switch (coercedTo) {
+                case NUMBER: emitCoerced(par.child(0), Coercion.NUMBER); break;
+                case BOOLEAN: emitCoerced(par.child(0), Coercion.BOOLEAN); break;
+                default: emitCoerced(par.child(0), Coercion.MIXED);
+            }
+        }
+
+        private void emitDataItem(Node<?> item) {
+            DataItem dataItem;
+            try {
+                dataItem = item.toDataItem();
+            } catch (RuntimeException ex) {
+                emitFallback(item);
+                return;
+            }
+            int slot = compiler.dataItemSlot(dataItem);
+            if (slot > Short.MAX_VALUE) {
+                emitFallback(item);
+                return;
+            }
+            loadContext();
+            loadConstant(dataItem, "org/hisp/dhis/lib/expression/spi/DataItem");
+            loadConstant(dataItem.getKey(), "java/lang/String");
+            op(0x11, 1); // sipush
+            u2(slot);
+            invokeStatic(SELF, "dataItem", "(" + CONTEXT + "Lorg/hisp/dhis/lib/expression/spi/DataItem;Ljava/lang/String;I)" + OBJECT, -3);
+        }
+
+        private void emitBinaryOperator(Node<?> operator) {
+            Node<?> left = operator.child(0);
+            Node<?> right = operator.child(1);
+            BinaryOperator op = (BinaryOperator) operator.getValue();
+            switch (op) {
+                case EQ: emitTest("equal", left, right); break;
+                case NEQ: emitTest("notEqual", left, right); break;
+                case LT: emitTest("lessThan", left, right); break;
+                case LE: emitTest("lessThanOrEqual", left, right); break;
+                case GT: emitTest("greaterThan", left, right); break;
+                case GE: emitTest("greaterThanOrEqual", left, right); break;
+                case AND: emitLogic("and", left, right); break;
+                case OR: emitLogic("or", left, right); break;
+                case ADD: emitArithmetic("add", left, right); break;
+                case SUB: emitArithmetic("subtract", left, right); break;
+                case MUL: emitArithmetic("multiply", left, right); break;
+                case DIV: emitArithmetic("divide", left, right); break;
+                case MOD: emitArithmetic("modulo", left, right); break;
+                case EXP: emitArithmetic("exp", left, right); break;
+                default: emitFallback(operator);
+            }
+        }
+
+        private void emitTest(String method, Node<?> left, Node<?> right) {
+            emitCoerced(left, Coercion.MIXED);
+            emitCoerced(right, Coercion.MIXED);
+            invokeStatic(BINARY_OPERATOR, method, "(" + OBJECT + OBJECT + ")Z", -1);
+            invokeStatic("java/lang/Boolean", "valueOf", "(Z)" + BOOLEAN, 0);
+        }
+
+        /**
+         * Like {@link BinaryOperator#and(Boolean, java.util.function.Supplier)} and
+         * {@link BinaryOperator#or(Boolean, java.util.function.Supplier)} the right operand is skipped when the left
+         * operand alone decides the result, for AND when it is null, for OR when it is true. The left operand then
+         * remains on the stack as the result.
+         */
+        private void emitLogic(String method, Node<?> left, Node<?> right) {
+            emitCoerced(left, Coercion.BOOLEAN);
+            op(0x59, 1); // dup
+            int skip;
+            if ("and".equals(method)) {
+                skip = code.size();
+                op(0xC7, -1); // ifnonnull
+                u2(0);
+                int jump = code.size();
+                op(0xA7, 0); // goto
+                u2(0);
+                patch(skip + 1, code.size() - skip);
+                skip = jump;
+            } else {
+                invokeStatic(SELF, "isTrue", "(" + BOOLEAN + ")Z", 0);
+                skip = code.size();
+                op(0x9A, -1); // ifne
+                u2(0);
+            }
+            emitCoerced(right, Coercion.BOOLEAN);
+            invokeStatic(BINARY_OPERATOR, method, "(" + BOOLEAN + BOOLEAN + ")" + BOOLEAN, -1);
+            patch(skip + 1, code.size() - skip);
+        }
+
+        private void emitArithmetic(String method, Node<?> left, Node<?> right) {
+            emitCoerced(left, Coercion.NUMBER);
+            emitCoerced(right, Coercion.NUMBER);
+            invokeStatic(BINARY_OPERATOR, method, "(" + NUMBER + NUMBER + ")" + NUMBER, -1);
+        }
+
+        private void emitUnaryOperator(Node<?> operator) {
+            Node<?> operand = operator.child(0);
+            switch ((UnaryOperator) operator.getValue()) {
+                case NOT:
+                    emitCoerced(operand, Coercion.BOOLEAN);
+                    invokeVirtual("java/lang/Boolean", "booleanValue", "()Z", 0);
+                    op(0x04, 1); // iconst_1
+                    op(0x82, -1); // ixor
+                    invokeStatic("java/lang/Boolean", "valueOf", "(Z)" + BOOLEAN, 0);
+                    break;
+                case PLUS:
+                    emitCoerced(operand, Coercion.NUMBER);
+                    break;
+                case MINUS:
+                    emitCoerced(operand, Coercion.NUMBER);
+                    invokeStatic("org/hisp/dhis/lib/expression/ast/UnaryOperator", "negate", "(" + NUMBER + ")" + NUMBER, 0);
+                    break;
+                default: emitFallback(operator);
+            }
+        }
+
+        /**
+         * Evaluates the node and coerces its value to the target type. Any failure while doing so is handled like in
+         * {@link EvaluateCompiler}.
+         */
+        private void emitCoerced(Node<?> node, Coercion to) {
+            int value = maxLocals++;
+            op(0x01, 1); // aconst_null
+            store(value);
+            int start = code.size();
+            emit(node);
+            op(0x59, 1); // dup
+            store(value);
+            invokeStatic(SELF, to.method, to.descriptor, 0);
+            int end = code.size();
+            int jump = code.size();
+            op(0xA7, 0); // goto
+            u2(0);
+            int handler = code.size();
+            int depth = stack;
+            stack = 1; // only the exception
+            load(value);
+            loadConstant(node, "org/hisp/dhis/lib/expression/ast/Node");
+            loadConstant(to.target, "java/lang/Class");
+            invokeStatic(SELF, "coercionFailed",
+                    "(Ljava/lang/RuntimeException;" + OBJECT + "Lorg/hisp/dhis/lib/expression/ast/Node;Ljava/lang/Class;)Ljava/lang/RuntimeException;", -3);
+            op(0xBF, -1); // athrow
+            stack = depth;
+            int after = code.size();
+            patch(jump + 1, after - jump);
+            exceptionTable.add(new int[] { start, end, handler, classRef("java/lang/RuntimeException") });
+        }
+
+        private void emitFallback(Node<?> node) {
+            loadConstant(compiler.compileNode(node), EVAL);
+            loadContext();
+            int index = interfaceMethodRef(EVAL, "eval", "(" + CONTEXT + ")" + OBJECT);
+            op(0xB9, -1); // invokeinterface
+            u2(index);
+            code.write(2);
+            code.write(0);
+        }
+
+        private void loadContext() {
+            op(0x2B, 1); // aload_1
+        }
+
+        private void loadConstant(Object value) {
+            if (value == null) {
+                op(0x01, 1); // aconst_null
+                return;
+            }
+            loadConstant(value, null);
+        }
+
+        private void loadConstant(Object value, String type) {
+            int index = constants.size();
+            constants.add(value);
+            op(0x2A, 1); // aload_0
+            op(0xB4, 0); // getfield
+            u2(fieldRef(name, "constants", CONSTANTS));
+            if (index > Short.MAX_VALUE)
+                throw new IllegalStateException("Too many constants");
+            op(0x11, 1); // sipush
+            u2(index);
+            op(0x32, -1); // aaload
+            if (type != null) {
+                op(0xC0, 0); // checkcast
+                u2(classRef(type));
+            }
+        }
+
+        private void store(int local) {
+            localOp(0x3A, local, -1); // astore
+        }
+
+        private void load(int local) {
+            localOp(0x19, local, 1); // aload
+        }
+
+        private void localOp(int opcode, int local, int delta) {
+            if (local > 255) {
+                op(0xC4, 0); // wide
+                op(opcode, delta);
+                u2(local);
+            } else {
+                op(opcode, delta);
+                code.write(local);
+            }
+        }
+
+        private void invokeStatic(String owner, String method, String descriptor, int delta) {
+            op(0xB8, delta);
+            u2(methodRef(owner, method, descriptor));
+        }
+
+        private void invokeVirtual(String owner, String method, String descriptor, int delta) {
+            op(0xB6, delta);
+            u2(methodRef(owner, method, descriptor));
+        }
+
+        private void op(int opcode, int stackDelta) {
+            code.write(opcode);
+            stack += stackDelta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        private void patch(int pos, int value) {
+            byte[] bytes = code.toByteArray();
+            bytes[pos] = (byte) (value >> 8);
+            bytes[pos + 1] = (byte) value;
+            code.reset();
+            code.write(bytes, 0, bytes.length);
+        }
+
+        /*
+        Constant pool
+         */
+
+        private int utf8(String value) {
+            return constant("U" + value, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        private int classRef(String type) {
+            int nameIndex = utf8(type);
+            return constant("C" + type, out -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        private int nameAndType(String member, String descriptor) {
+            int nameIndex = utf8(member);
+            int descriptorIndex = utf8(descriptor);
+            return constant("N" + member + ":" + descriptor, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+        }
+
+        private int fieldRef(String owner, String member, String descriptor) {
+            return memberRef(9, owner, member, descriptor);
+        }
+
+        private int methodRef(String owner, String member, String descriptor) {
+            return memberRef(10, owner, member, descriptor);
+        }
+
+        private int interfaceMethodRef(String owner, String member, String descriptor) {
+            return memberRef(11, owner, member, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String member, String descriptor) {
+            int classIndex = classRef(owner);
+            int natIndex = nameAndType(member, descriptor);
+            return constant(tag + owner + "." + member + ":" + descriptor, out -> {
+                out.writeByte(tag);
+                out.writeShort(classIndex);
+                out.writeShort(natIndex);
+            });
+        }
+
+        private interface Entry {
+
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int constant(String key, Entry entry) {
+            Integer index = poolIndex.get(key);
+            if (index != null)
+                return index;
+            try {
+                entry.write(poolOut);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            poolIndex.put(key, poolSize);
+            return poolSize++;
+        }
+
+        /*
+        Class file
+         */
+
+        private byte[] classFile() {
+            byte[] evalCode = code.toByteArray();
+            if (evalCode.length > 0xFFFF)
+                throw new IllegalStateException("Expression too large");
+            int thisClass = classRef(name);
+            int superClass = classRef("java/lang/Object");
+            int evalInterface = classRef(EVAL);
+            int constantsName = utf8("constants");
+            int constantsType = utf8(CONSTANTS);
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initType = utf8("(" + CONSTANTS + ")V");
+            int evalName = utf8("eval");
+            int evalType = utf8("(" + CONTEXT + ")" + OBJECT);
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int constantsField = fieldRef(name, "constants", CONSTANTS);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(poolSize);
+                out.write(pool.toByteArray());
+                out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(evalInterface);
+                // fields
+                out.writeShort(1);
+                out.writeShort(ACC_PRIVATE | ACC_FINAL);
+                out.writeShort(constantsName);
+                out.writeShort(constantsType);
+                out.writeShort(0);
+                // methods
+                out.writeShort(2);
+                byte[] initCode = {
+                        0x2A, // aload_0
+                        (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, // invokespecial
+                        0x2A, // aload_0
+                        0x2B, // aload_1
+                        (byte) 0xB5, (byte) (constantsField >> 8), (byte) constantsField, // putfield
+                        (byte) 0xB1 // return
+                };
+                writeMethod(out, initName, initType, codeName, 2, 2, initCode, List.of());
+                writeMethod(out, evalName, evalType, codeName, maxStack, maxLocals, evalCode, exceptionTable);
+                // attributes
+                out.writeShort(0);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName, int maxStack,
+                int maxLocals, byte[] code, List<int[]> exceptionTable) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length + 8 * exceptionTable.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(exceptionTable.size());
+            for (int[] e : exceptionTable)
+                for (int i : e)
+                    out.writeShort(i);
+            out.writeShort(0);
+        }
+
+        private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+            if (DEFINE_HIDDEN == null)
+                throw new UnsupportedOperationException("Runtime cannot define hidden classes");
+            Object options = Array.newInstance(DEFINE_HIDDEN.getParameterTypes()[2].getComponentType(), 0);
+            return ((MethodHandles.Lookup) DEFINE_HIDDEN.invoke(MethodHandles.lookup(), bytes, true, options))
+                    .lookupClass();
+        }
+    }
+}
@@ -0,0 +1,1178 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
+import org.hisp.dhis.lib.expression.ast.NamedFunction;
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.ast.Typed;
+import org.hisp.dhis.lib.expression.ast.UnaryOperator;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.hisp.dhis.lib.expression.spi.VariableValue;
+
+import java.lang.reflect.Array;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Compiles a {@link Node} tree into a tree of closures that calculates the expression result value using a
+ * {@link ExpressionFunctions} to implement the named functions, modifiers and data loading.
+ *
+ * All decisions that only depend on the tree, like which operator or function to apply and which type coercion to use
+ * on the operands, are made once when compiling. Evaluating the result is a direct call of the root closure which
+ * only does the work that depends on the {@link ExpressionData}.
+ *
+ * With {@link Arithmetic#DOUBLE} nested arithmetic operations are fused into closures computing primitive doubles so
+ * that only the operands and the final result are boxed.
+ *
+ * Structurally equal subtrees that occur more than once in a tree, like a data item or a sum used in a condition and a
+ * branch, are evaluated only once per evaluation. The first occurrence evaluated stores its value in a slot of the
+ * {@link Context}, all others use the value from the slot. This assumes that all {@link ExpressionFunctions} give the
+ * same result for the same arguments within one evaluation. The arguments of aggregate functions are evaluated for
+ * each value of the aggregated data items and therefore are never shared.
+ *
+ * The right operand of {@code &&} and {@code ||} as well as the arguments of {@code if}, {@code d2:condition} and
+ * {@code firstNonNull} are only evaluated when their value can change the result.
+ *
+ * @author Jan Bernitt
+ */
+final class EvaluateCompiler {
+
+    /**
+     * The compiler for the default {@link Arithmetic#DECIMAL64}
+     */
+    static final EvaluateCompiler DECIMAL64 = new EvaluateCompiler(Arithmetic.DECIMAL64, Map.of(), 0, Map.of());
+
+    /**
+     * Value of a slot that holds a null value (as an empty slot is null)
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * The scratch space of each thread, it is shared by all evaluations on the thread unless they are nested
+     */
+    private static final ThreadLocal<Context> CONTEXTS = ThreadLocal.withInitial(() -> new Context(null, null));
+
+    /*
+    The lazy functions only need suppliers when an implementation overrides them, an implementation that only
+    overrides the eager variant gets all arguments evaluated, otherwise they are inlined
+     */
+    private static final ClassValue<Boolean> LAZY_IF_THEN_ELSE =
+            overridden("ifThenElse", Boolean.class, Supplier.class, Supplier.class);
+    private static final ClassValue<Boolean> EAGER_IF_THEN_ELSE =
+            overridden("ifThenElse", Boolean.class, Object.class, Object.class);
+    private static final ClassValue<Boolean> LAZY_FIRST_NON_NULL = overridden("firstNonNull", Supplier[].class);
+    private static final ClassValue<Boolean> EAGER_FIRST_NON_NULL = overridden("firstNonNull", List.class);
+
+    private final Arithmetic arithmetic;
+    /**
+     * The slot of each node that is a shared subtree
+     */
+    private final Map<Node<?>, Integer> slotByNode;
+    private final int slotCount;
+    /**
+     * The index of each data item in {@link ExpressionData#getDataItemSlotValues()}
+     */
+    private final Map<DataItem, Integer> dataItemSlots;
+
+    private EvaluateCompiler(Arithmetic arithmetic, Map<Node<?>, Integer> slotByNode, int slotCount,
+            Map<DataItem, Integer> dataItemSlots) {
+        this.arithmetic = arithmetic;
+        this.slotByNode = slotByNode;
+        this.slotCount = slotCount;
+        this.dataItemSlots = dataItemSlots;
+    }
+
+    /**
+     * The compiled form of a node.
+     *
+     * @param <T> type of the value computed
+     */
+    @FunctionalInterface
+    interface Eval<T> {
+
+        T eval(Context ctx);
+    }
+
+    /**
+     * The state of a single evaluation.
+     *
+     * Each thread reuses the same context for all its evaluations of any {@link Evaluator} so that evaluating does
+     * not allocate one for each evaluation. The slots grow to the largest number used by an evaluation on the thread.
+     */
+    static final class Context {
+
+        ExpressionFunctions functions;
+        ExpressionData data;
+        /**
+         * The values of shared subtrees once they have been evaluated
+         */
+        Object[] slots;
+        /**
+         * Number of slots used by the current evaluation
+         */
+        private int slotCount;
+        /**
+         * The index used for data items with multiple values (array) while evaluating an aggregate function
+         */
+        int dataItemIndex;
+        /**
+         * True while an evaluation uses this context
+         */
+        private boolean active;
+
+        Context(ExpressionFunctions functions, ExpressionData data) {
+            this(functions, data, 0);
+        }
+
+        Context(ExpressionFunctions functions, ExpressionData data, int slotCount) {
+            this.functions = functions;
+            this.data = data;
+            this.slots = new Object[slotCount];
+            this.slotCount = slotCount;
+        }
+
+        /**
+         * Starts an evaluation with this context.
+         *
+         * @param slotCount the number of shared subtree slots the evaluation uses
+         * @return this context or a new one in case this context is already used by an evaluation on the same
+         *     thread, for example when a function evaluates an expression again
+         */
+        Context begin(ExpressionFunctions functions, ExpressionData data, int slotCount) {
+            if (active)
+                return new Context(functions, data, slotCount);
+            if (slots.length < slotCount)
+                slots = new Object[slotCount];
+            this.slotCount = slotCount;
+            this.active = true;
+            this.functions = functions;
+            this.data = data;
+            return this;
+        }
+
+        /**
+         * Ends an evaluation, the context does no longer refer to any of the values of the evaluation.
+         */
+        void end() {
+            active = false;
+            functions = null;
+            data = null;
+            dataItemIndex = 0;
+            Arrays.fill(slots, 0, slotCount, null);
+        }
+    }
+
+    /**
+     * The compiled form of a node computing a primitive number.
+     */
+    @FunctionalInterface
+    private interface EvalDouble {
+
+        double eval(Context ctx);
+    }
+
+    /**
+     * The compiled form of the argument of an aggregate function computing its values for all indexes of the
+     * aggregated data items at once.
+     */
+    @FunctionalInterface
+    private interface EvalSeries {
+
+        /**
+         * @param length number of values to compute
+         * @return the values or null if they cannot be computed as a series with the data of this evaluation
+         */
+        double[] eval(Context ctx, int length);
+    }
+
+    /**
+     * A pre-selected aggregate function.
+     */
+    @FunctionalInterface
+    private interface Aggregate {
+
+        Double apply(Context ctx, double[] values);
+    }
+
+    static Evaluator compile(Node<?> root, Arithmetic arithmetic) {
+        return compile(root, arithmetic, Map.of());
+    }
+
+    /**
+     * @param dataItemSlots the index of each data item in {@link ExpressionData#getDataItemSlotValues()}
+     */
+    static Evaluator compile(Node<?> root, Arithmetic arithmetic, Map<DataItem, Integer> dataItemSlots) {
+        Map<Node<?>, Integer> slotByNode = new IdentityHashMap<>();
+        int slotCount = new SharedSubtrees().assignSlots(List.of(root), slotByNode);
+        EvaluateCompiler compiler = arithmetic == Arithmetic.DECIMAL64 && slotCount == 0 && dataItemSlots.isEmpty()
+                ? DECIMAL64
+                : new EvaluateCompiler(arithmetic, slotByNode, slotCount, dataItemSlots);
+        return evaluator(compiler.compileNode(root), slotCount);
+    }
+
+    /**
+     * @param dataItemSlots the index of each data item in {@link ExpressionData#getDataItemSlotValues()}
+     * @return a compiler with the default {@link Arithmetic#DECIMAL64} that does not share any subtrees
+     */
+    static EvaluateCompiler unshared(Map<DataItem, Integer> dataItemSlots) {
+        return dataItemSlots.isEmpty() ? DECIMAL64 : new EvaluateCompiler(Arithmetic.DECIMAL64, Map.of(), 0, dataItemSlots);
+    }
+
+    /**
+     * @return the slot of the data item, -1 if it has none
+     */
+    int dataItemSlot(DataItem item) {
+        return dataItemSlots.getOrDefault(item, -1);
+    }
+
+    /**
+     * @param slot the index of the item in {@link ExpressionData#getDataItemSlotValues()}, -1 if it has none
+     * @return the value of the data item
+     */
+    static Object dataItemValue(ExpressionData data, DataItem item, int slot) {
+        Object[] values = data.getDataItemSlotValues();
+        return values != null && slot >= 0 ? values[slot] : data.getDataItemValues().get(item);
+    }
+
+    /**
+     * Compiles many trees that are evaluated together. Subtrees that occur in more than one of the trees are
+     * evaluated only once per evaluation.
+     *
+     * @param dataItemSlots the index of each data item in {@link ExpressionData#getDataItemSlotValues()}
+     */
+    static SetEvaluator compileSet(List<? extends Node<?>> roots, Arithmetic arithmetic,
+            Map<DataItem, Integer> dataItemSlots) {
+        Map<Node<?>, Integer> slotByNode = new IdentityHashMap<>();
+        int slotCount = new SharedSubtrees().assignSlots(roots, slotByNode);
+        EvaluateCompiler compiler = new EvaluateCompiler(arithmetic, slotByNode, slotCount, dataItemSlots);
+        Eval<?>[] evals = roots.stream().map(compiler::compileNode).toArray(Eval<?>[]::new);
+        Node<?>[] nodes = roots.toArray(new Node<?>[0]);
+        return (functions, data, out, nulls) -> {
+            if (out.length < evals.length)
+                throw new IllegalArgumentException(
+                        format("Output has %d values but %d expressions are evaluated", out.length, evals.length));
+            if (nulls != null)
+                nulls.clear();
+            Context ctx = CONTEXTS.get().begin(functions, data, slotCount);
+            try {
+                for (int i = 0; i < evals.length; i++) {
+                    Object value = evals[i].eval(ctx);
+                    Double number;
+                    try {
+                        number = Typed.toNumberTypeCoercion(value);
+                    } catch (RuntimeException ex) {
+                        throw coercionFailed(ex, value, nodes[i], Double.class);
+                    }
+                    if (number == null) {
+                        out[i] = Double.NaN;
+                        if (nulls != null)
+                            nulls.set(i);
+                    } else {
+                        out[i] = number;
+                    }
+                }
+            } finally {
+                ctx.end();
+            }
+        };
+    }
+
+    static Evaluator evaluator(Eval<?> eval) {
+        return evaluator(eval, 0);
+    }
+
+    private static Evaluator evaluator(Eval<?> eval, int slotCount) {
+        return (functions, data) -> {
+            Context ctx = CONTEXTS.get().begin(functions, data, slotCount);
+            try {
+                Object value = eval.eval(ctx);
+                return value instanceof VariableValue ? ((VariableValue) value).valueOrDefault() : value;
+            } finally {
+                ctx.end();
+            }
+        };
+    }
+
+    /**
+     * @return a compiler with the same arithmetic that does not share any subtrees
+     */
+    private EvaluateCompiler unshared() {
+        return slotCount == 0 ? this : new EvaluateCompiler(arithmetic, Map.of(), 0, dataItemSlots);
+    }
+
+    Eval<?> compileNode(Node<?> node) {
+        Integer slot = slotByNode.get(node);
+        return slot == null ? compileUnshared(node) : compileShared(node, slot);
+    }
+
+    private Eval<?> compileShared(Node<?> node, int slot) {
+        Eval<?> eval = compileUnshared(node);
+        return ctx -> {
+            Object[] slots = ctx.slots;
+            Object value = slots[slot];
+            if (value != null)
+                return value == NULL ? null : value;
+            value = eval.eval(ctx);
+            slots[slot] = value == null ? NULL : value;
+            return value;
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private Eval<?> compileUnshared(Node<?> node) {
+        switch (node.getType()) {
+            // complex nodes
+            case UNARY_OPERATOR: return compileUnaryOperator((Node<UnaryOperator>) node);
+            case BINARY_OPERATOR: return compileBinaryOperator((Node<BinaryOperator>) node);
+            case ARGUMENT: return compileNode(node.child(0));
+            case PAR: return compilePar(node);
+            case FUNCTION: return compileFunction((Node<NamedFunction>) node);
+            // modifiers do not have a return value, they only modify the evaluation context
+            case MODIFIER: return ctx -> null;
+            case DATA_ITEM: return compileDataItem(node);
+            case VARIABLE: return compileVariable(node);
+
+            // simple nodes
+            case NAMED_VALUE: {
+                String name = node.getRawValue();
+                return ctx -> ctx.data.getNamedValues().get(name);
+            }
+            case NULL: return ctx -> null;
+            case BOOLEAN:
+            case UID:
+            case DATE:
+            case NUMBER:
+            case STRING:
+            case INTEGER:
+            case IDENTIFIER: {
+                Object value = node.getValue();
+                return ctx -> value;
+            }
+            default: {
+                NodeType type = node.getType();
+                return ctx -> {
+                    throw new UnsupportedOperationException("Not type not supported yet: " + type);
+                };
+            }
+        }
+    }
+
+    private Eval<?> compilePar(Node<?> par) {
+        ValueType coercedTo = par instanceof Substitute
+                ? ((Substitute) par).coercedTo
+                : null;
+        if (coercedTo == null)
+            return compileNode(par.child(0));
+        switch (coercedTo) {
+            case NUMBER: return toNumber(par.child(0));
+            case BOOLEAN: return toBoolean(par.child(0));
+            default: return toMixed(par.child(0));
+        }
+    }
+
+    private Eval<?> compileBinaryOperator(Node<BinaryOperator> operator) {
+        Node<?> left = operator.child(0);
+        Node<?> right = operator.child(1);
+        if (arithmetic == Arithmetic.DOUBLE && operator.getValue().isArithmetic()) {
+            EvalDouble value = toDoubleFused(operator);
+            return ctx -> {
+                try {
+                    return value.eval(ctx);
+                } catch (RuntimeException ex) {
+                    throw coercionFailed(ex, null, operator, Double.class);
+                }
+            };
+        }
+        switch (operator.getValue()) {
+            case EQ: return test(BinaryOperator::equal, toMixed(left), toMixed(right));
+            case NEQ: return test(BinaryOperator::notEqual, toMixed(left), toMixed(right));
+            case AND: {
+                Eval<Boolean> lVal = toBoolean(left);
+                Eval<Boolean> rVal = toBoolean(right);
+                return ctx -> {
+                    Boolean l = lVal.eval(ctx);
+                    return l == null ? null : BinaryOperator.and(l, rVal.eval(ctx));
+                };
+            }
+            case OR: {
+                Eval<Boolean> lVal = toBoolean(left);
+                Eval<Boolean> rVal = toBoolean(right);
+                return ctx -> {
+                    Boolean l = lVal.eval(ctx);
+                    return Boolean.TRUE.equals(l) ? Boolean.TRUE : BinaryOperator.or(l, rVal.eval(ctx));
+                };
+            }
+            case LT: return test(BinaryOperator::lessThan, toMixed(left), toMixed(right));
+            case LE: return test(BinaryOperator::lessThanOrEqual, toMixed(left), toMixed(right));
+            case GT: return test(BinaryOperator::greaterThan, toMixed(left), toMixed(right));
+            case GE: return test(BinaryOperator::greaterThanOrEqual, toMixed(left), toMixed(right));
+            case ADD: return apply(BinaryOperator::add, toNumber(left), toNumber(right));
+            case SUB: return apply(BinaryOperator::subtract, toNumber(left), toNumber(right));
+            case MUL: return apply(BinaryOperator::multiply, toNumber(left), toNumber(right));
+            case DIV: return apply(BinaryOperator::divide, toNumber(left), toNumber(right));
+            case MOD: return apply(BinaryOperator::modulo, toNumber(left), toNumber(right));
+            case EXP: return apply(BinaryOperator::exp, toNumber(left), toNumber(right));
+            default: return ctx -> {
+                throw new UnsupportedOperationException();
+            };
+        }
+    }
+
+    private static <T> Eval<Boolean> test(BiPredicate<T, T> op, Eval<T> left, Eval<T> right) {
+        return ctx -> {
+            T lVal = left.eval(ctx);
+            T rVal = right.eval(ctx);
+            return op.test(lVal, rVal);
+        };
+    }
+
+    private static <T, R> Eval<R> apply(BiFunction<T, T, R> op, Eval<? extends T> left, Eval<? extends T> right) {
+        return ctx -> {
+            T lVal = left.eval(ctx);
+            T rVal = right.eval(ctx);
+            return op.apply(lVal, rVal);
+        };
+    }
+
+    /**
+     * Compiles a subtree of arithmetic operations with plain IEEE double arithmetic.
+     */
+    private EvalDouble toDouble(Node<?> node) {
+        // shared subtrees are computed as operands so that their value is kept
+        return slotByNode.containsKey(node) ? toDoubleOperand(node) : toDoubleFused(node);
+    }
+
+    private EvalDouble toDoubleFused(Node<?> node) {
+        switch (node.getType()) {
+            case PAR:
+            case ARGUMENT: return toDouble(node.child(0));
+            case NUMBER:
+            case INTEGER: {
+                double value = ((Number) node.getValue()).doubleValue();
+                return ctx -> value;
+            }
+            case UNARY_OPERATOR: {
+                UnaryOperator op = (UnaryOperator) node.getValue();
+                if (op == UnaryOperator.MINUS) {
+                    EvalDouble operand = toDouble(node.child(0));
+                    return ctx -> -operand.eval(ctx);
+                }
+                if (op == UnaryOperator.PLUS) return toDouble(node.child(0));
+                break;
+            }
+            case BINARY_OPERATOR: {
+                BinaryOperator op = (BinaryOperator) node.getValue();
+                if (!op.isArithmetic()) break;
+                EvalDouble left = toDouble(node.child(0));
+                EvalDouble right = toDouble(node.child(1));
+                switch (op) {
+                    case ADD: return ctx -> left.eval(ctx) + right.eval(ctx);
+                    case SUB: return ctx -> left.eval(ctx) - right.eval(ctx);
+                    case MUL: return ctx -> left.eval(ctx) * right.eval(ctx);
+                    case DIV: return ctx -> left.eval(ctx) / right.eval(ctx);
+                    case MOD: return ctx -> left.eval(ctx) % right.eval(ctx);
+                    case EXP: return ctx -> Math.pow(left.eval(ctx), right.eval(ctx));
+                    default: break;
+                }
+                break;
+            }
+            default: break;
+        }
+        return toDoubleOperand(node);
+    }
+
+    private EvalDouble toDoubleOperand(Node<?> node) {
+        Eval<Double> value = toNumber(node);
+        return ctx -> {
+            Double v = value.eval(ctx);
+            if (v == null) throw coercionFailed(new NullPointerException(), null, node, Double.class);
+            return v;
+        };
+    }
+
+    private Eval<?> compileUnaryOperator(Node<UnaryOperator> operator) {
+        Node<?> operand = operator.child(0);
+        UnaryOperator op = operator.getValue();
+        switch (op) {
+            case NOT: {
+                Eval<Boolean> value = toBoolean(operand);
+                return ctx -> !value.eval(ctx);
+            }
+            case PLUS: return toNumber(operand);
+            case MINUS: {
+                Eval<Double> value = toNumber(operand);
+                return ctx -> UnaryOperator.negate(value.eval(ctx));
+            }
+            default: return ctx -> {
+                throw new IllegalExpressionException("Unary operator not supported for direct evaluation: " + op);
+            };
+        }
+    }
+
+    private Eval<?> compileFunction(Node<NamedFunction> fn) {
+        NamedFunction fnInfo = fn.getValue();
+        if (fnInfo.isAggregating()) {
+            return compileAggFunction(fn);
+        }
+        if (fnInfo == NamedFunction.subExpression) {
+            return ctx -> null; // return value of only data item in the expression from map
+        }
+        switch (fnInfo) {
+            // common functions
+            case firstNonNull: {
+                List<Eval<Object>> values = fn.children().map(this::toMixed).collect(toList());
+                return ctx -> {
+                    if (overrides(ctx.functions, LAZY_FIRST_NON_NULL))
+                        return ctx.functions.firstNonNull(toSuppliers(ctx, values));
+                    if (overrides(ctx.functions, EAGER_FIRST_NON_NULL))
+                        return ctx.functions.firstNonNull(evalAll(ctx, values));
+                    for (Eval<Object> value : values) {
+                        Object v = value.eval(ctx);
+                        if (v != null) return v;
+                    }
+                    return null;
+                };
+            }
+            case greatest: {
+                Eval<List<Double>> values = toNumbers(fn.children().collect(toList()));
+                return ctx -> ctx.functions.greatest(values.eval(ctx));
+            }
+            case ifThenElse: {
+                Eval<Boolean> condition = toBoolean(fn.child(0));
+                Eval<Object> ifValue = toMixed(fn.child(1));
+                Eval<Object> elseValue = toMixed(fn.child(2));
+                return ctx -> {
+                    if (overrides(ctx.functions, LAZY_IF_THEN_ELSE))
+                        return ctx.functions.ifThenElse(condition.eval(ctx), () -> ifValue.eval(ctx), () -> elseValue.eval(ctx));
+                    if (overrides(ctx.functions, EAGER_IF_THEN_ELSE))
+                        return ctx.functions.ifThenElse(condition.eval(ctx), ifValue.eval(ctx), elseValue.eval(ctx));
+                    return Boolean.TRUE.equals(condition.eval(ctx)) ? ifValue.eval(ctx) : elseValue.eval(ctx);
+                };
+            }
+            case isNotNull: {
+                Eval<Object> value = toMixed(fn.child(0));
+                return ctx -> ctx.functions.isNotNull(value.eval(ctx));
+            }
+            case isNull: {
+                Eval<Object> value = toMixed(fn.child(0));
+                return ctx -> ctx.functions.isNull(value.eval(ctx));
+            }
+            case least: {
+                Eval<List<Double>> values = toNumbers(fn.children().collect(toList()));
+                return ctx -> ctx.functions.least(values.eval(ctx));
+            }
+            case log: {
+                Eval<Double> n = toNumber(fn.child(0));
+                if (fn.size() == 1)
+                    return ctx -> ctx.functions.log(n.eval(ctx));
+                Eval<Double> base = toNumber(fn.child(1));
+                return ctx -> ctx.functions.log(n.eval(ctx)) / ctx.functions.log(base.eval(ctx));
+            }
+            case log10: {
+                Eval<Double> n = toNumber(fn.child(0));
+                return ctx -> ctx.functions.log10(n.eval(ctx));
+            }
+            case removeZeros: {
+                Eval<Double> n = toNumber(fn.child(0));
+                return ctx -> ctx.functions.removeZeros(n.eval(ctx));
+            }
+
+            // d2 functions
+            case d2_addDays: {
+                Eval<LocalDate> date = toDate(fn.child(0));
+                Eval<Double> days = toNumber(fn.child(1));
+                return ctx -> ctx.functions.d2_addDays(date.eval(ctx), days.eval(ctx));
+            }
+            case d2_ceil: {
+                Eval<Double> value = toNumber(fn.child(0));
+                return ctx -> ctx.functions.d2_ceil(value.eval(ctx));
+            }
+            case d2_condition: {
+                Eval<String> condition = toStr(fn.child(0));
+                Eval<Object> ifValue = toMixed(fn.child(1));
+                Eval<Object> elseValue = toMixed(fn.child(2));
+                return ctx -> ctx.functions.d2_condition(condition.eval(ctx), () -> ifValue.eval(ctx),
+                        () -> elseValue.eval(ctx));
+            }
+            case d2_concatenate: {
+                Eval<List<String>> values = toStrings(fn.children().collect(toList()));
+                return ctx -> ctx.functions.d2_concatenate(values.eval(ctx));
+            }
+            case d2_count: {
+                Eval<VariableValue> value = toVar(fn.child(0));
+                return ctx -> ctx.functions.d2_count(value.eval(ctx));
+            }
+            case d2_countIfValue: {
+                Eval<VariableValue> value = toVar(fn.child(0));
+                Eval<Object> match = toMixed(fn.child(1));
+                return ctx -> ctx.functions.d2_countIfValue(value.eval(ctx), match.eval(ctx));
+            }
+            case d2_countIfZeroPos: {
+                Eval<VariableValue> value = toVar(fn.child(0));
+                return ctx -> ctx.functions.d2_countIfZeroPos(value.eval(ctx));
+            }
+            case d2_daysBetween: {
+                Eval<LocalDate> start = toDate(fn.child(0));
+                Eval<LocalDate> end = toDate(fn.child(1));
+                return ctx -> ctx.functions.d2_daysBetween(start.eval(ctx), end.eval(ctx));
+            }
+            case d2_extractDataMatrixValue: {
+                Eval<String> key = toStr(fn.child(0));
+                Eval<String> value = toStr(fn.child(1));
+                return ctx -> ctx.functions.d2_extractDataMatrixValue(key.eval(ctx), value.eval(ctx));
+            }
+            case d2_floor: {
+                Eval<Double> value = toNumber(fn.child(0));
+                return ctx -> ctx.functions.d2_floor(value.eval(ctx));
+            }
+            case d2_hasUserRole: {
+                Eval<String> role = toStr(fn.child(0));
+                return ctx -> ctx.functions.d2_hasUserRole(role.eval(ctx),
+                        ctx.data.getSupplementaryValues().get("USER"));
+            }
+            case d2_hasValue: {
+                Eval<VariableValue> value = toVar(fn.child(0));
+                return ctx -> ctx.functions.d2_hasValue(value.eval(ctx));
+            }
+            case d2_inOrgUnitGroup: {
+                Eval<String> group = toStr(fn.child(0));
+                return ctx -> ctx.functions.d2_inOrgUnitGroup(group.eval(ctx),
+                        ctx.data.getProgramRuleVariableValues().get("org_unit"), ctx.data.getSupplementaryValues());
+            }
+            case d2_lastEventDate: {
+                Eval<String> name = toStr(fn.child(0));
+                return ctx -> ctx.functions.d2_lastEventDate(
+                        ctx.data.getProgramRuleVariableValues().get(name.eval(ctx)));
+            }
+            case d2_left: {
+                Eval<String> input = toStr(fn.child(0));
+                Eval<Integer> length = toInteger(fn.child(1));
+                return ctx -> ctx.functions.d2_left(input.eval(ctx), length.eval(ctx));
+            }
+            case d2_length: {
+                Eval<String> str = toStr(fn.child(0));
+                return ctx -> ctx.functions.d2_length(str.eval(ctx));
+            }
+            case d2_maxValue: {
+                Eval<VariableValue> value = toVar(fn.child(0));
+                return ctx -> ctx.functions.d2_maxValue(value.eval(ctx));
+            }
+            case d2_minutesBetween: {
+                Eval<LocalDate> start = toDate(fn.child(0));
+                Eval<LocalDate> end = toDate(fn.child(1));
+                return ctx -> ctx.functions.d2_minutesBetween(start.eval(ctx), end.eval(ctx));
+            }
+            case d2_minValue: {
+                Eval<VariableValue> value = toVar(fn.child(0));
+                return ctx -> ctx.functions.d2_minValue(value.eval(ctx));
+            }
+            case d2_modulus: {
+                Eval<Double> left = toNumber(fn.child(0));
+                Eval<Double> right = toNumber(fn.child(1));
+                return ctx -> ctx.functions.d2_modulus(left.eval(ctx), right.eval(ctx));
+            }
+            case d2_monthsBetween: {
+                Eval<LocalDate> start = toDate(fn.child(0));
+                Eval<LocalDate> end = toDate(fn.child(1));
+                return ctx -> ctx.functions.d2_monthsBetween(start.eval(ctx), end.eval(ctx));
+            }
+            case d2_oizp: {
+                Eval<Double> value = toNumber(fn.child(0));
+                return ctx -> ctx.functions.d2_oizp(value.eval(ctx));
+            }
+            case d2_right: {
+                Eval<String> input = toStr(fn.child(0));
+                Eval<Integer> length = toInteger(fn.child(1));
+                return ctx -> ctx.functions.d2_right(input.eval(ctx), length.eval(ctx));
+            }
+            case d2_round: {
+                Eval<Double> value = toNumber(fn.child(0));
+                Eval<Integer> precision = fn.size() <= 1 ? ctx -> 0 : toInteger(fn.child(1));
+                return ctx -> ctx.functions.d2_round(value.eval(ctx), precision.eval(ctx));
+            }
+            case d2_split: {
+                Eval<String> input = toStr(fn.child(0));
+                Eval<String> delimiter = toStr(fn.child(1));
+                Eval<Integer> index = toInteger(fn.child(2));
+                return ctx -> ctx.functions.d2_split(input.eval(ctx), delimiter.eval(ctx), index.eval(ctx));
+            }
+            case d2_substring: {
+                Eval<String> input = toStr(fn.child(0));
+                Eval<Integer> beginIndex = toInteger(fn.child(1));
+                Eval<Integer> endIndex = toInteger(fn.child(2));
+                return ctx -> ctx.functions.d2_substring(input.eval(ctx), beginIndex.eval(ctx), endIndex.eval(ctx));
+            }
+            case d2_validatePattern: {
+                Eval<String> input = toStr(fn.child(0));
+                Eval<String> regex = toStr(fn.child(1));
+                return ctx -> ctx.functions.d2_validatePattern(input.eval(ctx), regex.eval(ctx));
+            }
+            case d2_weeksBetween: {
+                Eval<LocalDate> start = toDate(fn.child(0));
+                Eval<LocalDate> end = toDate(fn.child(1));
+                return ctx -> ctx.functions.d2_weeksBetween(start.eval(ctx), end.eval(ctx));
+            }
+            case d2_yearsBetween: {
+                Eval<LocalDate> start = toDate(fn.child(0));
+                Eval<LocalDate> end = toDate(fn.child(1));
+                return ctx -> ctx.functions.d2_yearsBetween(start.eval(ctx), end.eval(ctx));
+            }
+            case d2_zing: {
+                Eval<Double> value = toNumber(fn.child(0));
+                return ctx -> ctx.functions.d2_zing(value.eval(ctx));
+            }
+            case d2_zpvc: {
+                Eval<List<Double>> values = toNumbers(fn.children().collect(toList()));
+                return ctx -> ctx.functions.d2_zpvc(values.eval(ctx));
+            }
+            case d2_zScoreHFA: {
+                Eval<Double> parameter = toNumber(fn.child(0));
+                Eval<Double> weight = toNumber(fn.child(1));
+                Eval<String> gender = toStr(fn.child(2));
+                return ctx -> ctx.functions.d2_zScoreHFA(parameter.eval(ctx), weight.eval(ctx), gender.eval(ctx));
+            }
+            case d2_zScoreWFA: {
+                Eval<Double> parameter = toNumber(fn.child(0));
+                Eval<Double> weight = toNumber(fn.child(1));
+                Eval<String> gender = toStr(fn.child(2));
+                return ctx -> ctx.functions.d2_zScoreWFA(parameter.eval(ctx), weight.eval(ctx), gender.eval(ctx));
+            }
+            case d2_zScoreWFH: {
+                Eval<Double> parameter = toNumber(fn.child(0));
+                Eval<Double> weight = toNumber(fn.child(1));
+                Eval<String> gender = toStr(fn.child(2));
+                return ctx -> ctx.functions.d2_zScoreWFH(parameter.eval(ctx), weight.eval(ctx), gender.eval(ctx));
+            }
+
+            // "not implemented yet"
+            default: {
+                String name = fnInfo.getName();
+                return ctx -> ctx.functions.unsupported(name);
+            }
+        }
+    }
+
+    private Eval<Double> compileAggFunction(Node<NamedFunction> fn) {
+        List<DataItem> items = fn.aggregate(new ArrayList<>(), Node::toDataItem, List::add,
+                node -> node.getType() == NodeType.DATA_ITEM);
+        if (items.isEmpty()) return ctx -> {
+            throw new IllegalExpressionException("Aggregate function used without data item");
+        };
+        DataItem item0 = items.get(0);
+        int slot0 = dataItemSlot(item0);
+        Node<?> arg = fn.child(0);
+        EvalSeries series = toSeries(arg);
+        // the aggregate might sort the values so the values of a data item must be copied
+        boolean copy = unwrap(arg).getType() == NodeType.DATA_ITEM;
+        Eval<Double> value = unshared().toNumber(arg);
+        Aggregate aggregate = compileAggregate(fn);
+        return ctx -> {
+            double[] val0 = (double[]) dataItemValue(ctx.data, item0, slot0);
+            double[] values = series == null ? null : series.eval(ctx, val0.length);
+            if (values != null) {
+                return aggregate.apply(ctx, copy ? values.clone() : values);
+            }
+            values = new double[val0.length];
+            for (ctx.dataItemIndex = 0; ctx.dataItemIndex < values.length; ctx.dataItemIndex++) {
+                Number v = value.eval(ctx);
+                values[ctx.dataItemIndex] = v == null ? Double.NaN : v.doubleValue();
+            }
+            ctx.dataItemIndex = 0;
+            return aggregate.apply(ctx, values);
+        };
+    }
+
+    /**
+     * Compiles the argument of an aggregate function so that it is computed for all indexes at once, operating on
+     * whole arrays instead of evaluating the argument for each index.
+     *
+     * When computing a series might not give the same values as evaluating each index, like when a value is null or
+     * an operation fails, the series is not computed and each index is evaluated on its own instead.
+     *
+     * @return the series or null if the node cannot be computed as a series
+     */
+    private EvalSeries toSeries(Node<?> node) {
+        switch (node.getType()) {
+            case PAR:
+            case ARGUMENT: return toSeries(node.child(0));
+            case NUMBER:
+            case INTEGER: {
+                double value = ((Number) node.getValue()).doubleValue();
+                return (ctx, length) -> filled(length, value);
+            }
+            case DATA_ITEM: {
+                DataItem item;
+                try {
+                    item = node.toDataItem();
+                } catch (RuntimeException ex) {
+                    return null;
+                }
+                int slot = dataItemSlot(item);
+                return (ctx, length) -> {
+                    ExpressionData data = ctx.data;
+                    if (!data.getProgramRuleVariableValues().isEmpty())
+                        return null;
+                    Object value = dataItemValue(data, item, slot);
+                    if (value instanceof double[]) {
+                        double[] values = (double[]) value;
+                        if (values.length == length) return values;
+                        return values.length > length ? Arrays.copyOf(values, length) : null;
+                    }
+                    return value instanceof Number ? filled(length, ((Number) value).doubleValue()) : null;
+                };
+            }
+            case UNARY_OPERATOR: {
+                UnaryOperator op = (UnaryOperator) node.getValue();
+                EvalSeries operand = op == UnaryOperator.NOT ? null : toSeries(node.child(0));
+                if (operand == null || op == UnaryOperator.PLUS) return operand;
+                return (ctx, length) -> {
+                    double[] values = operand.eval(ctx, length);
+                    if (values == null) return null;
+                    double[] negated = new double[length];
+                    for (int i = 0; i < length; i++)
+                        negated[i] = -values[i];
+                    return negated;
+                };
+            }
+            case BINARY_OPERATOR: {
+                BinaryOperator op = (BinaryOperator) node.getValue();
+                EvalSeries left = op.isArithmetic() ? toSeries(node.child(0)) : null;
+                EvalSeries right = left == null ? null : toSeries(node.child(1));
+                if (right == null) return null;
+                if (arithmetic == Arithmetic.DOUBLE) {
+                    DoubleBinaryOperator f = toDoubleOperator(op);
+                    return (ctx, length) -> {
+                        double[] l = left.eval(ctx, length);
+                        double[] r = l == null ? null : right.eval(ctx, length);
+                        if (r == null) return null;
+                        double[] values = new double[length];
+                        for (int i = 0; i < length; i++)
+                            values[i] = f.applyAsDouble(l[i], r[i]);
+                        return values;
+                    };
+                }
+                BiFunction<Number, Number, Number> f = toDecimalOperator(op);
+                return (ctx, length) -> {
+                    double[] l = left.eval(ctx, length);
+                    double[] r = l == null ? null : right.eval(ctx, length);
+                    if (r == null) return null;
+                    double[] values = new double[length];
+                    try {
+                        for (int i = 0; i < length; i++)
+                            values[i] = f.apply(l[i], r[i]).doubleValue();
+                    } catch (RuntimeException ex) {
+                        // evaluating each index fails with the expected error
+                        return null;
+                    }
+                    return values;
+                };
+            }
+            default: return null;
+        }
+    }
+
+    private static double[] filled(int length, double value) {
+        double[] values = new double[length];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    static DoubleBinaryOperator toDoubleOperator(BinaryOperator op) {
+        switch (op) {
+            case ADD: return (l, r) -> l + r;
+            case SUB: return (l, r) -> l - r;
+            case MUL: return (l, r) -> l * r;
+            case DIV: return (l, r) -> l / r;
+            case MOD: return (l, r) -> l % r;
+            case EXP: return Math::pow;
+            default: throw new UnsupportedOperationException(op.name());
+        }
+    }
+
+    static BiFunction<Number, Number, Number> toDecimalOperator(BinaryOperator op) {
+        switch (op) {
+            case ADD: return BinaryOperator::add;
+            case SUB: return BinaryOperator::subtract;
+            case MUL: return BinaryOperator::multiply;
+            case DIV: return BinaryOperator::divide;
+            case MOD: return BinaryOperator::modulo;
+            case EXP: return BinaryOperator::exp;
+            default: throw new UnsupportedOperationException(op.name());
+        }
+    }
+
+    private static Node<?> unwrap(Node<?> node) {
+        NodeType type = node.getType();
+        return type == NodeType.PAR || type == NodeType.ARGUMENT ? unwrap(node.child(0)) : node;
+    }
+
+    private Aggregate compileAggregate(Node<NamedFunction> fn) {
+        switch (fn.getValue()) {
+            case avg: return (ctx, values) -> ctx.functions.avg(values);
+            case count: return (ctx, values) -> ctx.functions.count(values);
+            case max: return (ctx, values) -> ctx.functions.max(values);
+            case median: return (ctx, values) -> ctx.functions.median(values);
+            case min: return (ctx, values) -> ctx.functions.min(values);
+            case percentileCont: {
+                Eval<Double> fraction = toNumber(fn.child(1));
+                return (ctx, values) -> ctx.functions.percentileCont(values, fraction.eval(ctx));
+            }
+            case stddev: return (ctx, values) -> ctx.functions.stddev(values);
+            case stddevPop: return (ctx, values) -> ctx.functions.stddevPop(values);
+            case stddevSamp: return (ctx, values) -> ctx.functions.stddevSamp(values);
+            case sum: return (ctx, values) -> ctx.functions.sum(values);
+            case variance: return (ctx, values) -> ctx.functions.variance(values);
+            default: return (ctx, values) -> {
+                throw new UnsupportedOperationException();
+            };
+        }
+    }
+
+    private Eval<?> compileDataItem(Node<?> item) {
+        DataItem dataItem;
+        try {
+            dataItem = item.toDataItem();
+        } catch (RuntimeException ex) {
+            // fail when the item is evaluated
+            return ctx -> item.toDataItem();
+        }
+        String key = dataItem.getKey();
+        int slot = dataItemSlot(dataItem);
+        return ctx -> {
+            ExpressionData data = ctx.data;
+            if (!data.getProgramRuleVariableValues().isEmpty()) {
+                return data.getProgramRuleVariableValues().get(key);
+            }
+            Object value = dataItemValue(data, dataItem, slot);
+            if (value instanceof double[])
+                return ((double[]) value)[ctx.dataItemIndex];
+            return value != null && value.getClass().isArray()
+                    ? Array.get(value, ctx.dataItemIndex)
+                    : value;
+        };
+    }
+
+    private Eval<?> compileVariable(Node<?> variable) {
+        Eval<String> name = toStr(variable.child(0));
+        return ctx -> {
+            String n = name.eval(ctx);
+            Map<String, ?> values = !ctx.data.getProgramRuleVariableValues().isEmpty()
+                    ? ctx.data.getProgramRuleVariableValues()
+                    : ctx.data.getProgramVariableValues();
+            if (!values.containsKey(n))
+                throw new IllegalExpressionException(format("Unknown variable: '%s'", n));
+            return values.get(n);
+        };
+    }
+
+    /*
+    Result Type conversion
+     */
+
+    private <T> Eval<T> coerce(Node<?> node, Class<T> target, Function<Object, T> cast) {
+        Node<?> literal = node;
+        while (literal.getType() == NodeType.PAR || literal.getType() == NodeType.ARGUMENT)
+            literal = literal.child(0);
+        if (isLiteral(literal.getType())) {
+            // literals are coerced once, those that cannot be coerced fail on evaluation
+            try {
+                T value = cast.apply(literal.getValue());
+                return ctx -> value;
+            } catch (RuntimeException ex) {
+                // fall through
+            }
+        }
+        Eval<?> eval = compileNode(node);
+        return ctx -> {
+            Object value = null;
+            try {
+                value = eval.eval(ctx);
+                return cast.apply(value);
+            } catch (RuntimeException ex) {
+                throw coercionFailed(ex, value, node, target);
+            }
+        };
+    }
+
+    /**
+     * @return true, if nodes of the type are compiled to their {@link Node#getValue()}
+     */
+    private static boolean isLiteral(NodeType type) {
+        switch (type) {
+            case NULL:
+            case BOOLEAN:
+            case UID:
+            case DATE:
+            case NUMBER:
+            case STRING:
+            case INTEGER:
+            case IDENTIFIER: return true;
+            default: return false;
+        }
+    }
+
+    static RuntimeException coercionFailed(RuntimeException ex, Object value, Node<?> node, Class<?> target) {
+        if (ex instanceof IllegalExpressionException || ex instanceof UnsupportedOperationException)
+            return ex;
+        return new IllegalExpressionException(format("Failed to coerce value '%s' (%s) to %s: %s%n\t in expression: %s",
+                value, value == null ? "" : value.getClass().getSimpleName(), target.getSimpleName(), ex.getMessage(), DescribeConsumer.toNormalisedExpression(node)));
+    }
+
+    Eval<String> toStr(Node<?> node) {
+        return coerce(node, String.class, Typed::toStringTypeCoercion);
+    }
+
+    Eval<Boolean> toBoolean(Node<?> node) {
+        return coerce(node, Boolean.class, Typed::toBooleanTypeCoercion);
+    }
+
+    Eval<Double> toNumber(Node<?> node) {
+        return coerce(node, Double.class, Typed::toNumberTypeCoercion);
+    }
+
+    Eval<LocalDate> toDate(Node<?> node) {
+        return coerce(node, LocalDate.class, Typed::toDateTypeCoercion);
+    }
+
+    private Eval<Integer> toInteger(Node<?> node) {
+        Eval<Double> number = toNumber(node);
+        return ctx -> {
+            Double val = number.eval(ctx);
+            if (val == null) return null;
+            if (val % 1d != 0d) throw new IllegalArgumentException("Expected an integer but got a floating point for: "+node);
+            return val.intValue();
+        };
+    }
+
+    private Eval<Object> toMixed(Node<?> node) {
+        return coerce(node, Object.class, Typed::toMixedTypeTypeCoercion);
+    }
+
+    private Eval<VariableValue> toVar(Node<?> node) {
+        return coerce(node, VariableValue.class, VariableValue.class::cast);
+    }
+
+    private Eval<List<Object>> toMixed(List<Node<?>> nodes) {
+        return toValues(nodes, this::toMixed);
+    }
+
+    private Eval<List<Double>> toNumbers(List<Node<?>> nodes) {
+        return toValues(nodes, this::toNumber);
+    }
+
+    private Eval<List<String>> toStrings(List<Node<?>> nodes) {
+        return toValues(nodes, this::toStr);
+    }
+
+    private static ClassValue<Boolean> overridden(String name, Class<?>... parameterTypes) {
+        return new ClassValue<>() {
+            @Override
+            protected Boolean computeValue(Class<?> type) {
+                try {
+                    return type.getMethod(name, parameterTypes).getDeclaringClass() != ExpressionFunctions.class;
+                } catch (NoSuchMethodException ex) {
+                    return true;
+                }
+            }
+        };
+    }
+
+    private static boolean overrides(ExpressionFunctions functions, ClassValue<Boolean> method) {
+        return method.get(functions.getClass());
+    }
+
+    private static List<Object> evalAll(Context ctx, List<Eval<Object>> values) {
+        List<Object> res = new ArrayList<>(values.size());
+        for (Eval<Object> value : values)
+            res.add(value.eval(ctx));
+        return res;
+    }
+
+    private static Supplier<?>[] toSuppliers(Context ctx, List<Eval<Object>> values) {
+        Supplier<?>[] suppliers = new Supplier<?>[values.size()];
+        for (int i = 0; i < suppliers.length; i++) {
+            Eval<Object> value = values.get(i);
+            suppliers[i] = () -> value.eval(ctx);
+        }
+        return suppliers;
+    }
+
+    private <T> Eval<List<T>> toValues(List<Node<?>> nodes, Function<Node<?>, Eval<T>> compile) {
+        List<Eval<T>> elements = nodes.stream().map(compile).collect(toList());
+        return ctx -> {
+            List<T> values = new ArrayList<>(elements.size());
+            for (Eval<T> e : elements)
+                values.add(e.eval(ctx));
+            return values;
+        };
+    }
+
+    /**
+     * Finds the structurally equal subtrees of a tree.
+     *
+     * Each subtree gets a key made of its type, raw value and the keys of its children and modifiers. Data items are
+     * identified by their {@link DataItem} which also includes the modifiers that apply to them.
+     */
+    private static final class SharedSubtrees {
+
+        private final Map<Object, List<Node<?>>> occurrences = new HashMap<>();
+
+        /**
+         * @return number of slots needed
+         */
+        int assignSlots(List<? extends Node<?>> roots, Map<Node<?>, Integer> slotByNode) {
+            for (Node<?> root : roots)
+                key(root, true);
+            int slot = 0;
+            for (List<Node<?>> nodes : occurrences.values()) {
+                if (nodes.size() > 1) {
+                    for (Node<?> node : nodes)
+                        slotByNode.put(node, slot);
+                    slot++;
+                }
+            }
+            return slot;
+        }
+
+        private Object key(Node<?> node, boolean shareable) {
+            NodeType type = node.getType();
+            Object key;
+            if (type == NodeType.DATA_ITEM) {
+                try {
+                    key = node.toDataItem();
+                } catch (RuntimeException ex) {
+                    key = node; // fails when evaluated, not worth sharing
+                }
+            } else {
+                List<Object> parts = new ArrayList<>(Arrays.asList(type, node.getRawValue()));
+                boolean aggregate = type == NodeType.FUNCTION && ((NamedFunction) node.getValue()).isAggregating();
+                for (int i = 0; i < node.size(); i++)
+                    parts.add(key(node.child(i), shareable && !(aggregate && i == 0)));
+                for (Node<?> modifier : node.modifiers())
+                    parts.add(key(modifier, false));
+                key = parts;
+            }
+            if (shareable && (type.isOperator() || type == NodeType.FUNCTION || type == NodeType.DATA_ITEM
+                    || type == NodeType.VARIABLE))
+                occurrences.computeIfAbsent(key, k -> new ArrayList<>()).add(node);
+            return key;
+        }
+    }
+}
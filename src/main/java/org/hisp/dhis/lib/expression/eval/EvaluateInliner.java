@@ -0,0 +1,104 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.DataItemType;
+import org.hisp.dhis.lib.expression.spi.ID;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.spi.QueryModifiers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Replaces {@code N{uid}} indicator data items with the tree of the referenced indicator's expression so that a chain
+ * of indicators is compiled and evaluated as one flat tree.
+ *
+ * References within the inlined trees are inlined as well. An indicator referenced more than once is resolved once,
+ * all references share the same inlined tree. Indicator references with modifiers are not inlined as the modifiers
+ * would have to apply to the data items of the referenced expression.
+ *
+ * The tree given is not changed, subtrees that contain an inlined reference are copied, all others are shared with
+ * the original tree. An inlined reference is a {@link Substitute} that is still described as the {@code N{uid}} data
+ * item it replaces.
+ *
+ * @author Jan Bernitt
+ */
+final class EvaluateInliner {
+
+    private static final QueryModifiers NO_MODIFIERS = QueryModifiers.builder().build();
+
+    private final Function<ID, Node<?>> resolver;
+    private final Map<ID, Node<?>> inlinedById = new HashMap<>();
+    /**
+     * The indicators currently being inlined, used to detect cycles
+     */
+    private final Set<ID> path = new LinkedHashSet<>();
+
+    private EvaluateInliner(Function<ID, Node<?>> resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @param root the tree to inline indicator references in
+     * @param resolver provides the tree of a referenced indicator, null when the indicator is not known
+     * @return the tree with inlined references, the root itself if nothing was inlined
+     * @throws IllegalExpressionException when indicators reference each other in a cycle
+     */
+    static Node<?> inline(Node<?> root, Function<ID, Node<?>> resolver) {
+        return new EvaluateInliner(resolver).inlineNode(root);
+    }
+
+    private Node<?> inlineNode(Node<?> node) {
+        NodeType type = node.getType();
+        if (type == NodeType.DATA_ITEM)
+            return inlineDataItem(node);
+        if (type != NodeType.PAR && type != NodeType.ARGUMENT && type != NodeType.FUNCTION && !type.isOperator())
+            return node;
+        List<Node<?>> children = new ArrayList<>(node.size());
+        boolean changed = false;
+        for (int i = 0; i < node.size(); i++) {
+            Node<?> child = node.child(i);
+            Node<?> inlined = inlineNode(child);
+            changed |= inlined != child;
+            children.add(inlined);
+        }
+        return changed ? EvaluateOptimizer.copy(node, children) : node;
+    }
+
+    private Node<?> inlineDataItem(Node<?> node) {
+        DataItem item;
+        try {
+            item = node.toDataItem();
+        } catch (RuntimeException ex) {
+            return node; // left as it is, evaluating it reports the error
+        }
+        if (item.getType() != DataItemType.INDICATOR || !NO_MODIFIERS.equals(item.getModifiers()))
+            return node;
+        ID id = item.getUid0();
+        Node<?> inlined = inlinedById.get(id);
+        if (inlined != null)
+            return new Substitute(node, inlined, null);
+        if (!path.add(id))
+            throw new IllegalExpressionException(format("Indicators reference each other in a cycle: %s -> %s",
+                    path.stream().map(ID::getValue).collect(joining(" -> ")), id.getValue()));
+        Node<?> referenced = resolver.apply(id);
+        if (referenced == null) {
+            path.remove(id);
+            return node;
+        }
+        inlined = inlineNode(referenced);
+        path.remove(id);
+        inlinedById.put(id, inlined);
+        return new Substitute(node, inlined, null);
+    }
+}
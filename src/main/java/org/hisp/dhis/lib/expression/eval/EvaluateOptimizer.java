@@ -0,0 +1,201 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
+import org.hisp.dhis.lib.expression.ast.NamedFunction;
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.ast.Nodes;
+import org.hisp.dhis.lib.expression.ast.UnaryOperator;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies a {@link Node} tree before it is compiled for evaluation.
+ *
+ * <ul>
+ *     <li>operators with only literal operands are computed once and replaced by the literal result</li>
+ *     <li>{@code if} with a literal condition is replaced by the branch that is taken</li>
+ *     <li>{@code x * 1}, {@code 1 * x}, {@code x / 1}, {@code x + 0}, {@code 0 + x} and {@code x - 0} become {@code x}
+ *     when {@code x} is itself an arithmetic operation</li>
+ *     <li>{@code !!x} becomes {@code x} when {@code x} is a negation or comparison</li>
+ *     <li>nested parentheses are removed</li>
+ * </ul>
+ *
+ * Each simplification gives the same result as evaluating the original tree (except that {@code x + 0} might turn a
+ * negative zero positive). Operations that fail for their literal operands are kept so that they still fail when
+ * evaluated. Skipping the branch of an {@code if} that is not taken assumes the default
+ * {@link ExpressionFunctions#ifThenElse(Boolean, Object, Object)}.
+ *
+ * The tree given is not changed, subtrees that are simplified are copied, all others are shared with the original
+ * tree. A simplified subtree is a {@link Substitute} that is still described as the original one so that evaluation
+ * errors name the expression as it was written.
+ *
+ * @author Jan Bernitt
+ */
+final class EvaluateOptimizer {
+
+    private static final ExpressionFunctions NO_FUNCTIONS = name -> {
+        throw new UnsupportedOperationException(name);
+    };
+    private static final ExpressionData NO_DATA = ExpressionData.builder().build();
+
+    private final Arithmetic arithmetic;
+
+    private EvaluateOptimizer(Arithmetic arithmetic) {
+        this.arithmetic = arithmetic;
+    }
+
+    /**
+     * @param root the tree to simplify
+     * @param arithmetic the arithmetic used to compute operations with literal operands
+     * @return the simplified tree, the root itself if nothing could be simplified
+     */
+    static Node<?> optimize(Node<?> root, Arithmetic arithmetic) {
+        return new EvaluateOptimizer(arithmetic).optimizeNode(root);
+    }
+
+    private Node<?> optimizeNode(Node<?> node) {
+        NodeType type = node.getType();
+        if (type != NodeType.PAR && type != NodeType.ARGUMENT && type != NodeType.FUNCTION && !type.isOperator())
+            return node;
+        List<Node<?>> children = new ArrayList<>(node.size());
+        boolean changed = false;
+        for (int i = 0; i < node.size(); i++) {
+            Node<?> child = node.child(i);
+            Node<?> optimized = optimizeNode(child);
+            changed |= optimized != child;
+            children.add(optimized);
+        }
+        Node<?> simplified = null;
+        // the type the original coerced the simplified subtree to, if any
+        ValueType coercedTo = null;
+        switch (type) {
+            case PAR: {
+                Node<?> content = children.get(0);
+                if (content.getType() == NodeType.PAR)
+                    simplified = content.child(0);
+                break;
+            }
+            case FUNCTION: {
+                simplified = optimizeIfThenElse(node, children);
+                coercedTo = ValueType.MIXED;
+                break;
+            }
+            case UNARY_OPERATOR:
+            case BINARY_OPERATOR: {
+                if (children.stream().allMatch(child -> unwrap(child).getType().isValueLiteral()))
+                    simplified = fold(copy(node, children));
+                if (simplified == null) {
+                    simplified = type == NodeType.UNARY_OPERATOR
+                            ? optimizeUnaryOperator(node, children)
+                            : optimizeBinaryOperator(node, children);
+                    coercedTo = type == NodeType.UNARY_OPERATOR ? ValueType.BOOLEAN : ValueType.NUMBER;
+                }
+                break;
+            }
+            default: break;
+        }
+        if (simplified != null)
+            return new Substitute(node, simplified, coercedTo);
+        if (changed && type == NodeType.PAR)
+            return new Substitute(node, children.get(0), null);
+        return changed ? copy(node, children) : node;
+    }
+
+    private static Node<?> optimizeIfThenElse(Node<?> fn, List<Node<?>> args) {
+        if (fn.getValue() != NamedFunction.ifThenElse)
+            return null;
+        Node<?> condition = unwrap(args.get(0).child(0));
+        if (condition.getType() != NodeType.BOOLEAN)
+            return null;
+        Node<?> taken = args.get(Boolean.TRUE.equals(condition.getValue()) ? 1 : 2);
+        // variables and data items might be VariableValues which are unwrapped by if
+        NodeType type = unwrap(taken).getType();
+        return type == NodeType.VARIABLE || type == NodeType.DATA_ITEM ? null : taken;
+    }
+
+    private static Node<?> optimizeUnaryOperator(Node<?> operator, List<Node<?>> children) {
+        if (operator.getValue() != UnaryOperator.NOT)
+            return null;
+        Node<?> operand = unwrap(children.get(0));
+        if (operand.getType() != NodeType.UNARY_OPERATOR || operand.getValue() != UnaryOperator.NOT)
+            return null;
+        return isNonNullBoolean(operand.child(0)) ? operand.child(0) : null;
+    }
+
+    private static Node<?> optimizeBinaryOperator(Node<?> operator, List<Node<?>> children) {
+        Node<?> left = children.get(0);
+        Node<?> right = children.get(1);
+        switch ((BinaryOperator) operator.getValue()) {
+            case ADD: return isNumber(left, 0) && isArithmetic(right) ? right : isNumber(right, 0) && isArithmetic(left) ? left : null;
+            case MUL: return isNumber(left, 1) && isArithmetic(right) ? right : isNumber(right, 1) && isArithmetic(left) ? left : null;
+            case SUB: return isNumber(right, 0) && isArithmetic(left) ? left : null;
+            case DIV: return isNumber(right, 1) && isArithmetic(left) ? left : null;
+            default: return null;
+        }
+    }
+
+    /**
+     * Computes an operator with only literal operands.
+     *
+     * @return the literal result or null if the result is not a literal or the computation failed
+     */
+    private Node<?> fold(Node<?> operator) {
+        Object value;
+        try {
+            value = EvaluateCompiler.compile(operator, arithmetic).evaluate(NO_FUNCTIONS, NO_DATA);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+        if (value instanceof Double)
+            return new Nodes.NumberNode(NodeType.NUMBER, value.toString());
+        if (value instanceof Boolean)
+            return new Nodes.BooleanNode(NodeType.BOOLEAN, value.toString());
+        return null;
+    }
+
+    static Node<?> copy(Node<?> node, List<Node<?>> children) {
+        Node<?> copy;
+        switch (node.getType()) {
+            case PAR: copy = new Nodes.ParenthesesNode(node.getType(), node.getRawValue()); break;
+            case ARGUMENT: copy = new Nodes.ArgumentNode(node.getType(), node.getRawValue()); break;
+            case FUNCTION: copy = new Nodes.FunctionNode(node.getType(), node.getRawValue()); break;
+            case UNARY_OPERATOR: copy = new Nodes.UnaryOperatorNode(node.getType(), node.getRawValue()); break;
+            case BINARY_OPERATOR: copy = new Nodes.BinaryOperatorNode(node.getType(), node.getRawValue()); break;
+            default: throw new UnsupportedOperationException("Cannot copy node of type " + node.getType());
+        }
+        children.forEach(copy::addChild);
+        return copy;
+    }
+
+    private static Node<?> unwrap(Node<?> node) {
+        NodeType type = node.getType();
+        return type == NodeType.PAR || type == NodeType.ARGUMENT ? unwrap(node.child(0)) : node;
+    }
+
+    private static boolean isNumber(Node<?> node, double value) {
+        Node<?> literal = unwrap(node);
+        NodeType type = literal.getType();
+        return (type == NodeType.NUMBER || type == NodeType.INTEGER)
+                && ((Number) literal.getValue()).doubleValue() == value;
+    }
+
+    /**
+     * @return true, if the node is an arithmetic operation, the result of which is never null
+     */
+    private static boolean isArithmetic(Node<?> node) {
+        Node<?> op = unwrap(node);
+        return op.getType() == NodeType.BINARY_OPERATOR && ((BinaryOperator) op.getValue()).isArithmetic();
+    }
+
+    private static boolean isNonNullBoolean(Node<?> node) {
+        Node<?> op = unwrap(node);
+        if (op.getType() == NodeType.UNARY_OPERATOR)
+            return op.getValue() == UnaryOperator.NOT;
+        return op.getType() == NodeType.BINARY_OPERATOR && ((BinaryOperator) op.getValue()).isComparison();
+    }
+}
@@ -0,0 +1,30 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+
+/**
+ * The compiled form of an expression that calculates its result value.
+ *
+ * An {@link Evaluator} does not have state of its own. It can be used by multiple threads concurrently.
+ *
+ * The state of an evaluation is kept in scratch space that each thread reuses for all its evaluations of any
+ * {@link Evaluator}. Evaluating an expression does not allocate besides the values it computes. The exceptions are
+ * functions whose {@link org.hisp.dhis.lib.expression.spi.ExpressionFunctions} implementation takes
+ * {@link java.util.function.Supplier}s, like an overridden lazy {@code ifThenElse} or {@code d2:condition}, and
+ * nested evaluations that run while another evaluation on the same thread is not yet done.
+ *
+ * @author Jan Bernitt
+ */
+@FunctionalInterface
+public interface Evaluator {
+
+    /**
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items and variables
+     * @return the result value of the expression
+     * @throws IllegalExpressionException when the expression cannot be evaluated with the given data
+     */
+    Object evaluate(ExpressionFunctions functions, ExpressionData data) throws IllegalExpressionException;
+}
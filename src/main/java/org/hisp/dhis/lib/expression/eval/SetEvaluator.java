@@ -0,0 +1,30 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+
+import java.util.BitSet;
+
+/**
+ * The compiled form of many number expressions that calculates all their results for the same data at once.
+ *
+ * A {@link SetEvaluator} does not have state of its own. It can be used by multiple threads concurrently.
+ *
+ * @author Jan Bernitt
+ */
+@FunctionalInterface
+public interface SetEvaluator {
+
+    /**
+     * Computes the same result for each expression as {@link Evaluator#evaluate} would, coerced to a number.
+     *
+     * @param functions implementation of the named functions, modifiers and data loading
+     * @param data the values of the data items and variables
+     * @param out the result value of each expression by index, null results are {@link Double#NaN}
+     * @param nulls when not null, the bits of the expressions with a null result are set, all others are cleared
+     * @throws IllegalExpressionException when any of the expressions cannot be evaluated with the given data
+     */
+    void evaluate(ExpressionFunctions functions, ExpressionData data, double[] out, BitSet nulls)
+            throws IllegalExpressionException;
+}
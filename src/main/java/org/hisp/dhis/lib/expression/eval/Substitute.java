@@ -0,0 +1,84 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * A subtree that is evaluated in place of an original subtree, like a simplified or an inlined one.
+ *
+ * It is evaluated like parentheses around the substitute but when walked, like when it is described, is the original
+ * subtree. When the original coerced the substitute, like {@code 0 + x} does for {@code x}, the substitute is coerced
+ * the same way so that a failure is reported for the same subtree as before.
+ *
+ * @author Jan Bernitt
+ */
+final class Substitute implements Node<Void> {
+
+    private final Node<?> original;
+    private final Node<?> substitute;
+    /**
+     * The type the original coerced the substitute to, null if it was not coerced
+     */
+    final ValueType coercedTo;
+
+    Substitute(Node<?> original, Node<?> substitute, ValueType coercedTo) {
+        this.original = original;
+        this.substitute = substitute;
+        this.coercedTo = coercedTo;
+    }
+
+    @Override
+    public NodeType getType() {
+        return NodeType.PAR;
+    }
+
+    @Override
+    public ValueType getValueType() {
+        return substitute.getValueType();
+    }
+
+    @Override
+    public String getRawValue() {
+        return null;
+    }
+
+    @Override
+    public Void getValue() {
+        return null;
+    }
+
+    @Override
+    public void visit(Consumer<Node<?>> visitor, Predicate<Node<?>> filter) {
+        if (filter.test(this)) {
+            visitor.accept(this);
+        }
+        substitute.visit(visitor, filter);
+    }
+
+    @Override
+    public void walk(Consumer<Node<?>> walker) {
+        original.walk(walker);
+    }
+
+    @Override
+    public int size() {
+        return 1;
+    }
+
+    @Override
+    public Node<?> child(int index) {
+        if (index != 0)
+            throw new IndexOutOfBoundsException(index);
+        return substitute;
+    }
+
+    @Override
+    public Stream<Node<?>> children() {
+        return Stream.of(substitute);
+    }
+}
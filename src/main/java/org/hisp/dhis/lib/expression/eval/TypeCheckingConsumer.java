@@ -7,8 +7,10 @@ import org.hisp.dhis.lib.expression.ast.NamedFunction;
 import org.hisp.dhis.lib.expression.ast.Node;
 import org.hisp.dhis.lib.expression.ast.NodeType;
 import org.hisp.dhis.lib.expression.ast.UnaryOperator;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
 import org.hisp.dhis.lib.expression.spi.Issues;
 import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.hisp.dhis.lib.expression.spi.VariableValue;
 
 import java.util.List;
 import java.util.function.Consumer;
@@ -21,18 +23,47 @@ import static java.util.stream.Collectors.joining;
 /**
  * Performs basic type checking based on the knowledge about the expectations of operators and functions as well as used value literals.
  *
+ * The types of program rule variables are given by the {@link ExpressionData} of the validation, the tree is not
+ * annotated with them so that a shared tree can be validated with different types concurrently.
+ *
  * @author Jan Bernitt
  */
 @RequiredArgsConstructor
 final class TypeCheckingConsumer implements NodeVisitor {
 
     private final Issues issues;
+    private final ExpressionData data;
+
+    /**
+     * @param node any node of the checked tree
+     * @return the type of the node's value given the variable types of the validation
+     */
+    ValueType typeOf(Node<?> node) {
+        switch (node.getType()) {
+            case VARIABLE: {
+                VariableValue value = data.getProgramRuleVariableValues().get(node.child(0).getRawValue());
+                return value != null && value.valueType() != null ? value.valueType() : node.getValueType();
+            }
+            case PAR: return typeOf(node.child(0));
+            case ARGUMENT: return node.size() == 1 ? typeOf(node.child(0)) : ValueType.MIXED;
+            case FUNCTION: {
+                NamedFunction fn = (NamedFunction) node.getValue();
+                ValueType type = fn.getValueType();
+                return !type.isSame() ? type : typeOf(node.child(fn.getParameterTypes().indexOf(ValueType.SAME)));
+            }
+            case UNARY_OPERATOR: {
+                ValueType type = ((UnaryOperator) node.getValue()).getValueType();
+                return type.isSame() ? typeOf(node.child(0)) : type;
+            }
+            default: return node.getValueType();
+        }
+    }
 
     @Override
     public void visitUnaryOperator(Node<UnaryOperator> operator) {
         Node<?> operand = operator.child(0);
         ValueType expected = operator.getValue().getValueType();
-        ValueType actual = operand.getValueType();
+        ValueType actual = typeOf(operand);
         if (!actual.isAssignableTo(expected)) {
             if (isStaticallyDefined(operand)) {
                 checkEvaluateToType(expected, operand, () ->
@@ -54,7 +85,7 @@ final class TypeCheckingConsumer implements NodeVisitor {
 
     private void checkBinaryOperatorOperand(Node<BinaryOperator> operator, Node<?> operand, String name) {
         ValueType expected = operator.getValue().getOperandsType();
-        ValueType leftActual = operand.getValueType();
+        ValueType leftActual = typeOf(operand);
         if (!leftActual.isAssignableTo(expected)) {
             if (isStaticallyDefined(operand)) {
                 checkEvaluateToType(expected, operand, () ->
@@ -91,7 +122,7 @@ final class TypeCheckingConsumer implements NodeVisitor {
             ValueType expected = expectedTypes.get(Math.min(expectedTypes.size()-1, i));
             if (expected.isSame()) {
                 Node<?> arg = fn.child(i);
-                ValueType actual = arg.getValueType();
+                ValueType actual = typeOf(arg);
                 if (same == null) {
                     same = actual;
                 } else if (actual != same) {
@@ -101,7 +132,7 @@ final class TypeCheckingConsumer implements NodeVisitor {
                             .collect(joining(" and "));
                     issues.addIssue(possiblySame, fn,
                             format("The argument types of parameters %s must be of the same type but were: %s, %s",
-                                    indexes, same, arg.getValueType()));
+                                    indexes, same, actual));
                     return;
                 }
             }
@@ -112,7 +143,7 @@ final class TypeCheckingConsumer implements NodeVisitor {
         for (int i = 0; i < node.size(); i++)
         {
             Node<?> argument = node.child(i);
-            ValueType actual = argument.getValueType();
+            ValueType actual = typeOf(argument);
             ValueType expected = i >= expectedTypes.size()
                     ? expectedTypes.get(expectedTypes.size()-1)
                     : expectedTypes.get(i);
@@ -145,12 +176,12 @@ final class TypeCheckingConsumer implements NodeVisitor {
     }
 
     private Consumer<Node<?>> evalTo(ValueType expected) {
-        EvaluateFunction eval = new EvaluateFunction(null, null);
+        EvaluateCompiler.Context ctx = new EvaluateCompiler.Context(null, null);
         switch (expected) {
-            case STRING: return eval::evalToString;
-            case DATE: return eval::evalToDate;
-            case BOOLEAN: return eval::evalToBoolean;
-            case NUMBER: return eval::evalToNumber;
+            case STRING: return node -> EvaluateCompiler.DECIMAL64.toStr(node).eval(ctx);
+            case DATE: return node -> EvaluateCompiler.DECIMAL64.toDate(node).eval(ctx);
+            case BOOLEAN: return node -> EvaluateCompiler.DECIMAL64.toBoolean(node).eval(ctx);
+            case NUMBER: return node -> EvaluateCompiler.DECIMAL64.toNumber(node).eval(ctx);
             default: return node -> {}; // we can't tell
         }
     }
@@ -0,0 +1,54 @@
+package org.hisp.dhis.lib.expression.spi;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * The value context used to evaluate an expression for many rows at once.
+ *
+ * Each {@link DataItem} that has a value per row is given as a {@link Column}. All other values, like constants or
+ * named values, are the same for all rows and given by the {@link #getCommon()} data.
+ *
+ * @author Jan Bernitt
+ */
+@Value
+@Builder(toBuilder = true)
+public class ColumnarData {
+
+    /**
+     * The number of rows, each column must have at least as many values
+     */
+    int rows;
+    @Builder.Default
+    Map<DataItem, Column> columns = Map.of();
+    /**
+     * Values that are the same for all rows, data items that have a column are ignored, data item values by slot
+     * are not supported
+     */
+    @Builder.Default
+    ExpressionData common = ExpressionData.builder().build();
+
+    /**
+     * The values of a data item for all rows.
+     */
+    @Value
+    public static class Column {
+
+        public static Column of(double[] values) {
+            return new Column(values, new BitSet(0));
+        }
+
+        double[] values;
+        /**
+         * Set for each row index the data item has no value for, the value in {@link #getValues()} is ignored
+         */
+        BitSet nulls;
+
+        public boolean isNull(int row) {
+            return nulls.get(row);
+        }
+    }
+}
@@ -25,4 +25,10 @@ public class ExpressionData {
     Map<DataItem, Object> dataItemValues = Map.of();
     @Builder.Default
     Map<String, Object> namedValues = Map.of();
+    /**
+     * The data item values by slot, the index of each data item in the array is its position in the data item slots
+     * of the evaluated expression. When given, these are used instead of the {@link #getDataItemValues()} so that no
+     * {@link DataItem} needs to be hashed during evaluation.
+     */
+    Object[] dataItemSlotValues;
 }
@@ -1,6 +1,7 @@
 package org.hisp.dhis.lib.expression.spi;
 
 import org.hisp.dhis.lib.expression.ast.BinaryOperator;
+import org.hisp.dhis.lib.expression.ast.ScaledDecimal;
 import org.hisp.dhis.lib.expression.math.AggregateMath;
 import org.hisp.dhis.lib.expression.math.GS1Elements;
 import org.hisp.dhis.lib.expression.math.ZScore;
@@ -14,6 +15,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import static java.util.Comparator.comparing;
@@ -39,6 +41,25 @@ public interface ExpressionFunctions {
         return values.stream().filter(Objects::nonNull).findFirst().orElse(null);
     }
 
+    /**
+     * Lazy variant of {@link #firstNonNull(List)} used during evaluation. Values after the first non-null value are
+     * not computed.
+     *
+     * When an implementation only overrides {@link #firstNonNull(List)} that method is used instead and all values
+     * are computed. Override this method as well to keep the evaluation lazy.
+     *
+     * @param values zero or more suppliers of the values
+     * @return the first value that is not null, or null if all values are zero or values is of length zero
+     */
+    default Object firstNonNull(Supplier<?>... values)
+    {
+        for (Supplier<?> value : values) {
+            Object v = value.get();
+            if (v != null) return v;
+        }
+        return null;
+    }
+
     /**
      * Returns the largest of the values.
      *
@@ -65,6 +86,23 @@ public interface ExpressionFunctions {
         return Boolean.TRUE.equals(condition) ? ifValue : elseValue;
     }
 
+    /**
+     * Lazy variant of {@link #ifThenElse(Boolean, Object, Object)} used during evaluation. Only the value that is
+     * returned is computed.
+     *
+     * When an implementation only overrides {@link #ifThenElse(Boolean, Object, Object)} that method is used instead
+     * and both values are computed. Override this method as well to keep the evaluation lazy.
+     *
+     * @param condition test, maybe null
+     * @param ifValue supplies the value when condition is true
+     * @param elseValue supplies the value when condition if false or null
+     * @return either if value or else value based on the condition
+     */
+    default <T> T ifThenElse(Boolean condition, Supplier<? extends T> ifValue, Supplier<? extends T> elseValue)
+    {
+        return Boolean.TRUE.equals(condition) ? ifValue.get() : elseValue.get();
+    }
+
     default boolean isNotNull(Object value) {
         return Objects.nonNull(value);
     }
@@ -146,6 +184,19 @@ public interface ExpressionFunctions {
         return value == null ? 0d : Math.ceil(value.doubleValue());
     }
 
+    /**
+     * Returns conditional value based on a condition given as expression text. Only the value that is returned should
+     * be computed.
+     *
+     * @param condition the condition expression, not yet evaluated
+     * @param ifValue supplies the value when condition is true
+     * @param elseValue supplies the value when condition if false or null
+     * @return either if value or else value based on the condition
+     */
+    default Object d2_condition(String condition, Supplier<?> ifValue, Supplier<?> elseValue) {
+        return unsupported("d2:condition");
+    }
+
     default String d2_concatenate(Collection<String> values) {
         return String.join("", values);
     }
@@ -242,6 +293,13 @@ public interface ExpressionFunctions {
     default double d2_round(Number value, Integer precision) {
         if (value == null) return Double.NaN;
         precision = precision == null ? 0 : precision;
+        ScaledDecimal decimal = ScaledDecimal.valueOf(value.doubleValue());
+        ScaledDecimal rounded = decimal == null ? null : decimal.roundHalfUp(precision);
+        if (rounded != null) {
+            return precision == 0 || rounded.intValue() == rounded.doubleValue()
+                ? rounded.intValue()
+                : rounded.doubleValue();
+        }
         BigDecimal roundedNumber = BigDecimal.valueOf(value.doubleValue()).setScale(precision, RoundingMode.HALF_UP);
 
         return precision == 0 || roundedNumber.intValue() == roundedNumber.doubleValue()
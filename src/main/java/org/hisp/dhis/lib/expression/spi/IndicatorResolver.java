@@ -0,0 +1,18 @@
+package org.hisp.dhis.lib.expression.spi;
+
+/**
+ * Provides the expressions of indicators referenced by {@code N{uid}} data items so that they can be inlined into the
+ * referencing expression when it is compiled.
+ *
+ * @author Jan Bernitt
+ */
+@FunctionalInterface
+public interface IndicatorResolver {
+
+    /**
+     * @param indicator the ID of the referenced indicator
+     * @return the expression of the indicator, or null when it is not known, the reference then stays a data item that
+     * is given a value by the {@link ExpressionData} when evaluated
+     */
+    String resolve(ID indicator);
+}
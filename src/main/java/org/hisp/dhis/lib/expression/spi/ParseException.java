@@ -1,7 +1,41 @@
 package org.hisp.dhis.lib.expression.spi;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.function.Supplier;
+
 public class ParseException extends IllegalArgumentException {
+
+    private transient Supplier<String> lazyMessage;
+    private String message;
+
     public ParseException(String s) {
         super(s);
+        this.message = s;
+    }
+
+    /**
+     * @param message computes the message when it is first needed
+     */
+    public ParseException(Supplier<String> message) {
+        super((String) null);
+        this.lazyMessage = message;
+    }
+
+    @Override
+    public synchronized String getMessage() {
+        if (lazyMessage != null) {
+            message = lazyMessage.get();
+            lazyMessage = null;
+        }
+        return message;
+    }
+
+    /**
+     * The message supplier is not serialized, so it has to be resolved before the message is written.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        getMessage();
+        out.defaultWriteObject();
     }
 }
@@ -0,0 +1,40 @@
+package org.hisp.dhis.lib.expression.spi;
+
+import java.util.List;
+
+/**
+ * The value contexts of a grid of evaluations, like one partition for each organisation unit and period, that are
+ * evaluated in parallel.
+ *
+ * @author Jan Bernitt
+ */
+public interface PartitionedData {
+
+    static PartitionedData of(List<ExpressionData> partitions) {
+        List<ExpressionData> all = List.copyOf(partitions);
+        return new PartitionedData() {
+            @Override
+            public int partitions() {
+                return all.size();
+            }
+
+            @Override
+            public ExpressionData partition(int index) {
+                return all.get(index);
+            }
+        };
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    int partitions();
+
+    /**
+     * Is called by multiple threads concurrently, each partition is requested once.
+     *
+     * @param index of the partition, 0 to {@link #partitions()} (exclusive)
+     * @return the values of the partition
+     */
+    ExpressionData partition(int index);
+}
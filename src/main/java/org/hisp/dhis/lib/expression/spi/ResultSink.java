@@ -0,0 +1,23 @@
+package org.hisp.dhis.lib.expression.spi;
+
+import java.util.BitSet;
+
+/**
+ * Receives the results of a parallel evaluation of {@link PartitionedData}.
+ *
+ * The results are delivered in the order of the partitions, one partition after the other, never concurrently. The
+ * sink is called by the thread that started the evaluation, not by the threads computing the results.
+ *
+ * @author Jan Bernitt
+ */
+@FunctionalInterface
+public interface ResultSink {
+
+    /**
+     * @param partition index of the partition the results are for
+     * @param results the result value of each expression by index, null results are {@link Double#NaN}, the array
+     *                must not be kept as it is reused for the next partition
+     * @param nulls the bits of the expressions with a null result are set
+     */
+    void accept(int partition, double[] results, BitSet nulls);
+}
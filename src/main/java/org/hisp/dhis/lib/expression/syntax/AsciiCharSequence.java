@@ -0,0 +1,66 @@
+package org.hisp.dhis.lib.expression.syntax;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link CharSequence} view of a {@link ByteBuffer} containing only ASCII characters.
+ *
+ * As ASCII is a subset of UTF-8 such input can be parsed without decoding or copying it first.
+ * Sub-sequences are views as well, only {@link #toString()} copies the bytes.
+ *
+ * @author Jan Bernitt
+ */
+final class AsciiCharSequence implements CharSequence {
+
+    /**
+     * @param utf8 UTF-8 encoded characters between position and limit, the buffer is not modified
+     * @return a view of the buffer if it only contains ASCII characters, otherwise the decoded characters
+     */
+    static CharSequence of(ByteBuffer utf8) {
+        ByteBuffer bytes = utf8.slice();
+        int length = bytes.remaining();
+        for (int i = 0; i < length; i++)
+            if (bytes.get(i) < 0)
+                return StandardCharsets.UTF_8.decode(bytes);
+        return new AsciiCharSequence(bytes, 0, length);
+    }
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private AsciiCharSequence(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException(index);
+        return (char) bytes.get(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") of " + length);
+        return new AsciiCharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        if (bytes.hasArray())
+            return new String(bytes.array(), bytes.arrayOffset() + offset, length, StandardCharsets.ISO_8859_1);
+        byte[] copy = new byte[length];
+        bytes.duplicate().position(offset).get(copy);
+        return new String(copy, StandardCharsets.ISO_8859_1);
+    }
+}
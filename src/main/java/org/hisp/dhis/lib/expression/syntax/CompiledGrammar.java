@@ -0,0 +1,130 @@
+package org.hisp.dhis.lib.expression.syntax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toUnmodifiableMap;
+
+/**
+ * The frozen, pre-indexed form of a grammar given as a list of named {@link Fragment}s.
+ *
+ * A {@link CompiledGrammar} is immutable and should be built once and then be shared by all parses using that grammar.
+ * Besides the lookup by name it indexes the fragment names in a character dispatch trie so that a fragment can be
+ * found while scanning its name in the input without first materializing the name as {@link String}.
+ *
+ * @author Jan Bernitt
+ */
+public final class CompiledGrammar {
+
+    public static CompiledGrammar of(List<Fragment> fragments) {
+        return new CompiledGrammar(fragments.stream()
+                .collect(toUnmodifiableMap(Fragment::name, Function.identity())));
+    }
+
+    private final Map<String, Fragment> fragmentsByName;
+    private final Branch names;
+
+    private CompiledGrammar(Map<String, Fragment> fragmentsByName) {
+        this.fragmentsByName = fragmentsByName;
+        this.names = Branch.of(new TreeMap<>(fragmentsByName), 0);
+    }
+
+    /**
+     * @param fragments additional fragments, these replace existing fragments of the same name
+     * @return a new grammar with the fragments of this grammar and the provided ones
+     */
+    public CompiledGrammar with(Fragment... fragments) {
+        return new CompiledGrammar(Stream.concat(fragmentsByName.values().stream(), Stream.of(fragments))
+                .collect(toUnmodifiableMap(Fragment::name, Function.identity(), (a, b) -> b)));
+    }
+
+    /**
+     * @param name of the fragment
+     * @return the fragment of the given name or null if no such fragment exists in this grammar
+     */
+    public Fragment fragment(String name) {
+        return fragmentsByName.get(name);
+    }
+
+    /**
+     * Parses a name at the current position of the expression and returns the fragment of that name.
+     *
+     * @param expr input positioned at the start of a name
+     * @return the fragment of the scanned name, never null
+     * @throws org.hisp.dhis.lib.expression.spi.ParseException when no name is found or no fragment exists for the name
+     */
+    Fragment lookup(Expr expr) {
+        int s = expr.position();
+        Branch at = names;
+        char c = expr.peek();
+        while (Chars.isName(c)) {
+            at = at == null ? null : at.next(c);
+            expr.gobble();
+            c = expr.peek();
+        }
+        if (expr.position() == s) {
+            expr.error("expected name");
+        }
+        Fragment res = at == null ? null : at.fragment;
+        if (res == null) {
+            expr.error(s, "Unknown function or constant: '" + expr.raw(s) + "'");
+        }
+        return res;
+    }
+
+    /**
+     * A node in the character trie of fragment names.
+     *
+     * The possible continuations are kept in two parallel arrays sorted by character.
+     */
+    private static final class Branch {
+
+        final Fragment fragment;
+        final char[] chars;
+        final Branch[] next;
+
+        Branch(Fragment fragment, char[] chars, Branch[] next) {
+            this.fragment = fragment;
+            this.chars = chars;
+            this.next = next;
+        }
+
+        /**
+         * @param sortedByName all fragments that share the same prefix of the given length
+         * @param depth length of the shared prefix
+         * @return the trie branch for the shared prefix
+         */
+        static Branch of(TreeMap<String, Fragment> sortedByName, int depth) {
+            Fragment fragment = null;
+            StringBuilder chars = new StringBuilder();
+            List<TreeMap<String, Fragment>> groups = new ArrayList<>();
+            for (Map.Entry<String, Fragment> e : sortedByName.entrySet()) {
+                String name = e.getKey();
+                if (name.length() == depth) {
+                    fragment = e.getValue();
+                } else {
+                    char c = name.charAt(depth);
+                    if (chars.length() == 0 || chars.charAt(chars.length() - 1) != c) {
+                        chars.append(c);
+                        groups.add(new TreeMap<>());
+                    }
+                    groups.get(groups.size() - 1).put(name, e.getValue());
+                }
+            }
+            Branch[] next = new Branch[groups.size()];
+            for (int i = 0; i < next.length; i++)
+                next[i] = of(groups.get(i), depth + 1);
+            return new Branch(fragment, chars.toString().toCharArray(), next);
+        }
+
+        Branch next(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            return i < 0 ? null : next[i];
+        }
+    }
+}
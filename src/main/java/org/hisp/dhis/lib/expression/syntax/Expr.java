@@ -2,11 +2,13 @@ package org.hisp.dhis.lib.expression.syntax;
 
 import org.hisp.dhis.lib.expression.ast.NodeType;
 import org.hisp.dhis.lib.expression.ast.Nodes;
+import org.hisp.dhis.lib.expression.spi.Issue;
+import org.hisp.dhis.lib.expression.spi.Issues;
 import org.hisp.dhis.lib.expression.spi.ParseException;
 import org.hisp.dhis.lib.expression.syntax.Chars.CharPredicate;
 
 import java.io.Serializable;
-import java.util.stream.Stream;
+import java.nio.ByteBuffer;
 
 import static org.hisp.dhis.lib.expression.syntax.Chars.isUnaryOperator;
 
@@ -16,6 +18,16 @@ import static org.hisp.dhis.lib.expression.syntax.Chars.isUnaryOperator;
  * Aside from the actual {@code expr} block this class also implements the data item parsing
  * as it is too irregular to express it using composition.
  *
+ * The input is scanned in place as {@link CharSequence}, no copy of it is made.
+ * Only the raw values of the nodes are extracted as {@link String}s. Operator symbols and argument indices are shared
+ * constants. When the input is a {@link String} UIDs and identifiers keep their range of it and are only extracted
+ * when their raw value is first used.
+ *
+ * By default, the first error ends the parse with a {@link ParseException}.
+ * When parsing with {@link Issues} errors are collected instead. After an error the parse skips to the next {@code ,},
+ * {@code )} or {@code }} that ends the argument or group containing the error and continues from there.
+ * In both cases the full error message is only formatted when it is needed.
+ *
  * @author Jan Bernitt
  */
 public final class Expr implements Serializable
@@ -27,28 +39,100 @@ public final class Expr implements Serializable
 
     public void error( int pos0, String desc )
     {
-        throw new ParseException( formatError(pos0, this, desc) );
+        int pos1 = pos;
+        if (issues == null)
+            throw new ParseException( () -> desc + formatPosition(pos0, pos1, this) );
+        issues.getErrors().add(new Issue(() -> formatPosition(pos0, pos1, this), desc));
+        throw Recovery.INSTANCE;
+    }
+
+    /**
+     * Signals that an error has been recorded and the parse continues at the next point of recovery.
+     */
+    static final class Recovery extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        static final Recovery INSTANCE = new Recovery();
+
+        private Recovery()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Parses a part of the input that is skipped if it contains an error when errors are collected.
+     *
+     * @param part the part to parse
+     * @param stop the characters at which the parse continues after an error in the part (unless nested)
+     */
+    static void recoverable(Expr expr, ParseContext ctx, Fragment part, String stop)
+    {
+        if (expr.issues == null)
+        {
+            part.parse(expr, ctx);
+            return;
+        }
+        int mark = ctx.mark();
+        try
+        {
+            part.parse(expr, ctx);
+        } catch (RuntimeException ex)
+        {
+            if (!(ex instanceof Recovery))
+            {
+                int pos = expr.pos;
+                expr.issues.getErrors().add(new Issue(() -> formatPosition(pos, pos, expr), ex.getMessage()));
+            }
+            ctx.reset(mark);
+            expr.skipTo(stop);
+        }
+    }
+
+    /**
+     * Skips input until one of the stop characters is found outside of brackets and string literals.
+     */
+    private void skipTo(String stop)
+    {
+        int depth = 0;
+        char c = peek();
+        while (c != Chars.EOF && (depth > 0 || stop.indexOf(c) < 0))
+        {
+            if (c == '(' || c == '{' || c == '[')
+            {
+                depth++;
+            } else if (c == ')' || c == '}' || c == ']')
+            {
+                depth = Math.max(0, depth - 1);
+            } else if (c == '\'' || c == '"')
+            {
+                gobble();
+                while (peek() != Chars.EOF && peek() != c) gobble();
+            }
+            gobble();
+            c = peek();
+        }
     }
 
-    private static String formatError(int pos0, Expr expr, String desc )
+    private static String formatPosition(int pos0, int pos1, Expr expr )
     {
         int line = 1;
         int posLine0 = 0;
         for (int p = 0; p < pos0; p++)
-            if (expr.expr[p] == '\n') {
+            if (expr.expr.charAt(p) == '\n') {
                 line++;
                 posLine0 = p;
             }
         int offset0 = pos0 - posLine0;
-        int markLen = expr.pos - pos0;
-        int posLineEnd = expr.pos;
-        while (posLineEnd < expr.expr.length && expr.expr[posLineEnd] != '\n') posLineEnd++;
-        int cutoutLength = posLineEnd - posLine0;
-        String exprCutout = new String(expr.expr, posLine0, cutoutLength );
+        int markLen = pos1 - pos0;
+        int posLineEnd = pos1;
+        while (posLineEnd < expr.length && expr.expr.charAt(posLineEnd) != '\n') posLineEnd++;
+        String exprCutout = expr.raw(posLine0, posLineEnd);
         String pointer = markLen <= 1
                 ? " ".repeat(offset0)+"^"
                 : " ".repeat(offset0)+"^"+"-".repeat(Math.max(0, markLen-2))+"^";
-        return String.format("%s%n\tat line:%d character:%d%n\t%s%n\t%s", desc, line, offset0, exprCutout, pointer);
+        return String.format("%n\tat line:%d character:%d%n\t%s%n\t%s", line, offset0, exprCutout, pointer);
     }
 
     /**
@@ -57,10 +141,33 @@ public final class Expr implements Serializable
      * @param expr the expression to parse
      * @param ctx the parsing context to use to lookup fragments and build the AST
      */
-    public static void parse(String expr, ParseContext ctx) {
+    public static void parse(CharSequence expr, ParseContext ctx) {
         expr(new Expr(expr), ctx, true);
     }
 
+    /**
+     * The root entry point to parse an expression collecting all errors instead of failing at the first one.
+     *
+     * @param expr the expression to parse
+     * @param ctx the parsing context to use to lookup fragments and build the AST
+     * @param issues the collector for the errors found, when it contains errors the AST is incomplete
+     */
+    public static void parse(CharSequence expr, ParseContext ctx, Issues issues) {
+        recoverable(new Expr(expr, issues), ctx, (e, c) -> expr(e, c, true), "");
+    }
+
+    /**
+     * The root entry point to parse an expression given as UTF-8 encoded bytes.
+     *
+     * Input that is pure ASCII (the common case) is parsed directly from the buffer without decoding it first.
+     *
+     * @param utf8 the expression to parse, the bytes between position and limit are used, the buffer is not modified
+     * @param ctx the parsing context to use to lookup fragments and build the AST
+     */
+    public static void parse(ByteBuffer utf8, ParseContext ctx) {
+        parse(AsciiCharSequence.of(utf8), ctx);
+    }
+
     /*
     Non-Terminals
      */
@@ -75,7 +182,7 @@ public final class Expr implements Serializable
             while (expr.peek() == '.' && expr.peek(1, Chars::isLetter))
             { // a dot modifier:
                 expr.gobble(); // .
-                FragmentContext.lookup(expr, Literals::parseName, ctx::fragment).parse(expr, ctx);
+                ctx.lookup(expr).parse(expr, ctx);
                 expr.skipWS();
             }
             char c = expr.peek();
@@ -94,7 +201,7 @@ public final class Expr implements Serializable
                 ctx.addNode(NodeType.BINARY_OPERATOR, expr, Literals::parseBinaryOp);
             } else
             {
-                if (root && expr.pos < expr.expr.length)
+                if (root && expr.pos < expr.length)
                     expr.error("Unexpected input character: '"+expr.peek()+"'");
                 return; // no more binary operators => exit loop
             }
@@ -110,7 +217,7 @@ public final class Expr implements Serializable
         )
         { // unary operators:
             expr.gobble(c == 'n' ? 3 : 1); // unary op
-            ctx.addNode(NodeType.UNARY_OPERATOR, c == 'n' ? "not" : c+"");
+            ctx.addNode(NodeType.UNARY_OPERATOR, c == 'n' ? "not" : Literals.unaryOp(c));
             expr1(expr, ctx);
             return;
         }
@@ -124,9 +231,14 @@ public final class Expr implements Serializable
         if ( c == '(' )
         {
             expr.gobble();
-            ctx.beginNode(NodeType.PAR, "");
-            expr( expr, ctx );
-            ctx.endNode(NodeType.PAR);
+            if (!ctx.reuse(expr, NodeType.PAR, "", null))
+            {
+                recoverable(expr, ctx, (e, context) -> {
+                    context.beginNode(NodeType.PAR, "");
+                    expr( e, context );
+                    context.endNode(NodeType.PAR);
+                }, ")");
+            }
             expr.skipWS();
             expr.expect( ')' );
             expr.skipWS();
@@ -153,7 +265,7 @@ public final class Expr implements Serializable
             return;
         }
         // should be a named fragment then...
-        FragmentContext.lookup(expr, Literals::parseName, ctx::fragment).parse( expr, ctx );
+        ctx.lookup(expr).parse( expr, ctx );
         expr.skipWS();
     }
 
@@ -178,7 +290,9 @@ public final class Expr implements Serializable
             expr.gobble(); // V
             expr.expect('{');
             ctx.beginNode(NodeType.VARIABLE, "V");
-            ctx.addNode(NodeType.IDENTIFIER, expr, Literals::parseIdentifier);
+            int s = expr.pos;
+            Literals.skipIdentifier(expr);
+            ctx.addNode(NodeType.IDENTIFIER, null, expr, s, expr.pos);
             ctx.endNode(NodeType.VARIABLE);
             expr.expect('}');
         } else if (c == '"' || c == '\'') {
@@ -192,7 +306,9 @@ public final class Expr implements Serializable
             ctx.beginNode(NodeType.ARGUMENT,  "0");
             ctx.addNode(NodeType.IDENTIFIER, "PS_EVENTDATE", Nodes.TagNode::new);
             expr.skipWS();
-            ctx.addNode(NodeType.UID, expr, Literals::parseUid);
+            int s = expr.pos;
+            Literals.skipUid(expr);
+            ctx.addNode(NodeType.UID, null, expr, s, expr.pos);
             ctx.endNode(NodeType.ARGUMENT);
             ctx.endNode(NodeType.DATA_ITEM);
         } else {
@@ -225,50 +341,126 @@ public final class Expr implements Serializable
      */
     private static void dataItem(Expr expr, ParseContext ctx, char name) {
         expr.expect('{');
-        String raw = expr.rawMatch("data item", ce -> ce != '}');
-        String[] parts = raw.split("\\.");
-        if (Stream.of(parts).allMatch(Expr::isTaggedUidGroup)) {
-            ctx.beginNode(NodeType.DATA_ITEM, ""+name);
+        recoverable(expr, ctx, (e, c) -> dataItemContent(e, c, name), "}");
+        expr.expect('}');
+    }
+
+    private static void dataItemContent(Expr expr, ParseContext ctx, char name) {
+        int s = expr.pos;
+        expr.skipWhile(ce -> ce != '}');
+        int e = expr.pos;
+        if (s == e) {
+            expr.error("expected data item");
+        }
+        if (expr.isTaggedUidGroups(s, e)) {
+            ctx.beginNode(NodeType.DATA_ITEM, name == 'A' ? "A" : "#");
             // a data item with 1-3 possibly tagged UID groups
-            for (int i = 0; i < parts.length; i++)
+            int i = 0;
+            for (int part = s, end = expr.trimEnd(s, e, '.'); part < end; part = expr.indexOf('.', part, end) + 1)
             {
-                String part = parts[i];
-                int nameEndPos = part.indexOf(':');
-                ctx.beginNode(NodeType.ARGUMENT,  ""+i);
-                if(nameEndPos > 0)
+                int partEnd = expr.indexOf('.', part, end);
+                int nameEndPos = expr.indexOf(':', part, partEnd);
+                ctx.beginNode(NodeType.ARGUMENT, Literals.argumentIndex(i++));
+                if (nameEndPos > part && nameEndPos < partEnd)
                 {
-                    ctx.addNode(NodeType.IDENTIFIER, Nodes.TagNode::new, expr, e -> part.substring(0, nameEndPos));
+                    String tag = expr.raw(part, nameEndPos);
+                    ctx.addNode(NodeType.IDENTIFIER, Nodes.TagNode::new, expr, ignore -> tag);
                 }
-                Stream.of(part.substring(nameEndPos+1).split("&"))
-                        .forEachOrdered(uid -> ctx.addNode(NodeType.UID, uid));
+                int uids = nameEndPos < partEnd ? nameEndPos + 1 : part;
+                for (int uid = uids, uidsEnd = expr.trimEnd(uids, partEnd, '&'); uid < uidsEnd; uid = expr.indexOf('&', uid, uidsEnd) + 1)
+                    ctx.addNode(NodeType.UID, null, expr, uid, expr.indexOf('&', uid, uidsEnd));
                 ctx.endNode(NodeType.ARGUMENT);
             }
             ctx.endNode(NodeType.DATA_ITEM);
-        } else if (Literals.isVarName(raw) )
-        {
-            // a programRuleVariableName
-            ctx.beginNode(NodeType.VARIABLE, ""+name);
-            ctx.addNode(NodeType.IDENTIFIER, raw);
-            ctx.endNode(NodeType.VARIABLE);
         } else
         {
-            expr.error("Invalid value: '"+raw+"'");
+            if (expr.isVarName(s, e))
+            {
+                // a programRuleVariableName
+                ctx.beginNode(NodeType.VARIABLE, name == 'A' ? "A" : "#");
+                ctx.addNode(NodeType.IDENTIFIER, null, expr, s, e);
+                ctx.endNode(NodeType.VARIABLE);
+            } else
+            {
+                expr.error("Invalid value: '"+expr.raw(s, e)+"'");
+            }
         }
-        expr.expect('}');
     }
 
-    private static boolean isTaggedUidGroup(String str) {
-        str = str.substring(str.indexOf(':')+1); // strip tag
-        return Stream.of(str.split("&")).allMatch(s -> s.equals("*") || Literals.isUid(s));
-   }
+    /**
+     * Checks the input range for {@code .} separated groups of {@code &} separated UIDs each group optionally starting
+     * with a {@code tag:}. Splitting the range follows the same rules as {@link String#split(String)} does.
+     */
+    private boolean isTaggedUidGroups(int start, int end) {
+        for (int part = start, partsEnd = trimEnd(start, end, '.'); part < partsEnd; part = indexOf('.', part, partsEnd) + 1)
+        {
+            int partEnd = indexOf('.', part, partsEnd);
+            int uids = indexOf(':', part, partEnd);
+            uids = uids < partEnd ? uids + 1 : part; // strip tag
+            if (uids == partEnd)
+                return false; // an empty UID
+            for (int uid = uids, uidsEnd = trimEnd(uids, partEnd, '&'); uid < uidsEnd; uid = indexOf('&', uid, uidsEnd) + 1)
+                if (!isUidOrWildcard(uid, indexOf('&', uid, uidsEnd)))
+                    return false;
+        }
+        return true;
+    }
+
+    private boolean isVarName(int start, int end) {
+        if (start >= end)
+            return false;
+        for (int i = start; i < end; i++)
+            if (!Chars.isVarName(expr.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private boolean isUidOrWildcard(int start, int end) {
+        if (end - start == 1)
+            return expr.charAt(start) == '*';
+        if (end - start != 11 || !Chars.isLetter(expr.charAt(start)))
+            return false;
+        for (int i = start + 1; i < end; i++)
+            if (!Chars.isAlphaNumeric(expr.charAt(i)))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return position of the first occurrence of c in the range or the end of the range if c does not occur
+     */
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (expr.charAt(i) == c)
+                return i;
+        return end;
+    }
+
+    /**
+     * @return end of the range without any trailing separators (like trailing empty strings are dropped by split)
+     */
+    private int trimEnd(int start, int end, char separator) {
+        while (end > start && expr.charAt(end - 1) == separator) end--;
+        return end;
+    }
 
-    private final char[] expr;
+    private final CharSequence expr;
+    private final int length;
+
+    private final transient Issues issues;
 
     private int pos;
 
-    public Expr(String expr)
+    public Expr(CharSequence expr)
     {
-        this.expr = expr.toCharArray();
+        this(expr, null);
+    }
+
+    private Expr(CharSequence expr, Issues issues)
+    {
+        this.expr = expr;
+        this.length = expr.length();
+        this.issues = issues;
         this.pos = 0;
     }
 
@@ -276,14 +468,33 @@ public final class Expr implements Serializable
         return pos;
     }
 
+    /**
+     * @return the input if it is a {@link String} so that ranges of it can be kept without making a copy, otherwise
+     * null as the input might change after parsing
+     */
+    String immutableInput() {
+        return expr instanceof String ? (String) expr : null;
+    }
+
+    /**
+     * The input might not be {@link Serializable} (or could change later) so it is replaced with a {@link String} copy.
+     */
+    private Object writeReplace() {
+        if (expr instanceof String)
+            return this;
+        Expr copy = new Expr(expr.toString(), null);
+        copy.pos = pos;
+        return copy;
+    }
+
     char peek()
     {
-        return pos >= expr.length ? Chars.EOF : expr[pos];
+        return pos >= length ? Chars.EOF : expr.charAt(pos);
     }
 
     boolean peek(int ahead, CharPredicate test)
     {
-        return pos + ahead < expr.length && test.matches(expr[pos+ahead]);
+        return pos + ahead < length && test.matches(expr.charAt(pos+ahead));
     }
 
     boolean peek( String ahead )
@@ -294,7 +505,7 @@ public final class Expr implements Serializable
         }
         for ( int i = 1; i < ahead.length(); i++ )
         {
-            if ( pos + i >= expr.length || expr[pos + i] != ahead.charAt( i ) )
+            if ( pos + i >= length || expr.charAt(pos + i) != ahead.charAt( i ) )
             {
                 return false;
             }
@@ -363,10 +574,52 @@ public final class Expr implements Serializable
      */
     String raw(int start )
     {
-        return new String( expr, start, pos - start );
+        return raw( start, pos );
+    }
+
+    String raw(int start, int end )
+    {
+        return expr.subSequence( start, end ).toString();
+    }
+
+    /**
+     * @return true, if the raw input between given start position and the current position is equal to the given text
+     */
+    boolean isRaw(int start, String text )
+    {
+        int len = pos - start;
+        if ( len != text.length() )
+        {
+            return false;
+        }
+        for ( int i = 0; i < len; i++ )
+        {
+            if ( expr.charAt( start + i ) != text.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
     String rawMatch(String desc, CharPredicate test )
+    {
+        int s = pos;
+        match( desc, test );
+        return raw( s );
+    }
+
+    String rawMatch(String desc, CharPredicate... seq)
+    {
+        int s = pos;
+        match( desc, seq );
+        return raw( s );
+    }
+
+    /**
+     * Like {@link #rawMatch(String, CharPredicate)} but without extracting the matched input.
+     */
+    void match(String desc, CharPredicate test )
     {
         int s = pos;
         skipWhile( test );
@@ -374,12 +627,13 @@ public final class Expr implements Serializable
         {
             error( "expected " + desc );
         }
-        return raw( s );
     }
 
-    String rawMatch(String desc, CharPredicate... seq)
+    /**
+     * Like {@link #rawMatch(String, CharPredicate...)} but without extracting the matched input.
+     */
+    void match(String desc, CharPredicate... seq)
     {
-        int s = pos;
         for ( CharPredicate test : seq )
         {
             if ( !test.matches( peek() ) )
@@ -388,7 +642,6 @@ public final class Expr implements Serializable
             }
             gobble();
         }
-        return raw( s );
     }
 
     String rawMatch(String desc, String expected )
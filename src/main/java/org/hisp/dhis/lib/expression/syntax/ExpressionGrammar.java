@@ -254,11 +254,18 @@ public interface ExpressionGrammar
                     expr.skipWS();
                 }
                 boolean wrapInArgument = type != NodeType.VARIABLE;
-                if (wrapInArgument)
-                    ctx.beginNode( NodeType.ARGUMENT, "" + i );
-                arg.parse( expr, ctx );
-                if (wrapInArgument)
-                    ctx.endNode(NodeType.ARGUMENT);
+                if (!wrapInArgument)
+                {
+                    arg.parse( expr, ctx );
+                } else if (!ctx.reuse(expr, NodeType.ARGUMENT, Literals.argumentIndex(i), arg))
+                {
+                    String value = Literals.argumentIndex(i);
+                    Expr.recoverable(expr, ctx, (e, context) -> {
+                        context.beginNode( NodeType.ARGUMENT, value );
+                        arg.parse( e, context );
+                        context.endNode(NodeType.ARGUMENT);
+                    }, "" + argsSeparator + end);
+                }
             }
             ctx.endNode(type);
             expr.skipWS();
@@ -10,6 +10,16 @@ public interface FragmentContext {
 
     Fragment fragment(String name);
 
+    /**
+     * Parses a name at the current position of the expression and looks up the fragment of that name.
+     *
+     * @param expr input positioned at the start of a name
+     * @return the fragment of the parsed name, never null
+     */
+    default Fragment lookup(Expr expr) {
+        return lookup(expr, Literals::parseName, this::fragment);
+    }
+
     static Fragment lookup(Expr expr, Function<Expr, String> parseName, Function<String, Fragment> lookup) {
         int s = expr.position();
         String name = parseName.apply(expr);
@@ -0,0 +1,245 @@
+package org.hisp.dhis.lib.expression.syntax;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.spi.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A parser for an expression that is edited repeatedly, for example while it is typed in an editor.
+ *
+ * Each parse remembers the {@link ParseContext} events of all parenthesised groups and function arguments together
+ * with their position in the input. When the expression is edited, the groups and arguments that are entirely outside
+ * the edited range are not parsed again; instead their events are replayed to build a fresh subtree.
+ * All post-processing of the tree still applies to the tree as a whole as it may depend on the context of a subtree.
+ *
+ * Remembered groups and arguments survive edits that do not parse so that typing through an invalid intermediate
+ * state does not lose them.
+ *
+ * @author Jan Bernitt
+ */
+public final class IncrementalParser {
+
+    /**
+     * A recorded {@link ParseContext#beginNode(NodeType, String, Node.Factory)} or {@link ParseContext#endNode(NodeType)}
+     * call.
+     */
+    private static final class Event {
+
+        final NodeType type;
+        final String value;
+        final Node.Factory factory;
+        final boolean end;
+
+        Event(NodeType type, String value, Node.Factory factory, boolean end) {
+            this.type = type;
+            this.value = value;
+            this.factory = factory;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A remembered parenthesised group or function argument.
+     */
+    private static final class Span {
+
+        final NodeType type;
+        final Fragment content;
+        /**
+         * The length of the node's content in the input
+         */
+        final int length;
+        /**
+         * The events from begin to end of the node
+         */
+        final List<Event> events;
+
+        Span(NodeType type, Fragment content, int length, List<Event> events) {
+            this.type = type;
+            this.content = content;
+            this.length = length;
+            this.events = events;
+        }
+    }
+
+    private final CompiledGrammar grammar;
+
+    private String expression = "";
+    /**
+     * Remembered spans by their start position in the current {@link #expression}
+     */
+    private TreeMap<Integer, Span> spans = new TreeMap<>();
+    private int reused;
+
+    public IncrementalParser(CompiledGrammar grammar) {
+        this.grammar = grammar;
+    }
+
+    /**
+     * @return the current expression text including all edits
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return number of groups and arguments that were reused by the most recent parse
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * Parses an entirely new expression.
+     *
+     * @param expression the new expression
+     * @return the root of the resulting tree
+     * @throws ParseException when the expression is not valid
+     */
+    public Node<?> parse(String expression) throws ParseException {
+        this.expression = expression;
+        this.spans = new TreeMap<>();
+        return parse();
+    }
+
+    /**
+     * Replaces a range of the current expression and parses the result.
+     *
+     * @param start start position (inclusive) of the replaced range
+     * @param end end position (exclusive) of the replaced range
+     * @param replacement the new text for the range
+     * @return the root of the resulting tree
+     * @throws ParseException when the edited expression is not valid
+     */
+    public Node<?> edit(int start, int end, String replacement) throws ParseException {
+        if (start < 0 || end > expression.length() || start > end)
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") of " + expression.length());
+        int shift = replacement.length() - (end - start);
+        TreeMap<Integer, Span> unaffected = new TreeMap<>();
+        for (Map.Entry<Integer, Span> e : spans.entrySet()) {
+            int spanStart = e.getKey();
+            Span span = e.getValue();
+            // the character ending a span is significant as well
+            if (spanStart + span.length < start) {
+                unaffected.put(spanStart, span);
+            } else if (spanStart >= end) {
+                unaffected.put(spanStart + shift, span);
+            }
+        }
+        expression = expression.substring(0, start) + replacement + expression.substring(end);
+        spans = unaffected;
+        return parse();
+    }
+
+    private Node<?> parse() {
+        Parser parser = Parser.withGrammar(grammar);
+        Recorder recorder = new Recorder(parser);
+        Expr.parse(expression, recorder);
+        Node<?> root = parser.complete();
+        spans = recorder.complete();
+        reused = recorder.reused;
+        return root;
+    }
+
+    /**
+     * Records the events of a parse and reuses remembered spans.
+     */
+    private final class Recorder implements ParseContext {
+
+        private final Parser parser;
+        private final List<Event> log = new ArrayList<>();
+        /**
+         * For each open node the span being recorded or null if the node does not start a span
+         */
+        private final List<int[]> open = new ArrayList<>();
+        private final List<Fragment> openContent = new ArrayList<>();
+        private final List<int[]> recorded = new ArrayList<>();
+        private final List<Fragment> recordedContent = new ArrayList<>();
+        private final TreeMap<Integer, Span> next = new TreeMap<>();
+
+        private Expr input;
+        private int pendingStart = -1;
+        private Fragment pendingContent;
+        private int reused;
+
+        Recorder(Parser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public Fragment fragment(String name) {
+            return parser.fragment(name);
+        }
+
+        @Override
+        public Fragment lookup(Expr expr) {
+            return parser.lookup(expr);
+        }
+
+        @Override
+        public boolean reuse(Expr expr, NodeType type, String value, Fragment content) {
+            input = expr;
+            int start = expr.position();
+            Span span = spans.get(start);
+            if (span == null || span.type != type || span.content != content) {
+                pendingStart = start;
+                pendingContent = content;
+                return false;
+            }
+            beginNode(type, value, span.events.get(0).factory);
+            for (Event e : span.events.subList(1, span.events.size() - 1)) {
+                if (e.end) {
+                    endNode(e.type);
+                } else {
+                    beginNode(e.type, e.value, e.factory);
+                }
+            }
+            endNode(type);
+            next.putAll(spans.subMap(start, true, start + span.length, true));
+            expr.gobble(span.length);
+            reused++;
+            return true;
+        }
+
+        @Override
+        public void beginNode(NodeType type, String value, Node.Factory create) {
+            boolean startsSpan = pendingStart >= 0;
+            open.add(startsSpan ? new int[] { pendingStart, log.size() } : null);
+            openContent.add(startsSpan ? pendingContent : null);
+            pendingStart = -1;
+            pendingContent = null;
+            log.add(new Event(type, value, create, false));
+            parser.beginNode(type, value, create);
+        }
+
+        @Override
+        public void endNode(NodeType type) {
+            int top = open.size() - 1;
+            int[] span = open.remove(top);
+            Fragment content = openContent.remove(top);
+            log.add(new Event(type, null, null, true));
+            parser.endNode(type);
+            if (span != null) {
+                recorded.add(new int[] { span[0], input.position(), span[1], log.size() });
+                recordedContent.add(content);
+            }
+        }
+
+        TreeMap<Integer, Span> complete() {
+            List<Event> events = List.copyOf(log);
+            for (int i = 0; i < recorded.size(); i++) {
+                int[] span = recorded.get(i);
+                NodeType type = events.get(span[2]).type;
+                // spans are recorded inside out so an outer span replaces an inner one at the same position
+                next.put(span[0], new Span(type, recordedContent.get(i), span[1] - span[0],
+                        events.subList(span[2], span[3])));
+            }
+            return next;
+        }
+    }
+}
@@ -1,9 +1,36 @@
 package org.hisp.dhis.lib.expression.syntax;
 
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
 import org.hisp.dhis.lib.expression.ast.NodeType;
 
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toUnmodifiableList;
+
 public interface Literals {
 
+    /**
+     * Argument indices and operator symbols are shared constants so parsing does not allocate a {@link String} for them.
+     */
+    String[] ARGUMENT_INDICES = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9" };
+
+    List<String> BINARY_OPERATOR_SYMBOLS = Stream.of(BinaryOperator.values()).map(BinaryOperator::getSymbol)
+            .distinct().collect(toUnmodifiableList());
+
+    static String argumentIndex(int i) {
+        return i < ARGUMENT_INDICES.length ? ARGUMENT_INDICES[i] : String.valueOf(i);
+    }
+
+    static String unaryOp(char c) {
+        switch (c) {
+            case '+': return "+";
+            case '-': return "-";
+            case '!': return "!";
+            default: return String.valueOf(c);
+        }
+    }
+
     static String parse(Expr expr, NodeType type )
     {
         switch ( type )
@@ -39,13 +66,17 @@ public interface Literals {
         {
             expr.error("unary operator");
         }
-        return "" + c;
+        return unaryOp(c);
     }
 
     static String parseIdentifier(Expr expr) {
         return expr.rawMatch("identifier", Chars::isIdentifier);
     }
 
+    static void skipIdentifier(Expr expr) {
+        expr.match("identifier", Chars::isIdentifier);
+    }
+
     static String parseString(Expr expr) {
         char cq = expr.peek();
         if (cq != '"' && cq != '\'') {
@@ -146,14 +177,21 @@ public interface Literals {
     }
 
     static String parseUid(Expr expr)
+    {
+        int s = expr.position();
+        skipUid(expr);
+        return expr.isRaw(s, "*") ? "*" : expr.raw(s);
+    }
+
+    static void skipUid(Expr expr)
     {
         char c = expr.peek();
         if (c == '*') {
             expr.expect('*');
-            return "*";
+            return;
         }
         Chars.CharPredicate alphaNumeric = Chars::isAlphaNumeric;
-        return expr.rawMatch( "uid", Chars::isLetter,
+        expr.match( "uid", Chars::isLetter,
                 alphaNumeric, alphaNumeric, alphaNumeric, alphaNumeric, alphaNumeric,
                 alphaNumeric, alphaNumeric, alphaNumeric, alphaNumeric, alphaNumeric);
     }
@@ -165,24 +203,36 @@ public interface Literals {
         if ( Chars.isArithmeticOperator( c ) )
         { // + - * / % ^
             expr.gobble();
-            return expr.raw( s );
+            return binaryOpSymbol( expr, s );
         }
         if ( Chars.isLogicOperator( c ) )
         { // && ||
             expr.gobble();
             expr.gobbleIf(Chars::isLogicOperator );
-            return expr.raw( s );
+            return binaryOpSymbol( expr, s );
         }
         else if ( Chars.isComparisonOperator( c ) )
         { // > < >= <= == != <>
             expr.gobble();
             expr.gobbleIf(Chars::isComparisonOperator);
-            return expr.raw( s );
+            return binaryOpSymbol( expr, s );
         }
         expr.error( "expected operator" );
         return null;
     }
 
+    private static String binaryOpSymbol(Expr expr, int start)
+    {
+        for ( String symbol : BINARY_OPERATOR_SYMBOLS )
+        {
+            if ( expr.isRaw( start, symbol ) )
+            {
+                return symbol;
+            }
+        }
+        return expr.raw( start ); // unknown, fails when the node is created
+    }
+
     static boolean isUid(String s)
     {
         return s.length() == 11 && Chars.isLetter(s.charAt(0)) && s.chars().allMatch(Chars::isAlphaNumeric);
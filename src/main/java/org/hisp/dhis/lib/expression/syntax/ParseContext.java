@@ -22,6 +22,41 @@ public interface ParseContext extends FragmentContext
     void beginNode(NodeType type, String value, Node.Factory create );
     void endNode(NodeType type);
 
+    /**
+     * Called before a {@link NodeType#PAR} or {@link NodeType#ARGUMENT} node is parsed from the current position.
+     *
+     * A context that remembers the same node from a previous parse of the same input can emit it again by using
+     * begin/end node as usual and then moves the input to the end of the node.
+     *
+     * @param expr input positioned at the start of the node's content
+     * @param type of the node
+     * @param value of the node
+     * @param content the fragment used to parse the content of the node, null for the general expression
+     * @return true, if the node was emitted and the input was moved to its end, false if the node needs to be parsed
+     */
+    default boolean reuse(Expr expr, NodeType type, String value, Fragment content) {
+        return false;
+    }
+
+    /**
+     * @return a mark of the current nesting of nodes to return to using {@link #reset(int)}
+     */
+    default int mark() {
+        return 0;
+    }
+
+    /**
+     * Ends all nodes that were begun since the mark was taken.
+     *
+     * This is used to recover from errors when collecting them.
+     * The AST built is incomplete after a reset.
+     *
+     * @param mark as returned by {@link #mark()}
+     */
+    default void reset(int mark) {
+        // by default: nothing to do
+    }
+
     /*
         Building the AST convenience methods
      */
@@ -40,6 +75,27 @@ public interface ParseContext extends FragmentContext
         beginNode( type, value, create );
         endNode(type);
     }
+    /**
+     * Adds a node whose raw value is the input between start and end.
+     *
+     * @param create the factory to use, null to use the default for the type
+     * @param expr the input
+     * @param start index of the first character of the raw value
+     * @param end index after the last character of the raw value
+     */
+    default void addNode(NodeType type, Node.Factory create, Expr expr, int start, int end)
+    {
+        try {
+            addNode(type, expr.raw(start, end), create);
+        } catch (Expr.Recovery ex)
+        {
+            throw ex;
+        } catch (RuntimeException ex)
+        {
+            expr.error(start, ex.getMessage());
+        }
+    }
+
     default void addNode(NodeType type, Expr expr, Function<Expr, String> parse)
     {
         addNode(type, null, expr, parse);
@@ -49,6 +105,9 @@ public interface ParseContext extends FragmentContext
         int s = expr.position();
         try {
             addNode(type, parse.apply(expr), factory);
+        } catch (Expr.Recovery ex)
+        {
+            throw ex;
         } catch (RuntimeException ex)
         {
             expr.error(s, ex.getMessage());
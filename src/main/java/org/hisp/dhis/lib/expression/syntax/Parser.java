@@ -1,20 +1,26 @@
 package org.hisp.dhis.lib.expression.syntax;
 
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
 import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeInterner;
 import org.hisp.dhis.lib.expression.ast.NodeType;
 import org.hisp.dhis.lib.expression.ast.Nodes;
+import org.hisp.dhis.lib.expression.spi.Issues;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.EnumMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
-
-import static java.util.stream.Collectors.toUnmodifiableMap;
 
 /**
  * A {@link ParseContext} that builds a {@link Node}-tree using {@link Node.Factory}.
  *
+ * By default operators are grouped while parsing: the children of each node are buffered until the node ends and are
+ * then grouped in one pass by precedence climbing (see {@link #groupOperators(List, Node)}).
+ * With {@link #withOperatorGrouping(boolean)} set to false the tree is built flat as the {@link Expr} emits it and
+ * {@link Node#groupOperators(Node)} has to be applied afterwards.
+ *
  * @author Jan Bernitt
  */
 public final class Parser implements ParseContext {
@@ -35,9 +41,9 @@ public final class Parser implements ParseContext {
 
         // simple nodes
         DEFAULT_FACTORIES.put(NodeType.STRING, Nodes.Utf8StringNode::new);
-        DEFAULT_FACTORIES.put(NodeType.NAMED_VALUE, Nodes.TextNode::new);
-        DEFAULT_FACTORIES.put(NodeType.UID, Nodes.TextNode::new);
-        DEFAULT_FACTORIES.put(NodeType.IDENTIFIER, Nodes.TextNode::new);
+        DEFAULT_FACTORIES.put(NodeType.NAMED_VALUE, Nodes.TextNode.FACTORY);
+        DEFAULT_FACTORIES.put(NodeType.UID, Nodes.TextNode.FACTORY);
+        DEFAULT_FACTORIES.put(NodeType.IDENTIFIER, Nodes.TextNode.FACTORY);
         DEFAULT_FACTORIES.put(NodeType.NUMBER, Nodes.NumberNode::new);
         DEFAULT_FACTORIES.put(NodeType.INTEGER, Nodes.IntegerNode::new);
         DEFAULT_FACTORIES.put(NodeType.DATE, Nodes.DateNode::new);
@@ -46,73 +52,301 @@ public final class Parser implements ParseContext {
     }
 
     public static Parser withFragments(List<Fragment> fragments) {
-        return new Parser(fragments, new EnumMap<>(DEFAULT_FACTORIES));
+        return withGrammar(CompiledGrammar.of(fragments));
     }
 
-    public static Node<?> parse(String expr, List<Fragment> fragments) {
-        Parser parser = Parser.withFragments(fragments);
-        Expr.parse(expr, parser);
-        Node<?> root = parser.getRoot();
-        Nodes.propagateModifiers(root);
-        Node.groupOperators(root);
-        return root.getType() == NodeType.PAR && root.size() == 1 ? root.child(0) : root;
+    public static Parser withGrammar(CompiledGrammar grammar) {
+        return new Parser(grammar, DEFAULT_FACTORIES);
+    }
+
+    public static Node<?> parse(CharSequence expr, List<Fragment> fragments) {
+        return parse(expr, CompiledGrammar.of(fragments));
+    }
+
+    public static Node<?> parse(CharSequence expr, CompiledGrammar grammar) {
+        return Parser.withGrammar(grammar).parse(expr);
+    }
+
+    public static Node<?> parse(ByteBuffer utf8, CompiledGrammar grammar) {
+        return Parser.withGrammar(grammar).parse(utf8);
     }
 
-    private final Map<String, Fragment> fragmentsByName;
-    private final Map<NodeType, Node.Factory> factoryByType;
+    private CompiledGrammar grammar;
+    /**
+     * Shared with {@link #DEFAULT_FACTORIES} until a factory is customised (copy on write).
+     */
+    private Map<NodeType, Node.Factory> factoryByType;
 
-    private final LinkedList<Node<?>> stack = new LinkedList<>();
+    private boolean groupOperators = true;
+    private NodeInterner interner;
+
+    private final List<Node<?>> stack = new ArrayList<>();
+    /**
+     * The children of the node at the same index in the {@link #stack} that have not been added to it yet.
+     * Lists are reused for the same depth so that their number is bound by the maximum nesting of the expression.
+     */
+    private final List<List<Node<?>>> pending = new ArrayList<>();
 
     private Node<?> root;
 
-    private Parser(List<Fragment> fragments, Map<NodeType, Node.Factory> factoryByType) {
-        this.fragmentsByName = mapByName(fragments);
+    private Parser(CompiledGrammar grammar, Map<NodeType, Node.Factory> factoryByType) {
+        this.grammar = grammar;
         this.factoryByType = factoryByType;
     }
 
-    private static Map<String, Fragment> mapByName(List<Fragment> functions) {
-        return functions.stream().collect(toUnmodifiableMap(Fragment::name, Function.identity()));
-    }
-
     public Parser withFragments(Fragment... fragments) {
-        this.fragmentsByName.putAll(mapByName(List.of(fragments)));
+        this.grammar = grammar.with(fragments);
         return this;
     }
 
     public Parser withFactory(NodeType type, Node.Factory factory) {
+        if (factoryByType == DEFAULT_FACTORIES) {
+            factoryByType = new EnumMap<>(DEFAULT_FACTORIES);
+        }
         factoryByType.put(type, factory);
         return this;
     }
 
+    /**
+     * @param groupOperators true to group operators with their operands while parsing, false to build the flat tree
+     * @return this parser for chaining
+     */
+    public Parser withOperatorGrouping(boolean groupOperators) {
+        this.groupOperators = groupOperators;
+        return this;
+    }
+
+    /**
+     * @param interner the table to share identical subtrees with trees of other parses, null to not share subtrees
+     * @return this parser for chaining
+     */
+    public Parser withInterner(NodeInterner interner) {
+        this.interner = interner;
+        return this;
+    }
+
+    /**
+     * Parses the expression and applies all post-processing of the tree.
+     *
+     * @param expr the expression to parse
+     * @return the root of the resulting tree
+     */
+    public Node<?> parse(CharSequence expr) {
+        Expr.parse(expr, this);
+        return complete();
+    }
+
+    /**
+     * Parses the expression collecting all errors instead of failing at the first one.
+     *
+     * @param expr the expression to parse
+     * @param issues the collector for the errors found
+     * @return the root of the resulting tree, or null if any errors were found
+     */
+    public Node<?> parse(CharSequence expr, Issues issues) {
+        int errors = issues.getErrors().size();
+        Expr.parse(expr, this, issues);
+        return issues.getErrors().size() > errors ? null : complete();
+    }
+
+    /**
+     * Parses the expression given as UTF-8 encoded bytes and applies all post-processing of the tree.
+     *
+     * @param utf8 the expression to parse, the bytes between position and limit are used, the buffer is not modified
+     * @return the root of the resulting tree
+     */
+    public Node<?> parse(ByteBuffer utf8) {
+        Expr.parse(utf8, this);
+        return complete();
+    }
+
+    /**
+     * Applies all post-processing to the tree built so far.
+     *
+     * @return the root of the resulting tree
+     */
+    Node<?> complete() {
+        Node<?> root = getRoot();
+        Nodes.propagateModifiers(root);
+        if (!groupOperators) {
+            Node.groupOperators(root);
+        }
+        if (root.getType() == NodeType.PAR && root.size() == 1) {
+            root = root.child(0);
+        }
+        return interner == null ? root : interner.intern(root);
+    }
+
     public Node<?> getRoot() {
+        if (!stack.isEmpty()) {
+            flush(0); // root level never ends
+        }
         return root;
     }
 
     @Override
     public Fragment fragment(String name) {
-        return fragmentsByName.get(name);
+        return grammar.fragment(name);
+    }
+
+    @Override
+    public Fragment lookup(Expr expr) {
+        return grammar.lookup(expr);
     }
 
     @Override
     public void beginNode(NodeType type, String value, Node.Factory create) {
+        begin(factory(type, create).create(type, value));
+    }
+
+    /**
+     * Nodes parsed from a {@link String} input are given the range of their raw value so that they can extract it
+     * lazily. Any other input might change after the parse, so the raw value is extracted right away.
+     */
+    @Override
+    public void addNode(NodeType type, Node.Factory create, Expr expr, int start, int end) {
+        Node.Factory f = factory(type, create);
+        String input = expr.immutableInput();
+        Node<?> node;
+        try {
+            node = input != null ? f.create(type, input, start, end) : f.create(type, expr.raw(start, end));
+        } catch (RuntimeException ex) {
+            expr.error(start, ex.getMessage());
+            return;
+        }
+        begin(node);
+        endNode(type);
+    }
+
+    private Node.Factory factory(NodeType type, Node.Factory create) {
         Node.Factory f = create != null ? create : factoryByType.get(type);
         if (f == null)
         {
             throw new UnsupportedOperationException("No factory for type: "+type);
         }
-        Node<?> node = f.create(type, value);
+        return f;
+    }
+
+    private void begin(Node<?> node) {
         if (stack.isEmpty()) {
             root = new Nodes.ParenthesesNode(NodeType.PAR, "");
-            root.addChild(node);
-            stack.addLast(root);
+            push(root);
+        }
+        int parent = stack.size() - 1;
+        if (groupOperators) {
+            pending.get(parent).add(node);
         } else {
-            stack.getLast().addChild(node);
+            stack.get(parent).addChild(node);
         }
-        stack.addLast(node);
+        push(node);
     }
 
     @Override
     public void endNode(NodeType type) {
-        stack.removeLast();
+        int top = stack.size() - 1;
+        flush(top);
+        stack.remove(top);
+    }
+
+    @Override
+    public int mark() {
+        return stack.size();
+    }
+
+    @Override
+    public void reset(int mark) {
+        while (stack.size() > mark) {
+            int top = stack.size() - 1;
+            pending.get(top).clear();
+            stack.remove(top);
+        }
+    }
+
+    private void push(Node<?> node) {
+        stack.add(node);
+        if (pending.size() < stack.size()) {
+            pending.add(new ArrayList<>());
+        }
+    }
+
+    private void flush(int depth) {
+        List<Node<?>> children = pending.get(depth);
+        if (!children.isEmpty()) {
+            groupOperators(children, stack.get(depth));
+            children.clear();
+        }
+    }
+
+    /**
+     * Adds a flat sequence of operands and operators as children to the parent node thereby moving operands into their
+     * operators.
+     *
+     * Each {@link BinaryOperator} has its own precedence level (in order of declaration) and is left associative.
+     * Unary operators bind stronger than all binary operators except {@link BinaryOperator#EXP}, a unary operator
+     * directly on the right hand side of an {@link BinaryOperator#EXP} only binds to the next operand.
+     * This gives the same tree as {@link Node#groupOperators(Node)} does when applied to the flat tree.
+     *
+     * Modifiers stay siblings directly following the operand they belong to, so they are attached by
+     * {@link Nodes#propagateModifiers(Node)} just like in the flat tree.
+     *
+     * @param sequence the children as emitted by the {@link Expr}
+     * @param parent the node to add the grouped children to
+     */
+    static void groupOperators(List<Node<?>> sequence, Node<?> parent) {
+        if (sequence.stream().noneMatch(Parser::isOperator)) {
+            sequence.forEach(parent::addChild);
+            return;
+        }
+        int[] pos = {0};
+        while (pos[0] < sequence.size()) {
+            groupBinary(sequence, pos, Integer.MAX_VALUE).forEach(parent::addChild);
+        }
+    }
+
+    /**
+     * @param maxPrecedence the weakest binding binary operator (highest ordinal) that may be consumed
+     * @return the operand (and its modifiers) starting at the position
+     */
+    private static List<Node<?>> groupBinary(List<Node<?>> sequence, int[] pos, int maxPrecedence) {
+        List<Node<?>> left = groupUnary(sequence, pos, maxPrecedence);
+        while (pos[0] < sequence.size()) {
+            Node<?> op = sequence.get(pos[0]);
+            if (op.getType() != NodeType.BINARY_OPERATOR || !op.isEmpty()) {
+                return left;
+            }
+            int precedence = ((BinaryOperator) op.getValue()).ordinal();
+            if (precedence > maxPrecedence) {
+                return left;
+            }
+            pos[0]++;
+            // left associative: the right operand only includes operators that bind stronger
+            List<Node<?>> right = groupBinary(sequence, pos, precedence - 1);
+            left.forEach(op::addChild);
+            right.forEach(op::addChild);
+            left = List.of(op);
+        }
+        return left;
+    }
+
+    private static List<Node<?>> groupUnary(List<Node<?>> sequence, int[] pos, int maxPrecedence) {
+        Node<?> first = sequence.get(pos[0]++);
+        if (first.getType() == NodeType.UNARY_OPERATOR && first.isEmpty() && pos[0] < sequence.size()) {
+            groupBinary(sequence, pos, Math.min(maxPrecedence, BinaryOperator.EXP.ordinal()))
+                    .forEach(first::addChild);
+            return List.of(first);
+        }
+        int end = pos[0];
+        while (end < sequence.size() && sequence.get(end).getType() == NodeType.MODIFIER) end++;
+        if (end == pos[0]) {
+            return List.of(first);
+        }
+        List<Node<?>> operand = new ArrayList<>(sequence.subList(pos[0] - 1, end));
+        pos[0] = end;
+        return operand;
+    }
+
+    private static boolean isOperator(Node<?> node) {
+        NodeType type = node.getType();
+        return (type == NodeType.BINARY_OPERATOR || type == NodeType.UNARY_OPERATOR) && node.isEmpty();
     }
 }
@@ -14,6 +14,16 @@ public interface Terminal extends Fragment
     default void parse( Expr expr, ParseContext ctx )
     {
         NodeType type = literalOf();
+        if (type == NodeType.UID || type == NodeType.IDENTIFIER || type == NodeType.NAMED_VALUE)
+        {
+            int s = expr.position();
+            if (type == NodeType.UID)
+                Literals.skipUid(expr);
+            else
+                Literals.skipIdentifier(expr);
+            ctx.addNode(type, factory(), expr, s, expr.position());
+            return;
+        }
         ctx.addNode(type, factory(), expr, e -> Literals.parse(e, type));
     }
 
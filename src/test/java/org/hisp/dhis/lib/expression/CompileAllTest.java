@@ -0,0 +1,65 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the bulk {@link Expression#compileAll(Stream, Expression.Mode)}.
+ *
+ * @author Jan Bernitt
+ */
+class CompileAllTest {
+
+    @Test
+    void testCompileAll_InputOrder() {
+        List<Expression.Source> sources = IntStream.range(0, 1000)
+                .mapToObj(i -> Expression.Source.of(i + " + #{u1234567890}"))
+                .collect(toList());
+        List<Expression.Result> results = Expression.compileAll(sources.stream(), Expression.Mode.INDICATOR_EXPRESSION);
+        assertEquals(sources.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Expression.Result result = results.get(i);
+            assertTrue(result.isValid());
+            assertEquals(sources.get(i), result.getSource());
+            assertEquals(i + " + #{u1234567890}", result.getCompiled().normalise());
+        }
+    }
+
+    @Test
+    void testCompileAll_ParseError() {
+        List<Expression.Result> results = Expression.compileAll(
+                Stream.of("1 +", "2", "greatest(1 +, 2 +)").map(Expression.Source::of),
+                Expression.Mode.INDICATOR_EXPRESSION);
+        Expression.Result error = results.get(0);
+        assertFalse(error.isValid());
+        assertNull(error.getCompiled());
+        assertEquals(1, error.getErrors().size());
+        assertTrue(results.get(1).isValid());
+        assertEquals(2, results.get(2).getErrors().size());
+    }
+
+    @Test
+    void testCompileAll_ValidationError() {
+        List<Expression.Result> results = Expression.compileAll(Stream.of(
+                new Expression.Source("#{var}", Map.of("var", ValueType.BOOLEAN)),
+                new Expression.Source("#{var}", Map.of("var", ValueType.NUMBER))),
+                Expression.Mode.RULE_ENGINE_CONDITION);
+        assertTrue(results.get(0).isValid());
+        Expression.Result invalid = results.get(1);
+        assertFalse(invalid.isValid());
+        assertNotNull(invalid.getCompiled());
+        assertFalse(invalid.getErrors().isEmpty());
+    }
+}
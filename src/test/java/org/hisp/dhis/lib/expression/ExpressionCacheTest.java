@@ -0,0 +1,92 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.spi.ParseException;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the {@link ExpressionCache} behind {@link Expression#compile(String, Expression.Mode)}.
+ *
+ * @author Jan Bernitt
+ */
+class ExpressionCacheTest {
+
+    @Test
+    void testCompile_SameInstance() {
+        ExpressionCache cache = new ExpressionCache(10, 1000);
+        Expression a = cache.compile("1 + #{u1234567890}", Expression.Mode.INDICATOR_EXPRESSION);
+        assertSame(a, cache.compile("1 + #{u1234567890}", Expression.Mode.INDICATOR_EXPRESSION));
+        assertNotSame(a, cache.compile("1 + #{u1234567890}", Expression.Mode.VALIDATION_RULE_EXPRESSION));
+        assertEquals(new ExpressionCache.Stats(1, 2, 0, 2, 36), cache.stats());
+    }
+
+    @Test
+    void testCompile_EvictionBySize() {
+        ExpressionCache cache = new ExpressionCache(2, 1000);
+        Expression one = cache.compile("1", Expression.Mode.INDICATOR_EXPRESSION);
+        cache.compile("2", Expression.Mode.INDICATOR_EXPRESSION);
+        cache.compile("1", Expression.Mode.INDICATOR_EXPRESSION); // 1 is now most recently used
+        cache.compile("3", Expression.Mode.INDICATOR_EXPRESSION); // evicts 2
+        assertSame(one, cache.compile("1", Expression.Mode.INDICATOR_EXPRESSION));
+        assertEquals(new ExpressionCache.Stats(2, 3, 1, 2, 2), cache.stats());
+    }
+
+    @Test
+    void testCompile_EvictionByWeight() {
+        ExpressionCache cache = new ExpressionCache(10, 10);
+        cache.compile("1 + 2", Expression.Mode.INDICATOR_EXPRESSION);
+        cache.compile("3 + 4", Expression.Mode.INDICATOR_EXPRESSION);
+        cache.compile("5", Expression.Mode.INDICATOR_EXPRESSION);
+        assertEquals(new ExpressionCache.Stats(0, 3, 1, 2, 6), cache.stats());
+    }
+
+    @Test
+    void testCompile_ParseErrorNotCached() {
+        ExpressionCache cache = new ExpressionCache(10, 1000);
+        assertThrows(ParseException.class, () -> cache.compile("1 +", Expression.Mode.INDICATOR_EXPRESSION));
+        assertEquals(0, cache.stats().getSize());
+    }
+
+    @Test
+    void testCompileToBytecode_SharedInstanceUnchanged() {
+        ExpressionCache cache = new ExpressionCache(10, 1000);
+        Expression shared = cache.compile("1 + 2", Expression.Mode.INDICATOR_EXPRESSION);
+        Expression compiled = shared.compileToBytecode();
+        assertNotSame(shared, compiled);
+        assertSame(shared, cache.compile("1 + 2", Expression.Mode.INDICATOR_EXPRESSION));
+        assertEquals(shared.evaluate(), compiled.evaluate());
+        assertEquals(shared.normalise(), compiled.normalise());
+    }
+
+    @Test
+    void testValidate_SharedInstanceWithDifferentTypes() {
+        ExpressionCache cache = new ExpressionCache(10, 1000);
+        Expression.Mode mode = Expression.Mode.RULE_ENGINE_CONDITION;
+        IllegalExpressionException before = assertThrows(IllegalExpressionException.class,
+                () -> cache.compile("#{x} > 1", mode).validate(Map.of()));
+        assertThrows(IllegalExpressionException.class,
+                () -> cache.compile("#{x} > 1", mode).validate(Map.of("x", ValueType.STRING)));
+        IllegalExpressionException after = assertThrows(IllegalExpressionException.class,
+                () -> cache.compile("#{x} > 1", mode).validate(Map.of()));
+        assertEquals(before.getErrors().size(), after.getErrors().size());
+        assertEquals(before.getWarnings().size(), after.getWarnings().size());
+        cache.compile("#{x} > 1", mode).validate(Map.of("x", ValueType.NUMBER));
+    }
+
+    @Test
+    void testValidate_CompactUsesGivenTypes() {
+        ExpressionCache cache = new ExpressionCache(10, 1000, true, null);
+        Expression.Mode mode = Expression.Mode.RULE_ENGINE_CONDITION;
+        assertThrows(IllegalExpressionException.class,
+                () -> cache.compile("#{x} + 1 > 2", mode).validate(Map.of("x", ValueType.STRING)));
+        cache.compile("#{x} + 1 > 2", mode).validate(Map.of("x", ValueType.NUMBER));
+    }
+}
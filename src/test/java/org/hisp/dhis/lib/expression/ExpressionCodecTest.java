@@ -0,0 +1,84 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the binary encoding of {@link Expression}s using {@link Expression#toBinary()} and
+ * {@link Expression#fromBinary(byte[])}.
+ *
+ * @author Jan Bernitt
+ */
+class ExpressionCodecTest {
+
+    @Test
+    void testRoundTrip() {
+        Expression original = new Expression("#{u1234567890}.aggregationType(avg) + OUG{u1234567891} "
+                + "+ if(R{u1234567893.REPORTING_RATE} > 10, 2020-01-01 == 2020-01-01, 'low \\u00e4')",
+                Expression.Mode.INDICATOR_EXPRESSION);
+        Expression decoded = Expression.fromBinary(original.toBinary());
+        assertEquals(original.toString(), decoded.toString());
+        assertEquals(original.normalise(), decoded.normalise());
+        assertArrayEquals(original.toBinary(), decoded.toBinary());
+    }
+
+    @Test
+    void testRoundTrip_SharedModifierIsBackReference() {
+        Expression original = new Expression("(#{u1234567890} + #{u1234567891}).periodOffset(-1)",
+                Expression.Mode.INDICATOR_EXPRESSION);
+        byte[] encoded = original.toBinary();
+        Expression decoded = Expression.fromBinary(encoded);
+        List<Node<?>> modifiers = new ArrayList<>();
+        decoded.getRoot().visit(NodeType.DATA_ITEM, item -> item.modifiers().forEach(modifiers::add));
+        assertEquals(2, modifiers.size());
+        assertSame(modifiers.get(0), modifiers.get(1));
+        assertEquals(original.collectDataItems(), decoded.collectDataItems());
+        Expression unshared = new Expression("#{u1234567890}.periodOffset(-1) + #{u1234567891}.periodOffset(-1)",
+                Expression.Mode.INDICATOR_EXPRESSION);
+        assertTrue(encoded.length < unshared.toBinary().length);
+    }
+
+    @Test
+    void testToBinary_StringsAreStoredOnce() {
+        byte[] encoded = new Expression("#{u1234567890} + #{u1234567890} * #{u1234567890}",
+                Expression.Mode.INDICATOR_EXPRESSION).toBinary();
+        String bytes = new String(encoded, StandardCharsets.ISO_8859_1);
+        // 3 times in the expression text, once in the string table
+        assertEquals(4, bytes.split("u1234567890", -1).length - 1);
+    }
+
+    @Test
+    void testRoundTrip_ValidatedVariableTypes() {
+        Expression original = new Expression("#{x} > 1", Expression.Mode.RULE_ENGINE_CONDITION);
+        original.validate(Map.of("x", ValueType.NUMBER));
+        Expression decoded = Expression.fromBinary(original.toBinary());
+        assertEquals(original.collectProgramRuleVariableNames(), decoded.collectProgramRuleVariableNames());
+        assertEquals(original.normalise(), decoded.normalise());
+        assertArrayEquals(original.toBinary(), decoded.toBinary());
+    }
+
+    @Test
+    void testFromBinary_Corrupt() {
+        byte[] encoded = new Expression("1 + #{u1234567890}", Expression.Mode.INDICATOR_EXPRESSION).toBinary();
+        assertThrows(IllegalArgumentException.class, () -> Expression.fromBinary(new byte[] { 1, 2, 3, 4, 5 }));
+        assertThrows(IllegalArgumentException.class,
+                () -> Expression.fromBinary(Arrays.copyOf(encoded, encoded.length - 3)));
+        byte[] nextVersion = encoded.clone();
+        nextVersion[4]++;
+        assertThrows(IllegalArgumentException.class, () -> Expression.fromBinary(nextVersion));
+    }
+}
@@ -0,0 +1,59 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.spi.ParseException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the incremental parsing of {@link ExpressionEditor}.
+ *
+ * @author Jan Bernitt
+ */
+class ExpressionEditorTest {
+
+    private final ExpressionEditor editor = new ExpressionEditor(Expression.Mode.INDICATOR_EXPRESSION);
+
+    @Test
+    void testEdit_ReusesUnaffectedGroups() {
+        editor.setText("(#{u1234567890} + 1) * greatest(2, (3 - 4)) / (5)");
+        assertEdit("(#{u1234567890} + 1) * greatest(2, (3 - 4)) / (6)", 47, 48, "6");
+        assertEquals(3, editor.getReused());
+        assertEdit("(#{u1234567890} + 1) * greatest(20, (3 - 4)) / (6)", 33, 33, "0");
+        assertEquals(3, editor.getReused());
+        assertEdit("(#{u1234567890} + 1) * least(20, (3 - 4)) / (6)", 23, 31, "least");
+        assertEquals(3, editor.getReused());
+        assertEdit("(#{u1234567890} + 1) * least(7, 20, (3 - 4)) / (6)", 29, 29, "7, ");
+        assertEquals(4, editor.getReused());
+    }
+
+    @Test
+    void testEdit_ModifiersOfReusedGroups() {
+        editor.setText("(#{u1234567890} + #{u1234567891}).periodOffset(1)");
+        assertEdit("(#{u1234567890} + #{u1234567891}).periodOffset(2)", 47, 48, "2");
+        assertEquals(1, editor.getReused());
+        assertEquals("(#{u1234567890}.periodOffset(2) + #{u1234567891}.periodOffset(2))",
+                editor.getExpression().regenerate(Map.of()));
+        assertEdit("(#{u1234567890} + #{u1234567891})", 33, 49, "");
+    }
+
+    @Test
+    void testEdit_InvalidIntermediateState() {
+        editor.setText("(1 + 2) * 3");
+        assertThrows(ParseException.class, () -> editor.edit(10, 11, ""));
+        assertEquals("(1 + 2) * ", editor.getText());
+        assertEquals("(1 + 2) * 3", editor.getExpression().normalise());
+        assertEdit("(1 + 2) * 4", 10, 10, "4");
+    }
+
+    private void assertEdit(String expected, int start, int end, String replacement) {
+        Expression edited = editor.edit(start, end, replacement);
+        assertEquals(expected, editor.getText());
+        assertEquals(new Expression(expected, Expression.Mode.INDICATOR_EXPRESSION).normalise(), edited.normalise());
+        assertEquals(new Expression(expected, Expression.Mode.INDICATOR_EXPRESSION).regenerate(Map.of()),
+                edited.regenerate(Map.of()));
+    }
+}
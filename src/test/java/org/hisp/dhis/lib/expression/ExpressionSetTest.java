@@ -0,0 +1,177 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.ast.Typed;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.PartitionedData;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Tests the evaluation of many expressions at once using an {@link ExpressionSet}.
+ *
+ * @author Jan Bernitt
+ */
+class ExpressionSetTest {
+
+    private static final ExpressionFunctions FUNCTIONS = name -> null;
+
+    @Test
+    void testEvaluate_SameAsEachExpression() {
+        ExpressionSet set = compile(
+                "#{u1234567890} + #{v1234567890}",
+                "(#{u1234567890} + #{v1234567890}) * 2",
+                "greatest(#{v1234567890}, #{w1234567890}) / 4",
+                "#{u1234567890} > #{w1234567890}",
+                "if(#{u1234567890} > 1, #{u1234567890} + #{v1234567890}, 0)",
+                "0.1 + 0.2");
+        Map<DataItem, Object> values = new HashMap<>();
+        List<DataItem> slots = set.getDataItemSlots();
+        assertEquals(3, slots.size());
+        values.put(slots.get(0), 2d);
+        values.put(slots.get(1), 3.5d);
+        values.put(slots.get(2), 1d);
+        ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+        double[] expected = set.getExpressions().stream()
+                .mapToDouble(expr -> Typed.toNumberTypeCoercion(expr.evaluate(FUNCTIONS, data)))
+                .toArray();
+        assertArrayEquals(expected, set.evaluate(FUNCTIONS, data));
+        assertArrayEquals(expected, set.evaluate(FUNCTIONS, ExpressionData.builder()
+                .dataItemSlotValues(new Object[] { 2d, 3.5d, 1d }).build()));
+    }
+
+    @Test
+    void testEvaluate_SharedSubtreesAcrossExpressions() {
+        ExpressionSet set = compile(
+                "#{u1234567890} + #{v1234567890}",
+                "(#{u1234567890} + #{v1234567890}) * 2",
+                "#{v1234567890} - 1");
+        AtomicInteger lookups = new AtomicInteger();
+        Map<DataItem, Object> counting = new HashMap<>() {
+            @Override
+            public Object get(Object key) {
+                lookups.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        set.getDataItemSlots().forEach(item -> counting.put(item, 3d));
+        ExpressionData data = ExpressionData.builder().dataItemValues(counting).build();
+        assertArrayEquals(new double[] { 6d, 12d, 2d }, set.evaluate(FUNCTIONS, data));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void testEvaluate_NullResults() {
+        ExpressionSet set = compile("#{u1234567890}", "1", "-#{u1234567890}");
+        double[] out = new double[3];
+        BitSet nulls = new BitSet();
+        nulls.set(1);
+        set.evaluate(FUNCTIONS, ExpressionData.builder().build(), out, nulls);
+        assertTrue(Double.isNaN(out[0]));
+        assertEquals(1d, out[1]);
+        assertTrue(Double.isNaN(out[2]));
+        assertEquals(BitSet.valueOf(new long[] { 0b101 }), nulls);
+    }
+
+    @Test
+    void testEvaluate_BooleanResultIsNumber() {
+        assertArrayEquals(new double[] { 1d, 0d }, compile("1 < 2", "1 > 2")
+                .evaluate(FUNCTIONS, ExpressionData.builder().build()));
+    }
+
+    @Test
+    void testEvaluate_Error() {
+        ExpressionSet set = compile("1", "#{u1234567890} + 1");
+        ExpressionData data = ExpressionData.builder().build();
+        Exception expected = assertThrows(RuntimeException.class,
+                () -> set.getExpressions().get(1).evaluate(FUNCTIONS, data));
+        Exception actual = assertThrows(RuntimeException.class, () -> set.evaluate(FUNCTIONS, data));
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> set.evaluate(FUNCTIONS, data, new double[1], null));
+    }
+
+    @Test
+    void testEvaluateAll_InPartitionOrder() {
+        ExpressionSet set = compile("#{u1234567890} * 2", "#{u1234567890} > 500", "-#{v1234567890}");
+        DataItem u = set.getDataItemSlots().get(0);
+        List<ExpressionData> partitions = IntStream.range(0, 1000)
+                .mapToObj(i -> ExpressionData.builder().dataItemValues(Map.of(u, (double) i)).build())
+                .collect(toList());
+        List<Integer> order = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            set.evaluateAll(FUNCTIONS, PartitionedData.of(partitions), (partition, results, nulls) -> {
+                order.add(partition);
+                assertArrayEquals(new double[] { partition * 2d, partition > 500 ? 1d : 0d, Double.NaN }, results);
+                assertEquals(BitSet.valueOf(new long[] { 0b100 }), nulls);
+            }, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(IntStream.range(0, 1000).boxed().collect(toList()), order);
+    }
+
+    @Test
+    void testEvaluateAll_Error() {
+        ExpressionSet set = compile("#{u1234567890} + 1");
+        DataItem u = set.getDataItemSlots().get(0);
+        List<ExpressionData> partitions = IntStream.range(0, 100)
+                .mapToObj(i -> ExpressionData.builder().dataItemValues(i == 42 ? Map.of() : Map.of(u, 1d)).build())
+                .collect(toList());
+        List<Integer> delivered = new ArrayList<>();
+        assertThrows(RuntimeException.class, () -> set.evaluateAll(FUNCTIONS, PartitionedData.of(partitions),
+                (partition, results, nulls) -> delivered.add(partition)));
+        assertTrue(delivered.size() < 42);
+    }
+
+    @Test
+    void testEvaluateAll_SinkCalledByCallingThread() {
+        ExpressionSet set = compile("#{u1234567890} + 1");
+        DataItem u = set.getDataItemSlots().get(0);
+        List<ExpressionData> partitions = IntStream.range(0, 200)
+                .mapToObj(i -> ExpressionData.builder().dataItemValues(Map.of(u, (double) i)).build())
+                .collect(toList());
+        Thread caller = Thread.currentThread();
+        AtomicInteger delivered = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            set.evaluateAll(FUNCTIONS, PartitionedData.of(partitions), (partition, results, nulls) -> {
+                assertEquals(caller, Thread.currentThread());
+                delivered.incrementAndGet();
+            }, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(200, delivered.get());
+    }
+
+    @Test
+    void testEvaluateAll_NoPartitions() {
+        compile("1").evaluateAll(FUNCTIONS, PartitionedData.of(List.of()),
+                (partition, results, nulls) -> fail("no results expected"));
+    }
+
+    private static ExpressionSet compile(String... expressions) {
+        return new ExpressionSet(Stream.of(expressions)
+                .map(expr -> new Expression(expr, Expression.Mode.INDICATOR_EXPRESSION))
+                .collect(toList()));
+    }
+}
@@ -0,0 +1,137 @@
+package org.hisp.dhis.lib.expression;
+
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.ValueType;
+import org.hisp.dhis.lib.expression.spi.VariableValue;
+import org.hisp.dhis.lib.expression.util.RuleVariableValue;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the incremental re-evaluation of rule engine expressions by a {@link RuleSession}.
+ *
+ * @author Jan Bernitt
+ */
+class RuleSessionTest {
+
+    private static final ExpressionFunctions FUNCTIONS = name -> null;
+
+    private final List<String> lookups = new ArrayList<>();
+    private final Map<String, VariableValue> values = new HashMap<>() {
+        @Override
+        public VariableValue get(Object key) {
+            lookups.add((String) key);
+            return super.get(key);
+        }
+    };
+    private final ExpressionData data = ExpressionData.builder().programRuleVariableValues(values).build();
+
+    @Test
+    void testEvaluate_OnlyDependentsOfChangedVariables() {
+        RuleSession session = session(
+                "#{age} > 18",
+                "#{weight} < 50",
+                "d2:hasValue(#{age}) && d2:hasValue(#{weight})",
+                "true");
+        setNumber("age", "20");
+        setNumber("weight", "60");
+        assertEquals(bits(0, 1, 2, 3), session.evaluate(FUNCTIONS, data));
+        assertEquals(Arrays.asList(true, false, true, true), session.getResults());
+
+        lookups.clear();
+        setNumber("weight", "40");
+        assertEquals(bits(1), session.evaluate(FUNCTIONS, data, Set.of("weight")));
+        assertEquals(Arrays.asList(true, true, true, true), session.getResults());
+        // only the second and third expression are evaluated
+        assertEquals(List.of("weight", "age", "weight"), lookups);
+
+        lookups.clear();
+        assertEquals(bits(), session.evaluate(FUNCTIONS, data, Set.of("height")));
+        assertEquals(List.of(), lookups);
+    }
+
+    @Test
+    void testEvaluate_FailedExpressionIsEvaluatedAgain() {
+        RuleSession session = session("#{a} + 1 > 2", "#{b} == 'x'");
+        values.put("b", RuleVariableValue.of().valueType(ValueType.STRING).value("x").build());
+        values.put("a", RuleVariableValue.of().valueType(ValueType.STRING).value("a").build());
+        assertThrows(RuntimeException.class, () -> session.evaluate(FUNCTIONS, data));
+        setNumber("a", "5");
+        assertEquals(bits(0, 1), session.evaluate(FUNCTIONS, data, Set.of()));
+        assertEquals(Arrays.asList(true, true), session.getResults());
+
+        // the failing expression comes after one with a changed result
+        RuleSession reversed = session("#{b} == 'x'", "#{a} + 1 > 2");
+        values.put("a", RuleVariableValue.of().valueType(ValueType.STRING).value("a").build());
+        assertThrows(RuntimeException.class, () -> reversed.evaluate(FUNCTIONS, data));
+        setNumber("a", "5");
+        assertEquals(bits(0, 1), reversed.evaluate(FUNCTIONS, data, Set.of("a")));
+        assertEquals(Arrays.asList(true, true), reversed.getResults());
+        assertEquals(bits(), reversed.evaluate(FUNCTIONS, data));
+    }
+
+    @Test
+    void testEvaluate_VariablesReadByFunctions() {
+        RuleSession session = session(
+                "d2:lastEventDate('visit')",
+                "d2:inOrgUnitGroup('group')",
+                "d2:lastEventDate(d2:concatenate('vi', 'sit'))");
+        values.put("visit", RuleVariableValue.of().valueType(ValueType.DATE).value("2020-01-01")
+                .eventDate("2020-01-01").build());
+        values.put("org_unit", RuleVariableValue.of().valueType(ValueType.STRING).value("ou1").build());
+        ExpressionData data = this.data.toBuilder().supplementaryValues(Map.of("group", List.of("ou2"))).build();
+        assertEquals(bits(0, 1, 2), session.evaluate(FUNCTIONS, data));
+        assertEquals(Arrays.asList(LocalDate.parse("2020-01-01"), false, LocalDate.parse("2020-01-01")),
+                session.getResults());
+
+        values.put("visit", RuleVariableValue.of().valueType(ValueType.DATE).value("2020-02-01")
+                .eventDate("2020-02-01").build());
+        assertEquals(bits(0, 2), session.evaluate(FUNCTIONS, data, Set.of("visit")));
+        values.put("org_unit", RuleVariableValue.of().valueType(ValueType.STRING).value("ou2").build());
+        assertEquals(bits(1), session.evaluate(FUNCTIONS, data, Set.of("org_unit")));
+        assertEquals(Arrays.asList(LocalDate.parse("2020-02-01"), true, LocalDate.parse("2020-02-01")),
+                session.getResults());
+        assertArrayEquals(new int[] { 0 }, session.getDependents("visit"));
+        assertArrayEquals(new int[] { 1 }, session.getDependents("org_unit"));
+    }
+
+    @Test
+    void testGetDependents() {
+        RuleSession session = session("#{a} > 1", "#{b} > 1", "A{a} + #{b}");
+        assertArrayEquals(new int[] { 0, 2 }, session.getDependents("a"));
+        assertArrayEquals(new int[] { 1, 2 }, session.getDependents("b"));
+        assertArrayEquals(new int[0], session.getDependents("c"));
+    }
+
+    private void setNumber(String name, String value) {
+        values.put(name, RuleVariableValue.of().valueType(ValueType.NUMBER).value(value).build());
+    }
+
+    private static BitSet bits(int... indices) {
+        BitSet bits = new BitSet();
+        for (int i : indices)
+            bits.set(i);
+        return bits;
+    }
+
+    private static RuleSession session(String... expressions) {
+        return new RuleSession(Stream.of(expressions)
+                .map(expr -> new Expression(expr, Expression.Mode.RULE_ENGINE_ACTION))
+                .collect(toList()));
+    }
+}
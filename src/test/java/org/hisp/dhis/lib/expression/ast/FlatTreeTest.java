@@ -0,0 +1,66 @@
+package org.hisp.dhis.lib.expression.ast;
+
+import org.hisp.dhis.lib.expression.Expression;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that a {@link FlatTree} behaves like the tree it was created from.
+ *
+ * @author Jan Bernitt
+ */
+class FlatTreeTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "1 + 2 * -3 ^ 2",
+            "if(#{u1234567890} > 10, #{u1234567890.u1234567891}, 'low')",
+            "(#{u1234567890} + #{u1234567891}).periodOffset(-1).periodOffset(-2) / C{u1234567892}",
+            "greatest(#{u1234567890}.yearToDate(), 2020-01-01 == 2020-01-01, true, null)",
+            "firstNonNull(#{deGroup:u1234567890.coGroup:u1234567891&u1234567892}, R{u1234567893.REPORTING_RATE})"
+    })
+    void testFlatTreeBehavesLikeOriginal(String expr) {
+        Expression original = new Expression(expr, Expression.Mode.INDICATOR_EXPRESSION);
+        Expression compact = original.compact();
+        assertEquals(original.normalise(), compact.normalise());
+        assertEquals(original.regenerate(Map.of()), compact.regenerate(Map.of()));
+        assertEquals(original.collectDataItems(), compact.collectDataItems());
+        assertEquals(original.collectUIDs(), compact.collectUIDs());
+        assertEquals(original.describe(Map.of("u1234567890", "A")), compact.describe(Map.of("u1234567890", "A")));
+        Map<DataItem, Object> values = new HashMap<>();
+        original.collectDataItems().forEach(item -> values.put(item, 5d));
+        ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+        assertEquals(original.evaluate(name -> null, data), compact.evaluate(name -> null, data));
+    }
+
+    @Test
+    void testFlatTreeOfUnresolvableDataItem() {
+        Expression original = new Expression("#{u1234567890.u1234567891.u1234567892.u1234567893} + 1",
+                Expression.Mode.INDICATOR_EXPRESSION);
+        Expression compact = original.compact();
+        RuntimeException expected = assertThrows(RuntimeException.class, original::collectDataItems);
+        RuntimeException actual = assertThrows(RuntimeException.class, compact::collectDataItems);
+        assertSame(expected.getClass(), actual.getClass());
+    }
+
+    @Test
+    void testFlatTreeIsImmutable() {
+        Node<?> root = FlatTree.of(new Nodes.ParenthesesNode(NodeType.PAR, "")
+                .addChild(new Nodes.IntegerNode(NodeType.INTEGER, "1")));
+        assertEquals(NodeType.PAR, root.getType());
+        assertEquals(1, root.child(0).getValue());
+        assertEquals(root.child(0), root.child(0));
+        assertThrows(UnsupportedOperationException.class, () -> root.addChild(root));
+        assertThrows(IndexOutOfBoundsException.class, () -> root.child(1));
+    }
+}
@@ -0,0 +1,92 @@
+package org.hisp.dhis.lib.expression.ast;
+
+import org.hisp.dhis.lib.expression.Expression;
+import org.hisp.dhis.lib.expression.ExpressionCache;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.syntax.CompiledGrammar;
+import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
+import org.hisp.dhis.lib.expression.syntax.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests the sharing of identical subtrees by a {@link NodeInterner}.
+ *
+ * @author Jan Bernitt
+ */
+class NodeInternerTest {
+
+    private static final CompiledGrammar INDICATOR = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+    private static final CompiledGrammar PROGRAM_INDICATOR = CompiledGrammar.of(
+            ExpressionGrammar.ProgramIndicatorExpressionMode);
+
+    @Test
+    void testIntern_IdenticalSubtreesAreShared() {
+        NodeInterner interner = new NodeInterner(100);
+        Node<?> a = Parser.withGrammar(INDICATOR).withInterner(interner)
+                .parse("if(isNull(#{u1234567890}), 0, #{u1234567890}) + 1");
+        Node<?> b = Parser.withGrammar(INDICATOR).withInterner(interner)
+                .parse("2 * if(isNull(#{u1234567890}), 0, #{u1234567890})");
+        Node<?> ifA = a.child(0);
+        Node<?> ifB = b.child(1);
+        assertSame(ifA, ifB);
+        Node<?> item = ifA.child(2).child(0);
+        assertEquals(NodeType.DATA_ITEM, item.getType());
+        assertSame(item, ifA.child(0).child(0).child(0).child(0));
+        assertSame(item.toDataItem(), ifB.child(2).child(0).toDataItem());
+    }
+
+    @Test
+    void testIntern_IdenticalTreesAreShared() {
+        NodeInterner interner = new NodeInterner(100);
+        Node<?> a = Parser.withGrammar(INDICATOR).withInterner(interner).parse("#{u1234567890}.periodOffset(-1) + 1");
+        int size = interner.size();
+        assertSame(a, Parser.withGrammar(INDICATOR).withInterner(interner).parse("#{u1234567890}.periodOffset(-1) + 1"));
+        assertEquals(size, interner.size());
+        Node<?> c = Parser.withGrammar(INDICATOR).withInterner(interner).parse("#{u1234567890} + 1");
+        assertNotSame(a.child(0), c.child(0), "different modifiers");
+        assertSame(a.child(1), c.child(1));
+    }
+
+    @Test
+    void testIntern_VariablesAreNotShared() {
+        NodeInterner interner = new NodeInterner(100);
+        Node<?> a = Parser.withGrammar(PROGRAM_INDICATOR).withInterner(interner).parse("V{event_date} + 1");
+        Node<?> b = Parser.withGrammar(PROGRAM_INDICATOR).withInterner(interner).parse("V{event_date} + 1");
+        assertNotSame(a, b);
+        assertNotSame(a.child(0), b.child(0));
+        assertSame(a.child(1), b.child(1));
+    }
+
+    @Test
+    void testIntern_CapacityLimitsTable() {
+        NodeInterner interner = new NodeInterner(2);
+        Parser.withGrammar(INDICATOR).withInterner(interner).parse("1 + 2 + 3");
+        assertEquals(2, interner.size());
+        Node<?> root = Parser.withGrammar(INDICATOR).withInterner(interner).parse("1 + 4");
+        assertEquals(2, interner.size());
+        assertEquals(4d, root.child(1).getValue());
+    }
+
+    @Test
+    void testCache_InternedExpressionsEvaluateAsBefore() {
+        ExpressionCache cache = new ExpressionCache(10, 1000, false, new NodeInterner(1000));
+        String expr = "if(isNull(#{u1234567890}), 0, #{u1234567890}) / #{u1234567891}.periodOffset(-1)";
+        Expression interned = cache.compile(expr, Expression.Mode.INDICATOR_EXPRESSION);
+        cache.compile("#{u1234567891}.periodOffset(-1) * 2", Expression.Mode.INDICATOR_EXPRESSION);
+        Expression plain = new Expression(expr, Expression.Mode.INDICATOR_EXPRESSION);
+        assertEquals(plain.normalise(), interned.normalise());
+        assertEquals(plain.collectDataItems(), interned.collectDataItems());
+        Map<DataItem, Object> values = new HashMap<>();
+        plain.collectDataItems().forEach(item -> values.put(item, 3d));
+        ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+        assertEquals(plain.evaluate(name -> null, data), interned.evaluate(name -> null, data));
+    }
+}
@@ -0,0 +1,105 @@
+package org.hisp.dhis.lib.expression.ast;
+
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests that the {@link ScaledDecimal} fast path of the decimal arithmetic has the very same results as plain
+ * {@link BigDecimal} arithmetic.
+ *
+ * @author Jan Bernitt
+ */
+class ScaledDecimalTest {
+
+    private static final ExpressionFunctions FUNCTIONS = name -> null;
+
+    @Test
+    void testValueOf() {
+        assertEquals("0.1", ScaledDecimal.valueOf(0.1d).toString());
+        assertEquals("-12.25", ScaledDecimal.valueOf(-12.25d).toString());
+        assertEquals("42", ScaledDecimal.valueOf(42).toString());
+        assertEquals("0", ScaledDecimal.valueOf(-0d).toString());
+        assertNull(ScaledDecimal.valueOf(1d / 3d));
+        assertNull(ScaledDecimal.valueOf(Double.NaN));
+        assertNull(ScaledDecimal.valueOf(1e20));
+        assertNull(ScaledDecimal.valueOf(Long.MAX_VALUE));
+        assertNull(ScaledDecimal.valueOf(BigDecimal.ONE));
+    }
+
+    @Test
+    void testArithmetic_SameAsBigDecimal() {
+        List<Number> values = sampleValues();
+        for (Number left : values) {
+            for (Number right : values) {
+                assertSame(left, right, BinaryOperator::add, BigDecimal::add, "+");
+                assertSame(left, right, BinaryOperator::subtract, BigDecimal::subtract, "-");
+                assertSame(left, right, BinaryOperator::multiply, BigDecimal::multiply, "*");
+                if (right.doubleValue() != 0d) {
+                    assertSame(left, right, BinaryOperator::divide, (l, r) -> l.divide(r, MathContext.DECIMAL64), "/");
+                    assertSame(left, right, BinaryOperator::modulo, BigDecimal::remainder, "%");
+                }
+            }
+        }
+    }
+
+    @Test
+    void testExp_SameAsBigDecimal() {
+        for (Number base : sampleValues()) {
+            for (int n = base.doubleValue() == 0d ? 0 : -3; n <= 20; n++) {
+                double expected = toBigDecimal(base).pow(n, MathContext.DECIMAL64).doubleValue();
+                assertEquals(expected, BinaryOperator.exp(base, n).doubleValue(), base + " ^ " + n);
+            }
+        }
+    }
+
+    @Test
+    void testRound_SameAsBigDecimal() {
+        for (Number value : sampleValues()) {
+            for (int precision = 0; precision <= 12; precision++) {
+                assertEquals(roundBigDecimal(value, precision), FUNCTIONS.d2_round(value, precision),
+                        "round(" + value + ", " + precision + ")");
+            }
+        }
+    }
+
+    private static List<Number> sampleValues() {
+        List<Number> values = new ArrayList<>(List.of(0, 1, -1, 2, 3, 7, 10, 100, -250, 1_000_000, Integer.MAX_VALUE,
+                0d, -0d, 0.1d, 0.2d, 0.3d, 0.5d, 1.5d, -2.5d, 0.05d, 0.125d, 1e-9d, 123.456d, 9_999_999.99d,
+                4503599627370495d, 4503599627370496d, 1e17d, 1d / 3d, Math.PI, 2.675d, -2.675d, 1.005d));
+        Random rnd = new Random(42);
+        for (int i = 0; i < 30; i++) {
+            values.add(rnd.nextInt(20001) / 100d - 100d);
+            values.add(rnd.nextInt(1001) / 10d);
+            values.add(rnd.nextDouble() * 1000d);
+        }
+        return values;
+    }
+
+    private static void assertSame(Number left, Number right, BiFunction<Number, Number, Number> actual,
+            BiFunction<BigDecimal, BigDecimal, BigDecimal> expected, String op) {
+        assertEquals(expected.apply(toBigDecimal(left), toBigDecimal(right)).doubleValue(),
+                actual.apply(left, right).doubleValue(), left + " " + op + " " + right);
+    }
+
+    private static BigDecimal toBigDecimal(Number n) {
+        return new BigDecimal(n.toString(), MathContext.DECIMAL64);
+    }
+
+    private static double roundBigDecimal(Number value, int precision) {
+        BigDecimal rounded = BigDecimal.valueOf(value.doubleValue()).setScale(precision, RoundingMode.HALF_UP);
+        return precision == 0 || rounded.intValue() == rounded.doubleValue()
+                ? rounded.intValue()
+                : rounded.stripTrailingZeros().doubleValue();
+    }
+}
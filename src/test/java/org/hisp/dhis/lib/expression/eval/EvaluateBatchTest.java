@@ -0,0 +1,157 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.Typed;
+import org.hisp.dhis.lib.expression.spi.ColumnarData;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
+import org.hisp.dhis.lib.expression.syntax.Parser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the {@link BatchEvaluator} computes the same results for each row as the {@link Evaluator} does.
+ *
+ * @author Jan Bernitt
+ */
+class EvaluateBatchTest {
+
+    private static final int ROWS = 64;
+    private static final ExpressionFunctions FUNCTIONS = name -> null;
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "#{u1234567890} + #{v1234567890} * 2",
+            "(#{u1234567890} - 0.1) / #{v1234567890}",
+            "-#{u1234567890} % 3 ^ 2",
+            "-#{u1234567890}",
+            "0.1 + 0.2 * #{v1234567890}",
+            "firstNonNull(#{u1234567890}, 0) + #{v1234567890}",
+            "if(#{u1234567890} > 1, #{u1234567890}, #{v1234567890}) * 10",
+            "#{v1234567890} + #{w1234567890}",
+            "#{u1234567890} > #{v1234567890}",
+            "greatest(#{u1234567890}, #{v1234567890})",
+            "0 ^ #{v1234567890}"
+    })
+    void testBatchSameAsRows(String expr) {
+        for (Arithmetic arithmetic : Arithmetic.values()) {
+            assertSameAsRows(expr, arithmetic, false);
+            assertSameAsRows(expr, arithmetic, true);
+        }
+    }
+
+    private static void assertSameAsRows(String expr, Arithmetic arithmetic, boolean withNulls) {
+        Node<?> root = Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+        Map<DataItem, ColumnarData.Column> columns = new HashMap<>();
+        Map<DataItem, Object> common = new HashMap<>();
+        Random rnd = new Random(42);
+        for (DataItem item : Evaluate.collectDataItems(root)) {
+            String uid = item.getUid0().getValue();
+            if (uid.startsWith("w")) {
+                common.put(item, 7d);
+            } else {
+                columns.put(item, randomColumn(rnd, withNulls && uid.startsWith("u")));
+            }
+        }
+        ColumnarData data = ColumnarData.builder().rows(ROWS).columns(columns)
+                .common(ExpressionData.builder().dataItemValues(common).build()).build();
+        Evaluator evaluator = Evaluate.compile(root, arithmetic);
+        double[] out = new double[ROWS];
+        BitSet nulls = new BitSet();
+        String batchError = null;
+        try {
+            Evaluate.compileBatch(root, arithmetic).evaluate(FUNCTIONS, data, out, nulls);
+        } catch (RuntimeException ex) {
+            batchError = ex.getMessage();
+        }
+        String rowError = null;
+        for (int row = 0; row < ROWS && rowError == null; row++) {
+            Map<DataItem, Object> values = new HashMap<>(common);
+            for (Map.Entry<DataItem, ColumnarData.Column> e : columns.entrySet()) {
+                ColumnarData.Column column = e.getValue();
+                values.put(e.getKey(), column.isNull(row) ? null : column.getValues()[row]);
+            }
+            try {
+                Double expected = Typed.toNumberTypeCoercion(
+                        evaluator.evaluate(FUNCTIONS, ExpressionData.builder().dataItemValues(values).build()));
+                if (batchError == null) {
+                    String msg = expr + " row " + row + " " + arithmetic;
+                    assertEquals(expected == null, nulls.get(row), msg);
+                    assertEquals(expected == null ? Double.NaN : expected, out[row], msg);
+                }
+            } catch (RuntimeException ex) {
+                rowError = ex.getMessage();
+            }
+        }
+        assertEquals(rowError, batchError, expr);
+    }
+
+    @Test
+    void testBatch_NullOperandFailsLikeRow() {
+        Node<?> root = Parser.parse("#{u1234567890} + 1", ExpressionGrammar.IndicatorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(root).iterator().next();
+        BitSet missing = new BitSet();
+        missing.set(3);
+        ColumnarData data = ColumnarData.builder().rows(5)
+                .columns(Map.of(item, new ColumnarData.Column(new double[] { 1, 2, 3, 4, 5 }, missing))).build();
+        Exception ex = assertThrows(RuntimeException.class,
+                () -> Evaluate.compileBatch(root, Arithmetic.DECIMAL64).evaluate(FUNCTIONS, data, new double[5], null));
+        Map<DataItem, Object> values = new HashMap<>();
+        values.put(item, null);
+        Exception expected = assertThrows(RuntimeException.class, () -> Evaluate.compile(root)
+                .evaluate(FUNCTIONS, ExpressionData.builder().dataItemValues(values).build()));
+        assertEquals(expected.getMessage(), ex.getMessage());
+    }
+
+    @Test
+    void testBatch_NullResult() {
+        Node<?> root = Parser.parse("-#{u1234567890}", ExpressionGrammar.IndicatorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(root).iterator().next();
+        BitSet missing = new BitSet();
+        missing.set(1);
+        ColumnarData data = ColumnarData.builder().rows(3)
+                .columns(Map.of(item, new ColumnarData.Column(new double[] { 1, 2, 3 }, missing))).build();
+        double[] out = new double[3];
+        BitSet nulls = new BitSet();
+        nulls.set(0);
+        Evaluate.compileBatch(root, Arithmetic.DECIMAL64).evaluate(FUNCTIONS, data, out, nulls);
+        assertEquals(-1d, out[0]);
+        assertTrue(Double.isNaN(out[1]));
+        assertEquals(-3d, out[2]);
+        assertFalse(nulls.get(0));
+        assertTrue(nulls.get(1));
+        assertEquals(1, nulls.cardinality());
+    }
+
+    @Test
+    void testBatch_OutputTooShort() {
+        Node<?> root = Parser.parse("1 + 2", ExpressionGrammar.IndicatorExpressionMode);
+        ColumnarData data = ColumnarData.builder().rows(3).build();
+        BatchEvaluator evaluator = Evaluate.compileBatch(root, Arithmetic.DECIMAL64);
+        assertThrows(IllegalArgumentException.class, () -> evaluator.evaluate(FUNCTIONS, data, new double[2], null));
+    }
+
+    private static ColumnarData.Column randomColumn(Random rnd, boolean withNulls) {
+        double[] values = new double[ROWS];
+        BitSet nulls = new BitSet();
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = rnd.nextInt(2001) / 100d - 10d;
+            if (withNulls && rnd.nextInt(8) == 0)
+                nulls.set(i);
+        }
+        return new ColumnarData.Column(values, nulls);
+    }
+}
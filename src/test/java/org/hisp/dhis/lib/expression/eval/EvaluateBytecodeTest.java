@@ -0,0 +1,94 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
+import org.hisp.dhis.lib.expression.syntax.Parser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests that the {@link Evaluator} compiled to bytecode computes the same results and errors as the closures.
+ *
+ * @author Jan Bernitt
+ */
+class EvaluateBytecodeTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "1 + 2 * -3 ^ 2",
+            "0.1 + 0.2",
+            "7 % 3 - 10 / 4",
+            "!(1 > 2) && true || false",
+            "#{u1234567892} && 1 + 'a' > 0",
+            "false && #{u1234567892}",
+            "#{u1234567890} > 1 || 1 + 'a' > 0",
+            "#{u1234567892} || #{u1234567890} > 1",
+            "'a' < 'b' and 2020-01-01 == 2020-01-01",
+            "#{u1234567890} * 2 + #{u1234567891}",
+            "#{u1234567890} / #{u1234567892}",
+            "if(#{u1234567890} > 10, #{u1234567890}, 'low') != 'low'",
+            "#{u1234567892} + 1",
+            "1 + 'a'",
+            "-true + 1",
+            "!(1.5)",
+            "greatest(#{u1234567890}, 3) + least(1, 2)",
+            "[days] + 1",
+            "(1 + #{u1234567890}).periodOffset(-1)"
+    })
+    void testBytecodeBehavesLikeClosures(String expr) throws ReflectiveOperationException {
+        Node<?> root = Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+        if (EvaluateBytecode.isSupported())
+            assertTrue(EvaluateBytecode.assemble(root).getClass().getName().contains("EvaluateBytecode$Compiled"));
+        Map<DataItem, Object> values = new HashMap<>();
+        for (DataItem item : Evaluate.collectDataItems(root)) {
+            String uid = item.getUid0().getValue();
+            if (!uid.equals("u1234567892"))
+                values.put(item, uid.equals("u1234567890") ? 20d : 0.5d);
+        }
+        ExpressionData data = ExpressionData.builder().dataItemValues(values).namedValues(Map.of("days", 30)).build();
+        ExpressionFunctions functions = name -> "unsupported " + name;
+        assertEquals(result(Evaluate.compile(root), functions, data),
+                result(Evaluate.compileToBytecode(root), functions, data));
+    }
+
+    @Test
+    void testCompileToBytecode_GeneratedClassIsUsed() {
+        assumeTrue(EvaluateBytecode.isSupported());
+        Node<?> root = Parser.parse("[days] + 1", ExpressionGrammar.IndicatorExpressionMode);
+        List<String> callers = new ArrayList<>();
+        Map<String, Object> namedValues = new HashMap<>() {
+            @Override
+            public Object get(Object key) {
+                StackWalker.getInstance(StackWalker.Option.SHOW_HIDDEN_FRAMES)
+                        .forEach(frame -> callers.add(frame.getClassName()));
+                return super.get(key);
+            }
+        };
+        namedValues.put("days", 30);
+        ExpressionData data = ExpressionData.builder().namedValues(namedValues).build();
+        assertEquals(31d, Evaluate.compileToBytecode(root).evaluate(name -> null, data));
+        assertTrue(callers.stream().anyMatch(name -> name.contains("EvaluateBytecode$Compiled")), callers::toString);
+    }
+
+    private static String result(Evaluator evaluator, ExpressionFunctions functions, ExpressionData data) {
+        try {
+            Object value = evaluator.evaluate(functions, data);
+            return value == null ? "null" : value.getClass().getSimpleName() + ":" + value;
+        } catch (RuntimeException ex) {
+            return ex.getClass().getSimpleName() + ":" + ex.getMessage();
+        }
+    }
+}
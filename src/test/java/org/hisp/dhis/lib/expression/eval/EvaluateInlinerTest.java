@@ -0,0 +1,116 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.Expression;
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ID;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
+import org.hisp.dhis.lib.expression.syntax.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the inlining of {@code N{uid}} indicator references done by the {@link EvaluateInliner}.
+ *
+ * @author Jan Bernitt
+ */
+class EvaluateInlinerTest {
+
+    private static final Map<String, String> INDICATORS = Map.of(
+            "a1234567890", "#{u1234567890} + N{b1234567890}",
+            "b1234567890", "#{v1234567890} * 2",
+            "c1234567890", "N{a1234567890} / N{b1234567890}",
+            "x1234567890", "1 + N{y1234567890}",
+            "y1234567890", "N{z1234567890} - 1",
+            "z1234567890", "N{x1234567890}");
+
+    @Test
+    void testInline_Chain() {
+        Node<?> inlined = inline("N{c1234567890} + 1");
+        assertEquals("N{c1234567890} + 1", Evaluate.normalise(inlined));
+        assertEquals(List.of("#{u1234567890}", "#{v1234567890}"),
+                Evaluate.collectDataItemSlots(inlined).stream().map(DataItem::toString).collect(toList()));
+        // (2 + 3 * 2) / (3 * 2) + 1
+        assertEquals(8d / 6d + 1d, evaluate(inlined, 2d, 3d));
+    }
+
+    @Test
+    void testInline_SharedReferenceIsResolvedOnce() {
+        AtomicInteger resolved = new AtomicInteger();
+        Node<?> root = Parser.parse("N{c1234567890}", ExpressionGrammar.IndicatorExpressionMode);
+        Evaluate.inline(root, id -> {
+            resolved.incrementAndGet();
+            return parse(id);
+        });
+        // c, a and b once, even though b is referenced by a and c
+        assertEquals(3, resolved.get());
+    }
+
+    @Test
+    void testInline_UnknownIndicatorStaysDataItem() {
+        Node<?> root = Parser.parse("N{q1234567890} + 1", ExpressionGrammar.IndicatorExpressionMode);
+        assertSame(root, inline(root));
+        Node<?> partly = inline("N{q1234567890} + N{b1234567890}");
+        assertEquals(List.of("N{q1234567890}", "#{v1234567890}"),
+                Evaluate.collectDataItemSlots(partly).stream().map(DataItem::toString).collect(toList()));
+    }
+
+    @Test
+    void testInline_ReferenceWithModifierIsKept() {
+        Node<?> root = Parser.parse("N{b1234567890}.periodOffset(-1)", ExpressionGrammar.IndicatorExpressionMode);
+        assertSame(root, inline(root));
+    }
+
+    @Test
+    void testInline_Cycle() {
+        IllegalExpressionException ex = assertThrows(IllegalExpressionException.class, () -> inline("N{x1234567890}"));
+        assertEquals("Indicators reference each other in a cycle: "
+                + "x1234567890 -> y1234567890 -> z1234567890 -> x1234567890", ex.getMessage());
+    }
+
+    @Test
+    void testInline_Expression() {
+        Expression expr = new Expression("N{a1234567890} - N{b1234567890}", Expression.Mode.INDICATOR_EXPRESSION);
+        Expression inlined = expr.inline(id -> INDICATORS.get(id.getValue()));
+        assertEquals(expr.normalise(), inlined.normalise());
+        List<DataItem> slots = inlined.getDataItemSlots();
+        assertEquals(2, slots.size());
+        Map<DataItem, Object> values = new HashMap<>();
+        values.put(slots.get(0), 2d);
+        values.put(slots.get(1), 3d);
+        assertEquals(2d, inlined.evaluate(name -> null, ExpressionData.builder().dataItemValues(values).build()));
+        assertSame(inlined, inlined.inline(id -> null));
+    }
+
+    private static Object evaluate(Node<?> root, double u, double v) {
+        List<DataItem> slots = Evaluate.collectDataItemSlots(root);
+        Map<DataItem, Object> values = new HashMap<>();
+        values.put(slots.get(0), u);
+        values.put(slots.get(1), v);
+        return Evaluate.compile(root).evaluate(name -> null, ExpressionData.builder().dataItemValues(values).build());
+    }
+
+    private static Node<?> inline(String expr) {
+        return inline(Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode));
+    }
+
+    private static Node<?> inline(Node<?> root) {
+        return Evaluate.inline(root, EvaluateInlinerTest::parse);
+    }
+
+    private static Node<?> parse(ID id) {
+        String expr = INDICATORS.get(id.getValue());
+        return expr == null ? null : Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+    }
+}
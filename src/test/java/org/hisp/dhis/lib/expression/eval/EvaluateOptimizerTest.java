@@ -0,0 +1,141 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
+import org.hisp.dhis.lib.expression.syntax.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests the simplifications made by the {@link EvaluateOptimizer}.
+ *
+ * @author Jan Bernitt
+ */
+class EvaluateOptimizerTest {
+
+    @Test
+    void testOptimize_FoldsLiterals() {
+        assertOptimized("(3.0)", "1 + 2");
+        assertOptimized("#{u1234567890} + (6.0)", "#{u1234567890} + (2 * 3)");
+        assertOptimized("(true)", "1 < 2 && !false");
+        assertOptimized("(-5.0)", "-(2 + 3)");
+        assertOptimized("(0.3)", "0.1 + 0.2", Arithmetic.DECIMAL64);
+        assertOptimized("(0.30000000000000004)", "0.1 + 0.2", Arithmetic.DOUBLE);
+    }
+
+    @Test
+    void testOptimize_KeepsFailingOperations() {
+        assertOptimized("1 + 'a'", "1 + 'a'");
+        assertOptimized("null + 1", "null + 1");
+    }
+
+    @Test
+    void testOptimize_RemovesDeadBranches() {
+        assertOptimized("if(true,#{u1234567890},'x')", "if(true, #{u1234567890}, 'x')");
+        assertOptimized("(#{u1234567890} + 1)", "if(true, #{u1234567890} + 1, 'x')");
+        assertOptimized("('x')", "if(1 > 2, #{u1234567890} + 1, 'x')");
+        assertOptimized("if(#{u1234567890} > 2,1,2)", "if(#{u1234567890} > 2, 1, 2)");
+    }
+
+    @Test
+    void testOptimize_RemovesNeutralOperands() {
+        assertOptimized("((#{u1234567890} + #{v1234567890}))", "(#{u1234567890} + #{v1234567890}) * 1");
+        assertOptimized("((#{u1234567890} + #{v1234567890}))", "0 + (#{u1234567890} + #{v1234567890})");
+        assertOptimized("((#{u1234567890} * 2))", "(#{u1234567890} * 2) / (3 - 2)");
+        // operands that might be null are kept as null * 1 is an error
+        assertOptimized("#{u1234567890} * 1", "#{u1234567890} * 1");
+    }
+
+    @Test
+    void testOptimize_RemovesDoubleNegation() {
+        assertOptimized("((#{u1234567890} > 1))", "!!(#{u1234567890} > 1)");
+        assertOptimized("!!#{u1234567890}", "!!#{u1234567890}");
+    }
+
+    @Test
+    void testOptimize_RemovesNestedParentheses() {
+        assertOptimized("(#{u1234567890} + 1) * 2", "(((#{u1234567890} + 1))) * 2");
+    }
+
+    @Test
+    void testOptimize_UnchangedTreeIsShared() {
+        Node<?> root = Parser.parse("#{u1234567890} + 1", ExpressionGrammar.IndicatorExpressionMode);
+        assertSame(root, EvaluateOptimizer.optimize(root, Arithmetic.DECIMAL64));
+    }
+
+    @Test
+    void testOptimize_SameResult() {
+        assertSameResult("(#{u1234567890} + 0.5) * 1");
+        assertSameResult("if(true, #{u1234567890}, 2) + 1 * 3");
+        assertSameResult("!!(#{u1234567890} == 2)");
+        assertSameResult("greatest('3', #{u1234567890}, 1)");
+        assertSameResult("0 + 1 / -#{u1234567890}");
+        assertSameResult("(#{u1234567890} * 2) / (3 - 2) + 1");
+        assertSameResult("if(false, 1, -#{u1234567890}) + 1");
+        assertSameResult("if(true, 1 / -#{u1234567890}, 0) * 2");
+        assertSameResult("!!(#{u1234567890} > 1) && true");
+    }
+
+    private static void assertOptimized(String expected, String expression) {
+        assertOptimized(expected, expression, Arithmetic.DECIMAL64);
+    }
+
+    private static void assertOptimized(String expected, String expression, Arithmetic arithmetic) {
+        Node<?> root = Parser.parse(expression, ExpressionGrammar.IndicatorExpressionMode);
+        String before = Evaluate.normalise(root);
+        Node<?> optimized = EvaluateOptimizer.optimize(root, arithmetic);
+        assertEquals(expected, toEvaluated(optimized));
+        assertEquals(before, Evaluate.normalise(root), "original tree must not change");
+        assertEquals(before, Evaluate.normalise(optimized), "optimized tree is described as the original");
+    }
+
+    /**
+     * @return the expression that is actually evaluated for the optimized tree
+     */
+    private static String toEvaluated(Node<?> root) {
+        return root.map(node -> node, (node, children) -> {
+            switch (node.getType()) {
+                case PAR: return "(" + children.get(0) + ")";
+                case ARGUMENT: return children.get(0);
+                case BINARY_OPERATOR: return children.get(0) + " " + node.getRawValue() + " " + children.get(1);
+                case UNARY_OPERATOR: return node.getRawValue() + children.get(0);
+                case FUNCTION: return node.getRawValue() + "(" + String.join(",", children) + ")";
+                case STRING: return "'" + node.getRawValue() + "'";
+                case NUMBER: return node.getRawValue();
+                case BOOLEAN: return node.getValue().toString();
+                default: return Evaluate.normalise(node);
+            }
+        });
+    }
+
+    /**
+     * Asserts the same result or error with and without simplifications, with data and with all data being null.
+     */
+    private static void assertSameResult(String expression) {
+        Node<?> root = Parser.parse(expression, ExpressionGrammar.IndicatorExpressionMode);
+        Map<DataItem, Object> values = new HashMap<>();
+        Evaluate.collectDataItems(root).forEach(item -> values.put(item, 2d));
+        for (ExpressionData data : List.of(ExpressionData.builder().dataItemValues(values).build(),
+                ExpressionData.builder().build())) {
+            String expected = result(EvaluateCompiler.compile(root, Arithmetic.DECIMAL64), data);
+            assertEquals(expected, result(Evaluate.compile(root), data), expression);
+            assertEquals(expected, result(Evaluate.compileToBytecode(root), data), expression);
+        }
+    }
+
+    private static String result(Evaluator evaluator, ExpressionData data) {
+        try {
+            return String.valueOf(evaluator.evaluate(name -> null, data));
+        } catch (RuntimeException ex) {
+            return ex.getClass().getSimpleName() + ":" + ex.getMessage();
+        }
+    }
+}
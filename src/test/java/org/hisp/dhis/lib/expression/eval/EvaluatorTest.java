@@ -0,0 +1,377 @@
+package org.hisp.dhis.lib.expression.eval;
+
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.spi.DataItem;
+import org.hisp.dhis.lib.expression.spi.ExpressionData;
+import org.hisp.dhis.lib.expression.spi.ExpressionFunctions;
+import org.hisp.dhis.lib.expression.spi.IllegalExpressionException;
+import org.hisp.dhis.lib.expression.syntax.ExpressionGrammar;
+import org.hisp.dhis.lib.expression.syntax.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the compiled {@link Evaluator} form of a tree.
+ *
+ * @author Jan Bernitt
+ */
+class EvaluatorTest {
+
+    @Test
+    void testEvaluate_CompiledOnceEvaluatedWithDifferentData() {
+        Node<?> root = Parser.parse("if(#{u1234567890} > 10, #{u1234567890} * 2, 'low')",
+                ExpressionGrammar.IndicatorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(root).iterator().next();
+        Evaluator evaluator = Evaluate.compile(root);
+        assertEquals(40d, evaluator.evaluate(name -> null, data(item, 20d)));
+        assertEquals("low", evaluator.evaluate(name -> null, data(item, 5d)));
+    }
+
+    @Test
+    void testEvaluate_ConcurrentAggregates() {
+        Node<?> root = Parser.parse("sum(#{u1234567890}) + 1", ExpressionGrammar.PredictorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(root).iterator().next();
+        Evaluator evaluator = Evaluate.compile(root);
+        List<Object> results = IntStream.range(0, 200).parallel()
+                .mapToObj(i -> evaluator.evaluate(name -> null, data(item, new double[] { i, i, i })))
+                .collect(toList());
+        assertEquals(IntStream.range(0, 200).mapToObj(i -> 3d * i + 1).collect(toList()), results);
+    }
+
+    @Test
+    void testEvaluate_ConcurrentSharedSubtrees() {
+        Node<?> root = Parser.parse("if(#{u1234567890} * 2 > 100, #{u1234567890} * 2, -(#{u1234567890} * 2))",
+                ExpressionGrammar.IndicatorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(root).iterator().next();
+        for (Evaluator evaluator : List.of(Evaluate.compile(root), Evaluate.compileToBytecode(root))) {
+            List<Object> results = IntStream.range(0, 500).parallel()
+                    .mapToObj(i -> evaluator.evaluate(name -> null, data(item, (double) i)))
+                    .collect(toList());
+            assertEquals(IntStream.range(0, 500).mapToObj(i -> i > 50 ? 2d * i : -2d * i).collect(toList()), results);
+        }
+    }
+
+    @Test
+    void testEvaluate_NestedEvaluationOnSameThread() {
+        Node<?> root = Parser.parse("greatest(#{u1234567890} * 2, 1) + #{u1234567890} * 2",
+                ExpressionGrammar.IndicatorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(root).iterator().next();
+        Evaluator evaluator = Evaluate.compile(root);
+        AtomicInteger depth = new AtomicInteger();
+        ExpressionFunctions functions = new ExpressionFunctions() {
+            @Override
+            public Object unsupported(String name) {
+                return null;
+            }
+
+            @Override
+            public Number greatest(List<? extends Number> values) {
+                if (depth.getAndIncrement() > 0)
+                    return ExpressionFunctions.super.greatest(values);
+                // evaluates the same expression while the outer evaluation is in progress
+                return (Number) evaluator.evaluate(this, data(item, 3d));
+            }
+        };
+        // inner: 6 + 6, outer: 12 + 4
+        assertEquals(16d, evaluator.evaluate(functions, data(item, 2d)));
+    }
+
+    @Test
+    void testEvaluate_EvaluatorsShareContextOfThread() {
+        Node<?> few = Parser.parse("#{u1234567890} * 2 + #{u1234567890} * 2", ExpressionGrammar.IndicatorExpressionMode);
+        Node<?> many = Parser.parse("if(#{u1234567890} + 1 > 2, (#{u1234567890} + 1) * (#{u1234567890} - 1), "
+                + "#{u1234567890} - 1) + greatest(#{u1234567890} * 3, #{u1234567890} * 3)",
+                ExpressionGrammar.IndicatorExpressionMode);
+        DataItem item = Evaluate.collectDataItems(few).iterator().next();
+        Evaluator fewSlots = Evaluate.compile(few);
+        Evaluator manySlots = Evaluate.compile(many);
+        assertEquals(8d, fewSlots.evaluate(name -> null, data(item, 2d)));
+        assertEquals(9d, manySlots.evaluate(name -> null, data(item, 2d)));
+        assertEquals(12d, fewSlots.evaluate(name -> null, data(item, 3d)));
+        assertEquals(17d, manySlots.evaluate(name -> null, data(item, 3d)));
+        ExpressionFunctions functions = new ExpressionFunctions() {
+            @Override
+            public Object unsupported(String name) {
+                return null;
+            }
+
+            @Override
+            public Number greatest(List<? extends Number> values) {
+                // evaluates another expression while the outer evaluation is in progress
+                return (Number) fewSlots.evaluate(name -> null, data(item, 5d));
+            }
+        };
+        // 8 + 20
+        assertEquals(28d, manySlots.evaluate(functions, data(item, 3d)));
+    }
+
+    @Test
+    void testEvaluate_OverriddenLazyFunctionsAreUsed() {
+        ExpressionFunctions functions = new ExpressionFunctions() {
+            @Override
+            public Object unsupported(String name) {
+                return null;
+            }
+
+            @Override
+            public <T> T ifThenElse(Boolean condition, Supplier<? extends T> ifValue, Supplier<? extends T> elseValue) {
+                return Boolean.TRUE.equals(condition) ? elseValue.get() : ifValue.get();
+            }
+
+            @Override
+            public Object firstNonNull(Supplier<?>... values) {
+                return values[values.length - 1].get();
+            }
+        };
+        for (String expr : List.of("if(#{u1234567890}, 2, 1)", "firstNonNull(2, 1)")) {
+            Node<?> root = Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+            Map<DataItem, Object> values = new HashMap<>();
+            Evaluate.collectDataItems(root).forEach(item -> values.put(item, true));
+            ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+            assertEquals(2d, Evaluate.compile(root).evaluate(name -> null, data), expr);
+            assertEquals(1d, Evaluate.compile(root).evaluate(functions, data), expr);
+            assertEquals(1d, Evaluate.compileToBytecode(root).evaluate(functions, data), expr);
+        }
+    }
+
+    @Test
+    void testEvaluate_OverriddenEagerFunctionsAreUsed() {
+        ExpressionFunctions functions = new ExpressionFunctions() {
+            @Override
+            public Object unsupported(String name) {
+                return null;
+            }
+
+            @Override
+            public <T> T ifThenElse(Boolean condition, T ifValue, T elseValue) {
+                return Boolean.TRUE.equals(condition) ? elseValue : ifValue;
+            }
+
+            @Override
+            public Object firstNonNull(List<?> values) {
+                return values.get(values.size() - 1);
+            }
+        };
+        for (String expr : List.of("if(#{u1234567890}, 2, 1)", "firstNonNull(2, 1)")) {
+            Node<?> root = Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+            Map<DataItem, Object> values = new HashMap<>();
+            Evaluate.collectDataItems(root).forEach(item -> values.put(item, true));
+            ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+            assertEquals(2d, Evaluate.compile(root).evaluate(name -> null, data), expr);
+            assertEquals(1d, Evaluate.compile(root).evaluate(functions, data), expr);
+            assertEquals(1d, Evaluate.compileToBytecode(root).evaluate(functions, data), expr);
+        }
+    }
+
+    @Test
+    void testEvaluate_CoercionErrorNamesSubExpression() {
+        Node<?> root = Parser.parse("1 + 'a'", ExpressionGrammar.IndicatorExpressionMode);
+        IllegalExpressionException ex = assertThrows(IllegalExpressionException.class,
+                () -> Evaluate.compile(root).evaluate(name -> null, ExpressionData.builder().build()));
+        assertEquals("Failed to coerce value 'a' (String) to Double: For input string: \"a\"\n\t in expression: 'a'",
+                ex.getMessage().replace("\r", ""));
+    }
+
+    @Test
+    void testEvaluate_DoubleArithmetic() {
+        assertEquals(0.3d, evaluate("0.1 + 0.2", Arithmetic.DECIMAL64));
+        assertEquals(0.1d + 0.2d, evaluate("0.1 + 0.2", Arithmetic.DOUBLE));
+        assertEquals(1d, evaluate("4 ^ 0.5", Arithmetic.DECIMAL64));
+        assertEquals(2d, evaluate("4 ^ 0.5", Arithmetic.DOUBLE));
+        assertEquals(-7d, evaluate("-(2 * 3 + 1) % 10", Arithmetic.DOUBLE));
+        assertEquals(evaluate("(1 + 2) * 3 / 4 - 5 > 1 == false", Arithmetic.DECIMAL64),
+                evaluate("(1 + 2) * 3 / 4 - 5 > 1 == false", Arithmetic.DOUBLE));
+    }
+
+    @Test
+    void testEvaluate_DoubleArithmeticMissingValue() {
+        Node<?> root = Parser.parse("2 * (#{u1234567890} + 1)", ExpressionGrammar.IndicatorExpressionMode);
+        IllegalExpressionException ex = assertThrows(IllegalExpressionException.class,
+                () -> Evaluate.compile(root, Arithmetic.DOUBLE).evaluate(name -> null, ExpressionData.builder().build()));
+        assertEquals("Failed to coerce value 'null' () to Double: null\n\t in expression: #{u1234567890}",
+                ex.getMessage().replace("\r", ""));
+    }
+
+    @Test
+    void testEvaluate_SharedSubtreesEvaluatedOnce() {
+        String expr = "if(#{u1234567890} + #{v1234567890} > 0, (#{u1234567890} + #{v1234567890}) / #{w1234567890}, 0)";
+        for (Arithmetic arithmetic : Arithmetic.values()) {
+            Node<?> root = Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+            Map<DataItem, Object> values = new HashMap<>();
+            Evaluate.collectDataItems(root).forEach(item -> values.put(item, 2d));
+            AtomicInteger lookups = new AtomicInteger();
+            Map<DataItem, Object> counting = new HashMap<>(values) {
+                @Override
+                public Object get(Object key) {
+                    lookups.incrementAndGet();
+                    return super.get(key);
+                }
+            };
+            Evaluator evaluator = Evaluate.compile(root, arithmetic);
+            ExpressionData data = ExpressionData.builder().dataItemValues(counting).build();
+            assertEquals(2d, evaluator.evaluate(name -> null, data));
+            assertEquals(3, lookups.get(), arithmetic.name());
+            // slots are local to an evaluation
+            assertEquals(2d, evaluator.evaluate(name -> null, data));
+            assertEquals(6, lookups.get(), arithmetic.name());
+        }
+    }
+
+    @Test
+    void testEvaluate_SharedSubtreesNotInAggregates() {
+        Node<?> root = Parser.parse("sum(#{u1234567890} * 2) + sum(#{u1234567890} * 2) + #{u1234567890} * 2",
+                ExpressionGrammar.PredictorExpressionMode);
+        Map<DataItem, Object> values = new HashMap<>();
+        Evaluate.collectDataItems(root).forEach(item -> values.put(item, new double[] { 1, 2, 3 }));
+        ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+        assertEquals(26d, Evaluate.compile(root).evaluate(name -> null, data));
+    }
+
+    @Test
+    void testEvaluate_AggregateSeriesSameAsEachIndex() {
+        double[] u = { 0.1, 2.5, Double.NaN, -3, 7.25, 0.3 };
+        double[] v = { 1, 0, 3, 0.2, -1, 4 };
+        for (String agg : List.of("sum", "avg", "median", "stddev", "min")) {
+            for (String arg : List.of("#{u1234567890}", "#{u1234567890} * 0.1 + #{v1234567890}",
+                    "-(#{u1234567890} - 1) / #{v1234567890}", "#{v1234567890} % 0.3 ^ 2")) {
+                // firstNonNull cannot be computed as series so each index is evaluated on its own
+                assertSameAggregate(agg + "(" + arg + ")", agg + "(firstNonNull(" + arg + "))", u, v);
+            }
+        }
+        assertEquals(List.of(0.1, 2.5, Double.NaN, -3d, 7.25, 0.3),
+                IntStream.range(0, u.length).mapToObj(i -> u[i]).collect(toList()), "values must not be changed");
+    }
+
+    @Test
+    void testEvaluate_AggregateSeriesLooksUpValuesOnce() {
+        Node<?> root = Parser.parse("sum(#{u1234567890} * 2 - 1)", ExpressionGrammar.PredictorExpressionMode);
+        AtomicInteger lookups = new AtomicInteger();
+        Map<DataItem, Object> counting = new HashMap<>() {
+            @Override
+            public Object get(Object key) {
+                lookups.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        Evaluate.collectDataItems(root).forEach(item -> counting.put(item, new double[] { 1, 2, 3, 4 }));
+        ExpressionData data = ExpressionData.builder().dataItemValues(counting).build();
+        assertEquals(16d, Evaluate.compile(root).evaluate(name -> null, data));
+        // once for the number of values, once for the values
+        assertEquals(2, lookups.get());
+    }
+
+    private static void assertSameAggregate(String expr, String eachIndexExpr, double[] u, double[] v) {
+        for (Arithmetic arithmetic : Arithmetic.values()) {
+            Node<?> root = Parser.parse(expr, ExpressionGrammar.PredictorExpressionMode);
+            Map<DataItem, Object> values = new HashMap<>();
+            Evaluate.collectDataItems(root).forEach(item -> values.put(item,
+                    item.getUid0().getValue().startsWith("u") ? u : v));
+            ExpressionData data = ExpressionData.builder().dataItemValues(values).build();
+            Object expected = Evaluate.compile(Parser.parse(eachIndexExpr, ExpressionGrammar.PredictorExpressionMode),
+                    arithmetic).evaluate(name -> null, data);
+            assertEquals(expected, Evaluate.compile(root, arithmetic).evaluate(name -> null, data), expr);
+        }
+    }
+
+    @Test
+    void testEvaluate_DataItemSlots() {
+        Node<?> root = Parser.parse("if(false, #{x1234567890}, #{u1234567890} * 2 + #{v1234567890}) - #{u1234567890}",
+                ExpressionGrammar.IndicatorExpressionMode);
+        List<DataItem> slots = Evaluate.collectDataItemSlots(root);
+        // the item in the branch that is never taken still has a slot
+        assertEquals(List.of("x1234567890", "u1234567890", "v1234567890"),
+                slots.stream().map(item -> item.getUid0().getValue()).collect(toList()));
+        ExpressionData bySlot = ExpressionData.builder().dataItemSlotValues(new Object[] { null, 3d, 1d }).build();
+        for (Evaluator evaluator : List.of(Evaluate.compile(root), Evaluate.compile(root, Arithmetic.DOUBLE),
+                Evaluate.compileToBytecode(root))) {
+            assertEquals(4d, evaluator.evaluate(name -> null, bySlot));
+            assertEquals(4d, evaluator.evaluate(name -> null, ExpressionData.builder()
+                    .dataItemValues(Map.of(slots.get(1), 3d, slots.get(2), 1d)).build()));
+        }
+    }
+
+    @Test
+    void testEvaluate_DataItemSlotsInAggregates() {
+        Node<?> root = Parser.parse("sum(#{u1234567890} * 2) + avg(firstNonNull(#{u1234567890}, 0))",
+                ExpressionGrammar.PredictorExpressionMode);
+        ExpressionData bySlot = ExpressionData.builder()
+                .dataItemSlotValues(new Object[] { new double[] { 1, 2, 3 } }).build();
+        assertEquals(1, Evaluate.collectDataItemSlots(root).size());
+        assertEquals(14d, Evaluate.compile(root).evaluate(name -> null, bySlot));
+    }
+
+    @Test
+    void testEvaluate_LazyOperandsAndArguments() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("u1234567890", true);
+        values.put("v1234567890", null);
+        values.put("w1234567890", 2d);
+        assertLookups(1, true, "#{u1234567890} || #{w1234567890} > 1", values);
+        assertLookups(2, true, "#{w1234567890} < 0 || #{u1234567890}", values);
+        assertLookups(1, null, "#{v1234567890} && #{u1234567890}", values);
+        // false && null is null so the right operand is needed
+        assertLookups(2, null, "!#{u1234567890} && #{v1234567890}", values);
+        assertLookups(2, 2d, "if(#{u1234567890}, #{w1234567890}, #{v1234567890})", values);
+        assertLookups(2, true, "if(#{v1234567890}, #{w1234567890}, #{u1234567890})", values);
+        assertLookups(2, 2d, "firstNonNull(#{v1234567890}, #{w1234567890}, #{u1234567890})", values);
+    }
+
+    @Test
+    void testEvaluate_LazyArgumentsSkipErrors() {
+        assertEquals(1d, evaluate("if(true, 1, 1 + 'a')", Arithmetic.DECIMAL64));
+        assertEquals(1d, evaluate("firstNonNull(1, 1 + 'a')", Arithmetic.DECIMAL64));
+        assertEquals(true, evaluate("true || 1 + 'a' > 0", Arithmetic.DECIMAL64));
+        ExpressionFunctions functions = new ExpressionFunctions() {
+            @Override
+            public Object unsupported(String name) {
+                return null;
+            }
+
+            @Override
+            public Object d2_condition(String condition, Supplier<?> ifValue, Supplier<?> elseValue) {
+                return "true".equals(condition) ? ifValue.get() : elseValue.get();
+            }
+        };
+        assertEquals(1d, Evaluate.compile(Parser.parse("d2:condition('true', 1, 1 + 'a')",
+                ExpressionGrammar.ProgramIndicatorExpressionMode)).evaluate(functions, ExpressionData.builder().build()));
+        assertThrows(IllegalExpressionException.class, () -> evaluate("false || 1 + 'a' > 0", Arithmetic.DECIMAL64));
+    }
+
+    private static void assertLookups(int expectedLookups, Object expected, String expr, Map<String, Object> valuesByUid) {
+        Node<?> root = Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode);
+        AtomicInteger lookups = new AtomicInteger();
+        Map<DataItem, Object> counting = new HashMap<>() {
+            @Override
+            public Object get(Object key) {
+                lookups.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        Evaluate.collectDataItems(root).forEach(item -> counting.put(item, valuesByUid.get(item.getUid0().getValue())));
+        ExpressionData data = ExpressionData.builder().dataItemValues(counting).build();
+        for (Evaluator evaluator : List.of(Evaluate.compile(root), Evaluate.compileToBytecode(root))) {
+            lookups.set(0);
+            assertEquals(expected, evaluator.evaluate(name -> null, data), expr);
+            assertEquals(expectedLookups, lookups.get(), expr);
+        }
+    }
+
+    private static Object evaluate(String expr, Arithmetic arithmetic) {
+        return Evaluate.compile(Parser.parse(expr, ExpressionGrammar.IndicatorExpressionMode), arithmetic)
+                .evaluate(name -> null, ExpressionData.builder().build());
+    }
+
+    private static ExpressionData data(DataItem item, Object value) {
+        return ExpressionData.builder().dataItemValues(Map.of(item, value)).build();
+    }
+}
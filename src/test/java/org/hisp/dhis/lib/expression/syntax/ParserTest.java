@@ -0,0 +1,192 @@
+package org.hisp.dhis.lib.expression.syntax;
+
+import org.hisp.dhis.lib.expression.ast.BinaryOperator;
+import org.hisp.dhis.lib.expression.ast.Node;
+import org.hisp.dhis.lib.expression.ast.NodeType;
+import org.hisp.dhis.lib.expression.spi.Issue;
+import org.hisp.dhis.lib.expression.spi.Issues;
+import org.hisp.dhis.lib.expression.spi.ParseException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link Parser} input variants and that grouping operators while parsing gives the same tree as grouping
+ * the flat tree after parsing.
+ *
+ * @author Jan Bernitt
+ */
+class ParserTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "1 + 2 * 3",
+            "1 - 2 + 3",
+            "2 * 3 / 4 % 5 - 6",
+            "1 < 2 == 3 >= 4 != true",
+            "true and false or not true && !false || true",
+            "-2 ^ 2",
+            "2 ^ -3 ^ 2",
+            "2 ^ - -3",
+            "2 ^ 3 ^ 4 * -5",
+            "2 * -3 ^ 2 + +4",
+            "--10 - -(1 + 2) * 3",
+            "(1 + 2) * (3 - (4 / 5))",
+            "if(1 > 2, 3 + 4, -5 * 6) + greatest(1, 2 - 3)",
+            "#{u1234567890} + #{u1234567890.u1234567891}.periodOffset(-1) * 2",
+            "(#{u1234567890} + #{u1234567891}).periodOffset(-1).minDate(2020-01-01).periodOffset(2) ^ 2",
+            "sum(#{u1234567890}.yearToDate() + 1) / avg(#{u1234567891}) - stddev(C{u1234567890})",
+            "firstNonNull(#{u1234567890}, 0) * -#{u1234567891}.periodOffset(-2)"
+    })
+    void testGroupOperatorsWhileParsing(String expr) {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode)
+                .with(ExpressionGrammar.CommonAggregationFunctions.toArray(Fragment[]::new))
+                .with(ExpressionGrammar.PredictorAggregationFunctions.toArray(Fragment[]::new));
+        Node<?> flat = Parser.withGrammar(grammar).withOperatorGrouping(false).parse(expr);
+        Node<?> grouped = Parser.withGrammar(grammar).parse(expr);
+        assertEquals(toTreeString(flat), toTreeString(grouped));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "1 + 2 * 3",
+            "#{u1234567890.u1234567891&u1234567892}.periodOffset(-1) + A{u1234567890}",
+            "#{deGroup:u1234567890.*.coGroup:u1234567891&u1234567892}",
+            "#{u1234567890.} + #{u1234567890..u1234567891}",
+            "if(true, 'Gr\u00FC\u00DFe, \u4E16\u754C', \"x\")"
+    })
+    void testParseCharSequenceAndBytes(String expr) {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        String expected = toTreeString(Parser.parse(expr, grammar));
+        byte[] utf8 = expr.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected, toTreeString(Parser.parse(CharBuffer.wrap(expr), grammar)));
+        assertEquals(expected, toTreeString(Parser.parse(new StringBuilder(expr), grammar)));
+        assertEquals(expected, toTreeString(Parser.parse(ByteBuffer.wrap(utf8), grammar)));
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length + 2).put((byte) '(').put(utf8);
+        direct.flip().position(1);
+        assertEquals(expected, toTreeString(Parser.parse(direct, grammar)));
+        assertEquals(1, direct.position());
+    }
+
+    @Test
+    void testParseDataItemGroups() {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        assertEquals("DATA_ITEM:#[ARGUMENT:0[IDENTIFIER:deGroup[],UID:u1234567890[],],"
+                        + "ARGUMENT:1[UID:*[],],ARGUMENT:2[UID:u1234567891[],UID:u1234567892[],],]",
+                toTreeString(Parser.parse("#{deGroup:u1234567890.*.u1234567891&u1234567892&}", grammar)));
+    }
+
+    @Test
+    void testParseCollectingErrors() {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        Issues issues = new Issues();
+        String expr = "greatest(1 +, (2 * ), #{u1234567890+x}, foo(3)) + (4 +)";
+        assertNull(Parser.withGrammar(grammar).parse(expr, issues));
+        assertEquals(List.of("expected name", "expected name", "Invalid value: 'u1234567890+x'",
+                        "Unknown function or constant: 'foo'", "expected name"),
+                issues.getErrors().stream().map(Issue::getMessage).collect(toList()));
+        Issue first = issues.getErrors().get(0);
+        String message = assertThrows(ParseException.class, () -> Parser.parse(expr, grammar)).getMessage();
+        assertEquals(message, first.getMessage() + first.getPosition().get());
+    }
+
+    @Test
+    void testParseCollectingErrors_NoErrors() {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        Issues issues = new Issues();
+        Node<?> root = Parser.withGrammar(grammar).parse("greatest(1, (2 * 3)) + #{u1234567890}", issues);
+        assertNotNull(root);
+        assertTrue(issues.getErrors().isEmpty());
+        assertEquals(toTreeString(Parser.parse("greatest(1, (2 * 3)) + #{u1234567890}", grammar)), toTreeString(root));
+    }
+
+    @Test
+    void testParse_UidsAndIdentifiersAreExtractedLazily() {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        Node<?> root = Parser.parse("#{u1234567890.u1234567891} + #{deGroup:u1234567892}", grammar);
+        List<Node<?>> uids = new ArrayList<>();
+        root.visit(NodeType.UID, uids::add);
+        assertEquals(List.of("u1234567890", "u1234567891", "u1234567892"),
+                uids.stream().map(Node::getRawValue).collect(toList()));
+        for (Node<?> uid : uids)
+            assertSame(uid.getRawValue(), uid.getValue());
+    }
+
+    @Test
+    void testParse_OperatorsAndArgumentsUseConstants() {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        Node<?> root = Parser.parse(new StringBuilder("#{u1234567890.u1234567891} + 1 >= -2"), grammar);
+        assertSame(BinaryOperator.GE.getSymbol(), root.getRawValue());
+        assertSame(BinaryOperator.ADD.getSymbol(), root.child(0).getRawValue());
+        assertSame("-", root.child(1).getRawValue());
+        List<Node<?>> args = new ArrayList<>();
+        root.visit(NodeType.ARGUMENT, args::add);
+        assertSame("0", args.get(0).getRawValue());
+        assertSame("1", args.get(1).getRawValue());
+    }
+
+    @Test
+    void testParseBytes_InputChangesAfterParse() {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        String expr = "#{u1234567890.u1234567891} + #{varName}";
+        ByteBuffer utf8 = ByteBuffer.wrap(expr.getBytes(StandardCharsets.UTF_8));
+        Node<?> root = Parser.parse(utf8, grammar);
+        utf8.put(new byte[utf8.remaining()]);
+        assertEquals(toTreeString(Parser.parse(expr, grammar)), toTreeString(root));
+    }
+
+    @Test
+    void testSerializeExprOfBytes() throws Exception {
+        Expr expr = new Expr(AsciiCharSequence.of(ByteBuffer.wrap("1 + 2".getBytes(StandardCharsets.UTF_8))));
+        Expr copy = serializedCopy(expr);
+        assertEquals('1', copy.peek());
+        assertEquals("1 + 2", copy.immutableInput());
+    }
+
+    @Test
+    void testSerializeParseException_MessageNotYetComputed() throws Exception {
+        CompiledGrammar grammar = CompiledGrammar.of(ExpressionGrammar.IndicatorExpressionMode);
+        ParseException ex = assertThrows(ParseException.class, () -> Parser.parse("1 + foo(2)", grammar));
+        ParseException copy = serializedCopy(ex);
+        assertNotNull(copy.getMessage());
+        assertEquals(ex.getMessage(), copy.getMessage());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T serializedCopy(T obj) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+
+    private static String toTreeString(Node<?> node) {
+        StringBuilder str = new StringBuilder();
+        str.append(node.getType()).append(':').append(node.getRawValue());
+        node.modifiers().forEach(modifier -> str.append('.').append(toTreeString(modifier)));
+        str.append('[');
+        node.children().forEach(child -> str.append(toTreeString(child)).append(','));
+        return str.append(']').toString();
+    }
+}
@@ -23,6 +23,13 @@ public class RuleVariableValue implements VariableValue {
 
     @Override
     public Object valueOrDefault() {
+        if (value != null) {
+            switch (valueType) {
+                case NUMBER: return Double.valueOf(value);
+                case BOOLEAN: return Boolean.valueOf(value);
+                default: return value;
+            }
+        }
         switch (valueType) {
             case NUMBER: return 0d;
             case DATE: return "2010-01-01";